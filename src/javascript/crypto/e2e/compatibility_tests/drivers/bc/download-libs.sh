@@ -52,12 +52,17 @@ if [ ! -d lib ]; then
   mkdir lib
 fi
 
+bcversion=1.81
 bclibs=(\
-bcpg-jdk15on-161.jar:422656435514ab8a28752b117d5d2646660a0ace \
-bcprov-jdk15on-161.jar:00df4b474e71be02c1349c3292d98886f888d1f7)
+bcpg-jdk18on:7cd50193dd6a080a203716d993f7a246c8d94291 \
+bcprov-jdk18on:d17c094daef57dbd80af71687a475aa6df7cbe54 \
+bcutil-jdk18on:e2dd79395ab435094142b6aba219f35adcba0f01)
 
 for lib in "${bclibs[@]}"; do
-  ensure "http://www.bouncycastle.org/download" $lib
+  info=(${lib//:/ })
+  ensure \
+    "https://repo1.maven.org/maven2/org/bouncycastle/${info[0]}/$bcversion" \
+    "${info[0]}-$bcversion.jar:${info[1]}"
 done
 
 ensure \
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.bc.BcPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Times the driver's key validation, signature verification and
+ * decryption for each {@link SyntheticCorpus.KeyType}, to compare
+ * curve keys against RSA on the same code paths.</p>
+ *
+ * <p>Usage: <tt>Main bench [--seconds n] [--types a,b,...]
+ * [--threads n] [--heap [--count n]]</tt>. Each operation is run
+ * for a short warm-up and then for <tt>--seconds</tt>, and is
+ * reported in microseconds per operation and as a ratio against
+ * RSA-2048, when that is included.</p>
+ *
+ * <p>With <tt>--threads</tt>, each operation runs concurrently on
+ * that many threads, all sharing one validated {@link KeyChecker.PKR}
+ * and unlocked key, and the time per operation is for all threads
+ * together. Every result is still checked, so this doubles as a
+ * stress test of sharing keys between the driver's workers.</p>
+ *
+ * <p>With <tt>--heap</tt>, it instead measures the heap retained by
+ * <tt>--count</tt> copies of each key type, held as
+ * {@link KeyChecker.PKR}s and as {@link CompactKey}s, in bytes per
+ * key.</p>
+ */
+final class Bench {
+
+  /**
+   * The operations measured for each key type.
+   */
+  enum Op {
+    /** Parse and validate the public keyring. */
+    VALIDATE,
+    /** Verify a detached signature over 1 KiB. */
+    VERIFY,
+    /** As VERIFY, decoding the key from a {@link CompactKey}. */
+    VERIFY_COMPACT,
+    /** Check the selected userid self-signature again. */
+    CERTIFY,
+    /** Decrypt an unsigned message with an unlocked key. */
+    DECRYPT,
+    /** Decrypt and verify a compressed, signed message. */
+    DECRYPT_VERIFY,
+    /** Read the recipients from an encrypted message's framing. */
+    INSPECT
+  };
+
+  static final int run(String args[])
+      throws IOException, PGPException, SignatureException,
+      InterruptedException {
+    double seconds = 2.0;
+    int threads = 1;
+    boolean heap = false;
+    int count = 1000;
+    List<SyntheticCorpus.KeyType> types =
+        Arrays.asList(SyntheticCorpus.KeyType.values());
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--seconds")) {
+        seconds = Double.parseDouble(requireValue(args, i++));
+      } else if (args[i].equals("--types")) {
+        types = new ArrayList<SyntheticCorpus.KeyType>();
+        for (String name : requireValue(args, i++).split(",")) {
+          types.add(SyntheticCorpus.KeyType.forName(name));
+        }
+      } else if (args[i].equals("--threads")) {
+        threads = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--heap")) {
+        heap = true;
+      } else if (args[i].equals("--count")) {
+        count = Integer.parseInt(requireValue(args, i++));
+      } else {
+        throw new IllegalArgumentException("Unexpected argument " + args[i]);
+      }
+    }
+    if (heap) {
+      return runHeap(types, count);
+    }
+    long nanos = (long) (seconds * 1e9);
+
+    // Every type is warmed up before any is measured, as they share
+    // most of their code paths.
+    Op ops[] = Op.values();
+    List<Bench> benches = new ArrayList<Bench>();
+    for (SyntheticCorpus.KeyType type : types) {
+      Bench bench = new Bench(SyntheticCorpus.create(type));
+      for (Op op : ops) {
+        bench.time(op, Math.max(nanos / 4L, 1L));
+      }
+      benches.add(bench);
+    }
+    double micros[][] = new double[types.size()][ops.length];
+    for (int t = 0; t < types.size(); t++) {
+      for (int o = 0; o < ops.length; o++) {
+        micros[t][o] = (threads > 1)
+            ? benches.get(t).timeShared(ops[o], nanos, threads)
+            : benches.get(t).time(ops[o], nanos);
+      }
+    }
+
+    int base = types.indexOf(SyntheticCorpus.KeyType.RSA_2048);
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "%-16s",
+            (threads > 1) ? ("us/op x" + threads) : "us/op"));
+    for (Op op : ops) {
+      sb.append(String.format(Locale.ROOT, "%22s", op.name().toLowerCase()));
+    }
+    println(sb.toString());
+    for (int t = 0; t < types.size(); t++) {
+      sb.setLength(0);
+      sb.append(String.format(Locale.ROOT, "%-16s", types.get(t).getName()));
+      for (int o = 0; o < ops.length; o++) {
+        String cell = String.format(Locale.ROOT, "%.1f", micros[t][o]);
+        if (base >= 0) {
+          cell += String.format(Locale.ROOT, " (%.2fx)",
+              micros[t][o] / micros[base][o]);
+        }
+        sb.append(String.format(Locale.ROOT, "%22s", cell));
+      }
+      println(sb.toString());
+    }
+    return 0;
+  }
+
+  // Holds many copies of each key, first as PKRs and then as
+  // CompactKeys, and reports the heap each retains per key.
+  private static final int runHeap(List<SyntheticCorpus.KeyType> types,
+      int count) throws IOException, PGPException, SignatureException {
+    println(String.format(Locale.ROOT, "%-16s%12s%12s%12s%10s",
+            "bytes/key", "encoded", "pkr", "compact", "ratio"));
+    for (SyntheticCorpus.KeyType type : types) {
+      byte[] encoded = SyntheticCorpus.create(type).getPublicRing();
+      KeyChecker.PKR validated = KeyChecker.validate(Util.readPublicKeyRing(
+              new ByteArrayInputStream(encoded)));
+      int[][] selections = ValidatedKeyStore.getSelections(validated);
+
+      // Each copy is parsed separately, so no objects are shared
+      // between them; and restored, as signatures were already
+      // checked above.
+      List<Object> held = new ArrayList<Object>();
+      long before = usedHeap();
+      for (int i = 0; i < count; i++) {
+        held.add(restore(validated, encoded, selections));
+      }
+      long pkrBytes = (usedHeap() - before) / count;
+      held.clear();
+
+      before = usedHeap();
+      for (int i = 0; i < count; i++) {
+        held.add(CompactKey.from(restore(validated, encoded, selections)));
+      }
+      long compactBytes = (usedHeap() - before) / count;
+      held.clear();
+
+      println(String.format(Locale.ROOT, "%-16s%12d%12d%12d%9.1fx",
+              type.getName(), encoded.length, pkrBytes, compactBytes,
+              (double) pkrBytes / compactBytes));
+    }
+    return 0;
+  }
+
+  private static final KeyChecker.PKR restore(KeyChecker.PKR validated,
+      byte[] encoded, int[][] selections) throws IOException, PGPException {
+    return ValidatedKeyStore.restore(validated.getStatus(),
+        Util.readPublicKeyRing(new ByteArrayInputStream(encoded)),
+        selections[0], selections[1], validated.getErrors());
+  }
+
+  private static final long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // A single collection doesn't always free everything that's
+    // unreachable, so take the lowest of several.
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  private Bench(SyntheticCorpus corpus)
+      throws IOException, PGPException, SignatureException {
+    mCorpus = corpus;
+    mPlainText = corpus.getPlainText();
+    mVerify = KeyChecker.validate(Util.readPublicKeyRing(
+            new ByteArrayInputStream(corpus.getPublicRing())));
+    if (mVerify.getStatus() != KeyChecker.PKR.Status.OK) {
+      throw new IllegalStateException(corpus.getKeyType().getName()
+          + " key failed to validate: " + mVerify.getErrors());
+    }
+    mCompact = CompactKey.from(mVerify);
+    mKey = Decryptor.extractDecryptionKey(
+        Util.readSecretKeyRing(
+            new ByteArrayInputStream(corpus.getSecretRing())),
+        SyntheticCorpus.PASSPHRASE, Limits.DEFAULT);
+    if (mKey == null) {
+      throw new IllegalStateException("No decryption key for "
+          + corpus.getKeyType().getName());
+    }
+  }
+
+  // Runs the operation repeatedly for at least the given time, and
+  // returns the mean time per run in microseconds.
+  private final double time(Op op, long nanos)
+      throws IOException, PGPException, SignatureException {
+    long start = System.nanoTime();
+    long elapsed;
+    long count = 0L;
+    do {
+      runOnce(op);
+      count++;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < nanos);
+    return elapsed / 1e3 / count;
+  }
+
+  // Runs the operation on several threads at once, and returns the
+  // combined time per run in microseconds.
+  private final double timeShared(final Op op, final long nanos,
+      int threads) throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Double>> pending = new ArrayList<Future<Double>>();
+      for (int i = 0; i < threads; i++) {
+        pending.add(executor.submit(new Callable<Double>() {
+            @Override
+            public Double call() throws Exception {
+              return Double.valueOf(time(op, nanos));
+            }
+          }));
+      }
+      double opsPerMicro = 0.0;
+      for (Future<Double> future : pending) {
+        try {
+          opsPerMicro += 1.0 / future.get().doubleValue();
+        } catch (ExecutionException ee) {
+          throw new IOException(op + " failed on a shared "
+              + mCorpus.getKeyType().getName() + " key", ee.getCause());
+        }
+      }
+      return 1.0 / opsPerMicro;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private final void runOnce(Op op)
+      throws IOException, PGPException, SignatureException {
+    switch (op) {
+      case VALIDATE:
+        KeyChecker.PKR pkr = KeyChecker.validate(Util.readPublicKeyRing(
+                new ByteArrayInputStream(mCorpus.getPublicRing())));
+        if (pkr.getStatus() != KeyChecker.PKR.Status.OK) {
+          throw new IllegalStateException(pkr.getErrors());
+        }
+        break;
+
+      case VERIFY:
+      case VERIFY_COMPACT:
+        PGPSignature sig = ((PGPSignatureList) new BcPGPObjectFactory(
+                mCorpus.getDetachedSignature()).nextObject()).get(0);
+        List<PGPPublicKey> signers = (op == Op.VERIFY)
+            ? mVerify.getSigningKeysByKeyID(sig.getKeyID())
+            : mCompact.getSigningKeysByKeyID(sig.getKeyID());
+        if (signers.isEmpty()) {
+          throw new IllegalStateException("No signing key");
+        }
+        sig.init(new BcPGPContentVerifierBuilderProvider(), signers.get(0));
+        sig.update(mPlainText);
+        if (!sig.verify()) {
+          throw new SignatureException("Detached signature did not verify");
+        }
+        break;
+
+      case CERTIFY:
+        KeyChecker.UserID uid = mVerify.getUserIDs().get(0);
+        PGPPublicKey primary = mVerify.getOriginal().getPublicKey();
+        PGPSignature self = uid.getSignature();
+        self.init(new BcPGPContentVerifierBuilderProvider(), primary);
+        if (!self.verifyCertification(uid.getName(), primary)) {
+          throw new SignatureException("Self-signature did not verify");
+        }
+        break;
+
+      case DECRYPT:
+        check(Decryptor.decrypt(new ByteArrayInputStream(
+                    mCorpus.getMessage()), mKey, null, Limits.DEFAULT));
+        break;
+
+      case DECRYPT_VERIFY:
+        check(Decryptor.decrypt(new ByteArrayInputStream(
+                    mCorpus.getSignedMessage()), mKey, mVerify,
+                Limits.DEFAULT));
+        break;
+
+      default:
+        Inspector.MessageInfo info = Inspector.inspect(
+            new ByteArrayInputStream(mCorpus.getMessage()));
+        if (!info.getRecipientKeyIDs().contains(
+                Long.valueOf(mKey.getKeyID()))) {
+          throw new IllegalStateException("Recipient not found");
+        }
+        break;
+    }
+  }
+
+  private final void check(Decryptor.Result result) {
+    if ((result == null)
+        || !Arrays.equals(result.getPlainText(), mPlainText)) {
+      throw new IllegalStateException("Message did not decrypt");
+    }
+  }
+
+  private static final String requireValue(String args[], int i) {
+    if (i + 1 >= args.length) {
+      throw new IllegalArgumentException("Missing value for " + args[i]);
+    }
+    return args[i + 1];
+  }
+
+  private static final void println(String s) {
+    System.out.println(s);
+  }
+
+  private final SyntheticCorpus mCorpus;
+  private final byte[] mPlainText;
+  private final KeyChecker.PKR mVerify;
+  private final CompactKey mCompact;
+  private final PGPPrivateKey mKey;
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.PublicKeyPacket;
+import org.bouncycastle.bcpg.SignatureSubpacketTags;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketVector;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>A validated key reduced to what is needed to check signatures
+ * with it, for holding very many keys in memory at once.</p>
+ *
+ * <p>A {@link KeyChecker.PKR} keeps the parsed keyring, with an
+ * object for every packet, signature and subpacket, along with the
+ * diagnostics from validation. A CompactKey instead keeps the key
+ * ids, key flags and algorithms of the primary key and each accepted
+ * subkey in primitive arrays, the primary key's fingerprint, the time
+ * until which the validation holds, and the keyring as encoded
+ * bytes. Key material is decoded from those bytes when a signing key
+ * is requested, and the whole PKR is rebuilt from them by
+ * {@link #toPKR}, without checking any signatures again.</p>
+ *
+ * <p>A CompactKey is immutable, and may be shared between threads.
+ * Keys returned by {@link #getSigningKeysByKeyID} are decoded afresh
+ * on each call.</p>
+ */
+final class CompactKey {
+
+  /**
+   * Set in {@link #getKeyFlags} for a key that
+   * {@link KeyChecker.PKR#getSigningKeysByKeyID} would return. The
+   * low byte holds the key flags from the selected signatures.
+   */
+  static final int VERIFY = 1 << 8;
+
+  /**
+   * @return a compact form of this validated key, or null if its
+   * selections can't be located in its keyring, which should not
+   * happen for a PKR produced by validate.
+   */
+  static final CompactKey from(KeyChecker.PKR pkr) throws IOException {
+    int[][] selections = ValidatedKeyStore.getSelections(pkr);
+    if (selections == null) {
+      return null;
+    }
+    PGPPublicKeyRing ring = pkr.getOriginal();
+    PGPPublicKey masterpk = ring.getPublicKey();
+
+    // The primary key comes first, followed by the accepted subkeys.
+    List<PGPPublicKey> keys = new ArrayList<PGPPublicKey>();
+    keys.add(masterpk);
+    for (KeyChecker.Subkey subkey : pkr.getSubkeys()) {
+      keys.add(subkey.getPublicKey());
+    }
+    long[] keyIDs = new long[keys.size()];
+    int[] flags = new int[keys.size()];
+    for (KeyChecker.UserID uid : pkr.getUserIDs()) {
+      flags[0] |= getKeyFlags(uid.getSignature());
+    }
+    for (int i = 0; i < keys.size(); i++) {
+      PGPPublicKey key = keys.get(i);
+      keyIDs[i] = key.getKeyID();
+      if (i > 0) {
+        flags[i] = getKeyFlags(pkr.getSubkeys().get(i - 1).getSignature());
+      }
+      for (PGPPublicKey signer : pkr.getSigningKeysByKeyID(keyIDs[i])) {
+        if (signer == key) {
+          flags[i] |= VERIFY;
+        }
+      }
+      flags[i] |= key.getAlgorithm() << 16;
+    }
+
+    // The ring is encoded one key at a time, which is how
+    // PGPPublicKeyRing encodes it, to find where each key's packet
+    // starts.
+    int[] offsets = new int[keys.size()];
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Iterator<PGPPublicKey> keyit = ring.getPublicKeys();
+    while (keyit.hasNext()) {
+      PGPPublicKey key = keyit.next();
+      int idx = indexOf(keys, key);
+      if (idx >= 0) {
+        offsets[idx] = out.size();
+      }
+      key.encode(out);
+    }
+
+    return new CompactKey((byte) pkr.getStatus().ordinal(),
+        KeyChecker.getValidUntil(pkr), masterpk.getFingerprint(), keyIDs,
+        flags, offsets, selections[0], selections[1], out.toByteArray());
+  }
+
+  /**
+   * @return the key id of the primary key.
+   */
+  long getKeyID() {
+    return mKeyIDs[0];
+  }
+
+  /**
+   * @return a copy of the primary key's fingerprint.
+   */
+  byte[] getFingerprint() {
+    return Arrays.copyOf(mFingerprint, mFingerprint.length);
+  }
+
+  KeyChecker.PKR.Status getStatus() {
+    return KeyChecker.PKR.Status.values()[mStatus];
+  }
+
+  /**
+   * @return the time (in msec since the epoch) after which this key
+   * should be validated again, as for
+   * {@link KeyChecker#getValidUntil}.
+   */
+  long getValidUntil() {
+    return mValidUntil;
+  }
+
+  /**
+   * @return the number of keys held, the primary key being the
+   * first.
+   */
+  int getKeyCount() {
+    return mKeyIDs.length;
+  }
+
+  long getKeyID(int idx) {
+    return mKeyIDs[idx];
+  }
+
+  /**
+   * @return the key flags of the selected signatures for this key in
+   * the low byte, combined with {@link #VERIFY} if it can be used to
+   * check signatures.
+   */
+  int getKeyFlags(int idx) {
+    return mFlags[idx] & 0xffff;
+  }
+
+  int getAlgorithm(int idx) {
+    return mFlags[idx] >>> 16;
+  }
+
+  /**
+   * As {@link KeyChecker.PKR#getSigningKeysByKeyID}, but decoding
+   * only the matching keys.
+   */
+  List<PGPPublicKey> getSigningKeysByKeyID(long keyid)
+      throws IOException, PGPException {
+    List<PGPPublicKey> ret = new ArrayList<PGPPublicKey>();
+    for (int i = 0; i < mKeyIDs.length; i++) {
+      if ((mKeyIDs[i] == keyid) && ((mFlags[i] & VERIFY) != 0)) {
+        ret.add(decodeKey(i));
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return the full validated key, rebuilt from the encoded keyring
+   * without checking any signatures. Diagnostics from the original
+   * validation are not kept.
+   */
+  KeyChecker.PKR toPKR() throws IOException, PGPException {
+    PGPPublicKeyRing ring =
+        Util.readPublicKeyRing(new ByteArrayInputStream(mRing));
+    return ValidatedKeyStore.restore(getStatus(), ring, mUidSelections,
+        mSubkeySelections, "");
+  }
+
+  private final PGPPublicKey decodeKey(int idx)
+      throws IOException, PGPException {
+    BCPGInputStream in = new BCPGInputStream(new ByteArrayInputStream(
+            mRing, mOffsets[idx], mRing.length - mOffsets[idx]));
+    try {
+      return new PGPPublicKey((PublicKeyPacket) in.readPacket(),
+          new BcKeyFingerprintCalculator());
+    } finally {
+      in.close();
+    }
+  }
+
+  private static final int getKeyFlags(PGPSignature sig) {
+    PGPSignatureSubpacketVector hashed = sig.getHashedSubPackets();
+    if (hashed == null) {
+      return 0;
+    }
+    KeyFlags flags = (KeyFlags)
+        hashed.getSubpacket(SignatureSubpacketTags.KEY_FLAGS);
+    return (flags == null) ? 0 : (flags.getFlags() & 0xff);
+  }
+
+  private static final int indexOf(List<PGPPublicKey> keys,
+      PGPPublicKey key) {
+    for (int i = 0; i < keys.size(); i++) {
+      if (keys.get(i) == key) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private CompactKey(byte status, long validUntil, byte[] fingerprint,
+      long[] keyIDs, int[] flags, int[] offsets, int[] uidSelections,
+      int[] subkeySelections, byte[] ring) {
+    mStatus = status;
+    mValidUntil = validUntil;
+    mFingerprint = fingerprint;
+    mKeyIDs = keyIDs;
+    mFlags = flags;
+    mOffsets = offsets;
+    mUidSelections = uidSelections;
+    mSubkeySelections = subkeySelections;
+    mRing = ring;
+  }
+
+  private final byte mStatus;
+  private final long mValidUntil;
+  private final byte[] mFingerprint;
+  // Parallel arrays, one entry per key. mFlags holds the algorithm
+  // in its upper half, and mOffsets the start of the key's packet
+  // within mRing.
+  private final long[] mKeyIDs;
+  private final int[] mFlags;
+  private final int[] mOffsets;
+  private final int[] mUidSelections;
+  private final int[] mSubkeySelections;
+  private final byte[] mRing;
+}
@@ -15,58 +15,223 @@
  */
 package com.google.e2e.bcdriver;
 
+import org.bouncycastle.bcpg.AEADEncDataPacket;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyEncSessionPacket;
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.bcpg.SymmetricEncIntegrityPacket;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPEncryptedData;
 import org.bouncycastle.openpgp.PGPEncryptedDataList;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPLiteralData;
 import org.bouncycastle.openpgp.PGPObjectFactory;
 import org.bouncycastle.openpgp.PGPOnePassSignature;
 import org.bouncycastle.openpgp.PGPOnePassSignatureList;
+import org.bouncycastle.openpgp.PGPPBEEncryptedData;
 import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
 import org.bouncycastle.openpgp.PGPSecretKey;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.PGPSessionKey;
 import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureList;
 import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.PGPDataDecryptor;
 import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPBEDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
 import org.bouncycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
 import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
 import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.bc.BcSessionKeyDataDecryptorFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
 /**
  * Support class to decrypt an encrypted message using a parsed
- * secret key.
+ * secret key, or a passphrase.
  */
 public class Decryptor {
 
-  static final class Result {
+  /**
+   * <p>A decrypted message. The plaintext is either a heap array, or
+   * (from {@link Decryptor#decryptToBuffer}) a pooled off-heap {@link
+   * PlainTextBuffer}.</p>
+   *
+   * <p>Closing the result wipes the plaintext in either case, and
+   * returns an off-heap buffer to its pool.</p>
+   */
+  static final class Result implements Closeable {
     private final byte[] mPlainText;
+    private final PlainTextBuffer mBuffer;
     private final String mFileName;
-    private Result(byte[] plainText, String fileName) {
+    private final SessionKey mSessionKey;
+    private final List<SignatureResult> mSignatures;
+    private Result(byte[] plainText, PlainTextBuffer buffer,
+        String fileName, SessionKey sessionKey,
+        List<SignatureResult> signatures) {
       mPlainText = plainText;
+      mBuffer = buffer;
       mFileName = fileName;
+      mSessionKey = sessionKey;
+      mSignatures = signatures;
     }
     final String getName() {
       return mFileName;
     }
+    /**
+     * @return the plaintext. For a heap result, this is the result's
+     * own array, which {@link #close} fills with zeros, so callers
+     * that keep it past closing the result must copy it first. For an
+     * off-heap result, this is a heap copy that the caller must wipe;
+     * prefer {@link #getPlainTextBuffer}.
+     */
     final byte[] getPlainText() {
-      return mPlainText;
+      return (mBuffer != null) ? mBuffer.toByteArray() : mPlainText;
+    }
+    /**
+     * @return a read-only view of the plaintext, which is valid until
+     * the result is closed.
+     */
+    final ByteBuffer getPlainTextBuffer() {
+      return (mBuffer != null)
+          ? mBuffer.asReadOnlyBuffer()
+          : ByteBuffer.wrap(mPlainText).asReadOnlyBuffer();
+    }
+    @Override
+    public final void close() {
+      if (mBuffer != null) {
+        mBuffer.close();
+      } else {
+        Arrays.fill(mPlainText, (byte) 0);
+      }
+    }
+    /**
+     * @return the session key that decrypted the message, which can
+     * be passed back to {@link Decryptor#decrypt(InputStream,
+     * SessionKey, KeyChecker.PKR, Limits)} to read it again; or null
+     * if it was decrypted with a passphrase.
+     */
+    final SessionKey getSessionKey() {
+      return mSessionKey;
+    }
+    /**
+     * @return the outcome for each one-pass signature in the message,
+     * in the order they appear in its header.
+     */
+    final List<SignatureResult> getSignatures() {
+      return mSignatures;
     }
   }
 
+  /**
+   * The outcome of checking one of the one-pass signatures in a
+   * message.
+   */
+  static final class SignatureResult {
+    enum Status { VALID, INVALID, NO_KEY };
+
+    final long getKeyID() {
+      return mKeyID;
+    }
+    final Status getStatus() {
+      return mStatus;
+    }
+    /**
+     * @return the verifying keyring holding the signing key, or null
+     * if none of them did.
+     */
+    final KeyChecker.PKR getSigner() {
+      return mSigner;
+    }
+    /**
+     * @return the key that checked the signature, or null if none of
+     * the verifying keyrings held it.
+     */
+    final PGPPublicKey getPublicKey() {
+      return mPublicKey;
+    }
+    private SignatureResult(long keyID, KeyChecker.PKR signer,
+        PGPPublicKey publicKey) {
+      mKeyID = keyID;
+      mSigner = signer;
+      mPublicKey = publicKey;
+      mStatus = (publicKey == null) ? Status.NO_KEY : Status.INVALID;
+    }
+    private final long mKeyID;
+    private final KeyChecker.PKR mSigner;
+    private final PGPPublicKey mPublicKey;
+    private Status mStatus;
+  }
+
+  /**
+   * The symmetric algorithm and key protecting an encrypted message.
+   */
+  static final class SessionKey {
+    /**
+     * @param algorithm a SymmetricKeyAlgorithmTags value.
+     * @param key the raw key.
+     */
+    static final SessionKey create(int algorithm, byte[] key) {
+      return new SessionKey(algorithm, key.clone());
+    }
+    final int getAlgorithm() {
+      return mAlgorithm;
+    }
+    final byte[] getKey() {
+      return mKey.clone();
+    }
+    private SessionKey(int algorithm, byte[] key) {
+      mAlgorithm = algorithm;
+      mKey = key;
+    }
+    private PGPSessionKey toPGPSessionKey() {
+      return new PGPSessionKey(mAlgorithm, mKey.clone());
+    }
+    // Recreates the session data that was decrypted from a PKESK
+    // packet, before Bouncy Castle checked and completed it. X25519
+    // and X448 keys carry no checksum, and their algorithm is sent
+    // in the clear; version 6 packets leave it to the encrypted data.
+    private byte[] toSessionData(int keyAlgorithm, int pkeskVersion) {
+      boolean montgomery = (keyAlgorithm == PublicKeyAlgorithmTags.X25519)
+          || (keyAlgorithm == PublicKeyAlgorithmTags.X448);
+      boolean withAlgorithm = !montgomery
+          && (pkeskVersion != PublicKeyEncSessionPacket.VERSION_6);
+      int offset = withAlgorithm ? 1 : 0;
+      byte[] data = new byte[offset + mKey.length + (montgomery ? 0 : 2)];
+      if (withAlgorithm) {
+        data[0] = (byte) mAlgorithm;
+      }
+      System.arraycopy(mKey, 0, data, offset, mKey.length);
+      if (!montgomery) {
+        int check = 0;
+        for (byte b : mKey) {
+          check += b & 0xff;
+        }
+        data[data.length - 2] = (byte) (check >> 8);
+        data[data.length - 1] = (byte) check;
+      }
+      return data;
+    }
+    private final int mAlgorithm;
+    private final byte[] mKey;
+  }
+
   static final PGPPrivateKey extractDecryptionKey(PGPSecretKeyRing pskr,
-      String pass) throws PGPException {
+      String pass, Limits limits) throws PGPException, LimitExceededException {
     Iterator<PGPSecretKey> skit = Util.getTypedIterator(pskr.getSecretKeys(),
         PGPSecretKey.class);
 
@@ -100,16 +265,220 @@ public class Decryptor {
     }
 
     if (selected != null) {
-      return selected.extractPrivateKey(new BcPBESecretKeyDecryptorBuilder
-          (new BcPGPDigestCalculatorProvider()).build(pass.toCharArray()));
+      limits.checkS2K(selected);
+      Events.S2KExtraction event = new Events.S2KExtraction();
+      event.begin();
+      PGPPrivateKey ret = selected.extractPrivateKey(
+          new BcPBESecretKeyDecryptorBuilder(
+              new BcPGPDigestCalculatorProvider()).build(pass.toCharArray()));
+      if (event.shouldCommit()) {
+        event.keyID = selected.getKeyID();
+        S2K s2k = selected.getS2K();
+        if (s2k != null) {
+          event.s2kType = s2k.getType();
+          event.hashAlgorithm = s2k.getHashAlgorithm();
+          if (s2k.getType() == S2K.SALTED_AND_ITERATED) {
+            event.iterationCount = s2k.getIterationCount();
+          } else if (s2k.getType() == S2K.ARGON_2) {
+            event.memorySizeExponent = s2k.getMemorySizeExponent();
+            event.passes = s2k.getPasses();
+            event.parallelism = s2k.getParallelism();
+          }
+        }
+        event.commit();
+      }
+      return ret;
     } else {
       return null;
     }
   }
 
   static final Result decrypt(InputStream in, PGPPrivateKey decryptKey,
-      KeyChecker.PKR verify)
+      KeyChecker.PKR verify, Limits limits)
+      throws IOException, PGPException, SignatureException {
+    return decrypt(in, decryptKey, verify, limits, null);
+  }
+
+  /**
+   * As {@link #decrypt(InputStream, PGPPrivateKey, KeyChecker.PKR,
+   * Limits)}, but first looks for the session key in <tt>cache</tt>
+   * (if not null), and adds it there once recovered.
+   */
+  static final Result decrypt(InputStream in, PGPPrivateKey decryptKey,
+      KeyChecker.PKR verify, Limits limits, SessionKeyCache cache)
+      throws IOException, PGPException, SignatureException {
+    return decrypt(in, decryptKey, verifiersOf(verify), verify, limits,
+        cache, false);
+  }
+
+  /**
+   * As {@link #decrypt(InputStream, PGPPrivateKey, KeyChecker.PKR,
+   * Limits, SessionKeyCache)}, but the plaintext is kept in a pooled
+   * off-heap buffer, sized from the literal data length when the
+   * stream reports it. The result must be closed to wipe and release
+   * the buffer.
+   */
+  static final Result decryptToBuffer(InputStream in,
+      PGPPrivateKey decryptKey, KeyChecker.PKR verify, Limits limits,
+      SessionKeyCache cache)
+      throws IOException, PGPException, SignatureException {
+    return decrypt(in, decryptKey, verifiersOf(verify), verify, limits,
+        cache, true);
+  }
+
+  /**
+   * <p>Decrypts a message and checks each of its one-pass signatures
+   * against whichever of the <tt>verifiers</tt> holds the signing
+   * key. All signatures are checked during the same read of the
+   * plaintext, however many signers there are.</p>
+   *
+   * <p>Unlike the single key variants, signatures that are invalid
+   * or have no verifying key are not errors; they are reported
+   * through {@link Result#getSignatures}.</p>
+   *
+   * @param offHeap keeps the plaintext in a pooled off-heap buffer,
+   * as for {@link #decryptToBuffer}.
+   */
+  static final Result decryptVerifyingAll(InputStream in,
+      PGPPrivateKey decryptKey, List<KeyChecker.PKR> verifiers,
+      Limits limits, SessionKeyCache cache, boolean offHeap)
+      throws IOException, PGPException, SignatureException {
+    return decrypt(in, decryptKey, verifiers, null, limits, cache,
+        offHeap);
+  }
+
+  private static final Result decrypt(InputStream in,
+      PGPPrivateKey decryptKey, List<KeyChecker.PKR> verifiers,
+      KeyChecker.PKR required, Limits limits, SessionKeyCache cache,
+      boolean offHeap)
+      throws IOException, PGPException, SignatureException {
+    Util.CountingInputStream cin = new Util.CountingInputStream(in);
+    for (PGPEncryptedData ed : getEncryptedData(cin)) {
+      if (!(ed instanceof PGPPublicKeyEncryptedData)) {
+        continue;
+      }
+      PGPPublicKeyEncryptedData pked = (PGPPublicKeyEncryptedData) ed;
+      if (pked.getKeyIdentifier().getKeyId() == decryptKey.getKeyID()) {
+        return decryptSignedContent(pked,
+            new SessionKeyFactory(decryptKey, cache), cin, verifiers,
+            required, limits, offHeap);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Decrypts a message encrypted to a passphrase, rather than to a
+   * public key. Each symmetric-key encrypted session key packet in
+   * the message is tried in turn.
+   *
+   * @param cache keeps keys derived from the passphrase, or null.
+   * @return the result, or null if the message has no
+   * passphrase-encrypted session key.
+   * @throws PGPException if none of them could be decrypted with
+   * this passphrase.
+   */
+  static final Result decryptWithPassphrase(InputStream in,
+      String passphrase, KeyChecker.PKR verify, Limits limits,
+      S2KKeyCache cache)
       throws IOException, PGPException, SignatureException {
+    return decryptWithPassphrase(in, passphrase, verifiersOf(verify),
+        verify, limits, cache, false);
+  }
+
+  /**
+   * As {@link #decryptWithPassphrase(InputStream, String,
+   * KeyChecker.PKR, Limits, S2KKeyCache)}, but the plaintext is kept
+   * in a pooled off-heap buffer, as for {@link #decryptToBuffer}.
+   */
+  static final Result decryptToBufferWithPassphrase(InputStream in,
+      String passphrase, KeyChecker.PKR verify, Limits limits,
+      S2KKeyCache cache)
+      throws IOException, PGPException, SignatureException {
+    return decryptWithPassphrase(in, passphrase, verifiersOf(verify),
+        verify, limits, cache, true);
+  }
+
+  /**
+   * As {@link #decryptVerifyingAll}, but for a message encrypted to a
+   * passphrase, as for {@link #decryptWithPassphrase(InputStream,
+   * String, KeyChecker.PKR, Limits, S2KKeyCache)}.
+   */
+  static final Result decryptWithPassphraseVerifyingAll(InputStream in,
+      String passphrase, List<KeyChecker.PKR> verifiers, Limits limits,
+      S2KKeyCache cache, boolean offHeap)
+      throws IOException, PGPException, SignatureException {
+    return decryptWithPassphrase(in, passphrase, verifiers, null, limits,
+        cache, offHeap);
+  }
+
+  private static final Result decryptWithPassphrase(InputStream in,
+      String passphrase, List<KeyChecker.PKR> verifiers,
+      KeyChecker.PKR required, Limits limits, S2KKeyCache cache,
+      boolean offHeap)
+      throws IOException, PGPException, SignatureException {
+    PGPException failure = null;
+    for (PGPEncryptedData ed : getEncryptedData(in)) {
+      if (!(ed instanceof PGPPBEEncryptedData)) {
+        continue;
+      }
+      PGPPBEEncryptedData pbe = (PGPPBEEncryptedData) ed;
+      PassphraseFactory factory =
+          new PassphraseFactory(passphrase, limits, cache);
+      InputStream clear;
+      try {
+        clear = pbe.getDataStream(factory);
+      } catch (PGPException pe) {
+        if (factory.getLimitExceeded() != null) {
+          throw factory.getLimitExceeded();
+        }
+        // Probably encrypted to another passphrase, so keep looking.
+        failure = pe;
+        continue;
+      }
+
+      Result ret = verifySignedContent(clear, verifiers, required, limits,
+          null, offHeap);
+      if (pbe.isIntegrityProtected() && !pbe.verify()) {
+        ret.close();
+        throw new IOException("Integrity check failed");
+      }
+      return ret;
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return null;
+  }
+
+  /**
+   * Decrypts a message with a previously recovered session key,
+   * skipping the public key operation entirely.
+   */
+  static final Result decrypt(InputStream in, SessionKey sessionKey,
+      KeyChecker.PKR verify, Limits limits)
+      throws IOException, PGPException, SignatureException {
+    // Any of the encrypted session keys will do, as we don't need to
+    // decrypt it.
+    for (PGPEncryptedData ed : getEncryptedData(in)) {
+      if (ed instanceof PGPPublicKeyEncryptedData) {
+        return decryptSignedContent((PGPPublicKeyEncryptedData) ed,
+            sessionKey, verifiersOf(verify), verify, limits, false);
+      }
+    }
+    return null;
+  }
+
+  private static final List<KeyChecker.PKR> verifiersOf(
+      KeyChecker.PKR verify) {
+    if (verify == null) {
+      return Collections.<KeyChecker.PKR>emptyList();
+    }
+    return Collections.singletonList(verify);
+  }
+
+  private static final PGPEncryptedDataList getEncryptedData(
+      InputStream in) throws IOException {
     PGPObjectFactory pgpf =
         new PGPObjectFactory(PGPUtil.getDecoderStream(in),
             new BcKeyFingerprintCalculator());
@@ -123,50 +492,87 @@ public class Decryptor {
     } else {
       enclist = (PGPEncryptedDataList) (pgpf.nextObject());
     }
-    Iterator<PGPPublicKeyEncryptedData> pkedi =
-        Util.getTypedIterator(enclist.getEncryptedDataObjects(),
-            PGPPublicKeyEncryptedData.class);
-
-    if (pkedi == null) {
+    if (enclist == null) {
       throw new IOException("no encrypted data found!");
     }
-    while (pkedi.hasNext()) {
-      PGPPublicKeyEncryptedData pked = pkedi.next();
-      if (pked.getKeyID() == decryptKey.getKeyID()) {
-        return decryptSignedContent(pked, decryptKey, verify);
-      }
-    }
-    return null;
+    return enclist;
   }
 
+  // The event times the session key recovery, but is committed only
+  // once the rest of the message from <tt>in</tt> has been read, so
+  // that it can carry the message size.
   private static final Result decryptSignedContent(
-      PGPPublicKeyEncryptedData pked, PGPPrivateKey decryptKey,
-      KeyChecker.PKR verify)
+      PGPPublicKeyEncryptedData pked, SessionKeyFactory factory,
+      Util.CountingInputStream in, List<KeyChecker.PKR> verifiers,
+      KeyChecker.PKR required, Limits limits, boolean offHeap)
       throws IOException, PGPException, SignatureException {
 
-    InputStream clear = pked.getDataStream
-        (new BcPublicKeyDataDecryptorFactory(decryptKey));
+    Events.SessionKeyDecryption event = new Events.SessionKeyDecryption();
+    event.begin();
+    PGPSessionKey recovered = pked.getSessionKey(factory);
+    SessionKey sessionKey = new SessionKey(recovered.getAlgorithm(),
+        recovered.getKey());
+    // The session key checksum has now been verified, so the key is
+    // safe to cache.
+    factory.cacheRecovered(sessionKey);
+    event.end();
+    try {
+      return decryptSignedContent(pked, sessionKey, verifiers, required,
+          limits, offHeap);
+    } finally {
+      if (event.shouldCommit()) {
+        event.keyID = pked.getKeyIdentifier().getKeyId();
+        event.keyAlgorithm = factory.getKeyAlgorithm();
+        event.integrityProtected = pked.isIntegrityProtected();
+        event.cached = factory.isCached();
+        event.size = in.getCount();
+        event.commit();
+      }
+    }
+  }
 
-    Result ret = verifySignedContent(clear, verify);
+  // Bouncy Castle would rather the data was decrypted through the
+  // encrypted data list, but the integrity check is made on pked.
+  @SuppressWarnings("deprecation")
+  private static final Result decryptSignedContent(
+      PGPPublicKeyEncryptedData pked, SessionKey sessionKey,
+      List<KeyChecker.PKR> verifiers, KeyChecker.PKR required,
+      Limits limits, boolean offHeap)
+      throws IOException, PGPException, SignatureException {
+    InputStream clear = pked.getDataStream(new KnownKeyFactory(sessionKey));
+    Result ret = verifySignedContent(clear, verifiers, required, limits,
+        sessionKey, offHeap);
     // Also check the message integrity
     if (pked.isIntegrityProtected() && !pked.verify()) {
+      ret.close();
       throw new IOException("Integrity check failed");
     }
     return ret;
   }
 
+  // Every signature is checked by a verifier holding its key. If
+  // <tt>required</tt> is set, the message must also carry a signature
+  // from it, and all of its signatures must be valid.
   private static final Result verifySignedContent(InputStream inp,
-      KeyChecker.PKR verify)
+      List<KeyChecker.PKR> verifiers, KeyChecker.PKR required,
+      Limits limits, SessionKey sessionKey, boolean offHeap)
       throws IOException, PGPException, SignatureException {
+    Inspector.HeaderRecorder header = new Inspector.HeaderRecorder(inp);
     PGPObjectFactory plainFact =
-        new PGPObjectFactory(inp, new BcKeyFingerprintCalculator());
+        new PGPObjectFactory(header, new BcKeyFingerprintCalculator());
 
     Object msg = plainFact.nextObject();
 
-    // swap in uncompressed data if necessary
+    // swap in uncompressed data if necessary, guarding against
+    // decompression bombs.
     if (msg instanceof PGPCompressedData) {
       PGPCompressedData cData = (PGPCompressedData) msg;
-      plainFact = new PGPObjectFactory(cData.getDataStream(),
+      // The header of interest is inside, so stop copying the
+      // compressed stream.
+      header.stop();
+      header = new Inspector.HeaderRecorder(
+          limits.limitDecompressed(cData.getDataStream()));
+      plainFact = new PGPObjectFactory(header,
           new BcKeyFingerprintCalculator());
       msg = plainFact.nextObject();
     }
@@ -180,54 +586,316 @@ public class Decryptor {
       onePassSigList = null;
       lData = (PGPLiteralData) msg;
     }
+    // The literal data header has now been read, and the recording
+    // is wiped.
+    long declared = header.getDeclaredLength();
 
-    if ((verify != null) && (onePassSigList == null)) {
+    if ((required != null) && (onePassSigList == null)) {
       throw new IOException("Message is unsigned");
     }
 
-    PGPOnePassSignature onePassSig = null;
-    int onePassStartIndex = -1;
-    PGPPublicKey verifyKey = null;
-    if (verify != null) {
-      for (int i = 0; i < onePassSigList.size(); i++) {
-        List<PGPPublicKey> candidates =
-            verify.getSigningKeysByKeyID(onePassSigList.get(i).getKeyID());
-        if (candidates.size() == 1) {
-          onePassSig = onePassSigList.get(i);
-          onePassStartIndex = i;
-          verifyKey = candidates.get(0);
-          break;
-        }
+    int nsigs = (onePassSigList != null) ? onePassSigList.size() : 0;
+    List<SignatureResult> results = new ArrayList<SignatureResult>(nsigs);
+    List<PGPOnePassSignature> active = new ArrayList<PGPOnePassSignature>();
+    boolean foundRequired = false;
+    for (int i = 0; i < nsigs; i++) {
+      PGPOnePassSignature onePassSig = onePassSigList.get(i);
+      SignatureResult result = findSigner(onePassSig.getKeyID(), verifiers);
+      results.add(result);
+      if (result.getPublicKey() != null) {
+        onePassSig.init(new BcPGPContentVerifierBuilderProvider(),
+            result.getPublicKey());
+        active.add(onePassSig);
+        foundRequired |= (result.getSigner() == required);
       }
     }
 
-    if ((verify != null) && (onePassSig == null)) {
+    if ((required != null) && !foundRequired) {
       throw new IOException("Failed to find a signature from verifying key");
     }
 
-    if (onePassSig != null) {
-      onePassSig.init(new BcPGPContentVerifierBuilderProvider(), verifyKey);
-    }
-    ByteArrayOutputStream baout = new ByteArrayOutputStream();
+    Events.LiteralData event = new Events.LiteralData();
+    event.begin();
     InputStream lin = lData.getInputStream();
+    // Presize for the length in the literal data header, which the
+    // sender controls, so within reason. Partial length packets have
+    // no declared length, and the buffer grows instead.
+    int sizeHint = (int) Math.max(0L, Math.min(declared, MAX_SIZE_HINT));
+    ByteArrayOutputStream baout = null;
+    PlainTextBuffer direct = null;
+    if (offHeap) {
+      direct = PlainTextBuffer.allocate(sizeHint);
+    } else {
+      baout = new ByteArrayOutputStream(Math.max(sizeHint, 32));
+    }
+    boolean done = false;
     byte buf[] = new byte[8192];
-    int nread;
-    while ((nread = lin.read(buf)) > 0) {
-      baout.write(buf, 0, nread);
-      if (onePassSig != null) {
-        onePassSig.update(buf, 0, nread);
+    try {
+      int nread;
+      while ((nread = lin.read(buf)) > 0) {
+        limits.checkDeadline();
+        if (direct != null) {
+          direct.write(buf, 0, nread);
+        } else {
+          baout.write(buf, 0, nread);
+        }
+        for (PGPOnePassSignature onePassSig : active) {
+          onePassSig.update(buf, 0, nread);
+        }
+      }
+      long signerKeyID = 0L;
+      if (!active.isEmpty()) {
+        // A message cut short after its literal data has no
+        // trailers, so none of its signatures are valid.
+        Object trailers = plainFact.nextObject();
+        PGPSignatureList sigList = (trailers instanceof PGPSignatureList)
+            ? (PGPSignatureList) trailers
+            : new PGPSignatureList(new PGPSignature[0]);
+        for (int i = 0; i < nsigs; i++) {
+          SignatureResult result = results.get(i);
+          if (result.getPublicKey() == null) {
+            continue;
+          }
+          // One pass signature trailers occur in LIFO order compared
+          // to their location in the header.
+          int trailer = sigList.size() - 1 - i;
+          PGPSignature sig = (trailer >= 0) ? sigList.get(trailer) : null;
+          if ((sig != null) && (sig.getKeyID() == result.getKeyID())
+              && onePassSigList.get(i).verify(sig)) {
+            result.mStatus = SignatureResult.Status.VALID;
+            if (signerKeyID == 0L) {
+              signerKeyID = result.getKeyID();
+            }
+          } else if (result.getSigner() == required) {
+            throw new IOException("Invalid signature in message");
+          }
+        }
+      }
+      if (event.shouldCommit()) {
+        event.signerKeyID = signerKeyID;
+        event.signatures = nsigs;
+        event.bytes = (direct != null) ? direct.size() : baout.size();
+        event.commit();
+      }
+      Result ret = new Result(
+          (direct != null) ? null : baout.toByteArray(), direct,
+          lData.getFileName(), sessionKey,
+          Collections.unmodifiableList(results));
+      done = true;
+      return ret;
+    } finally {
+      if (direct != null) {
+        Arrays.fill(buf, (byte) 0);
+        if (!done) {
+          direct.close();
+        }
       }
     }
-    baout.close();
-    if (onePassSig != null) {
-      PGPSignatureList sigList = (PGPSignatureList) plainFact.nextObject();
-      // One pass signature trailers occur in LIFO order compared to their
-      // location in the header.
-      PGPSignature sig = sigList.get(sigList.size() - 1 - onePassStartIndex);
-      if (!onePassSig.verify(sig)) {
-        throw new IOException("Invalid signature in message");
+  }
+
+  // Looks for a verifier with exactly one usable signing key for the
+  // key id.
+  private static final SignatureResult findSigner(long keyID,
+      List<KeyChecker.PKR> verifiers) {
+    for (KeyChecker.PKR verify : verifiers) {
+      List<PGPPublicKey> candidates = verify.getSigningKeysByKeyID(keyID);
+      if (candidates.size() == 1) {
+        return new SignatureResult(keyID, verify, candidates.get(0));
       }
     }
-    return new Result(baout.toByteArray(), lData.getFileName());
+    return new SignatureResult(keyID, null, null);
   }
+
+  /**
+   * Recovers the session key with a private key, or a cache of
+   * earlier results. Bouncy Castle checks the recovered data and
+   * completes it with the symmetric algorithm, so only the finished
+   * key is ever cached; the data is then decrypted by a {@link
+   * KnownKeyFactory}.
+   */
+  private static final class SessionKeyFactory
+      extends BcPublicKeyDataDecryptorFactory {
+
+    private SessionKeyFactory(PGPPrivateKey decryptKey,
+        SessionKeyCache cache) {
+      super(decryptKey);
+      mDecryptKey = decryptKey;
+      mCache = cache;
+    }
+
+    @Override
+    public byte[] recoverSessionData(int keyAlgorithm, byte[][] secKeyData,
+        int pkeskVersion) throws PGPException {
+      mKeyAlgorithm = keyAlgorithm;
+      if (mCache != null) {
+        mDigest = SessionKeyCache.digest(mDecryptKey.getKeyID(),
+            keyAlgorithm, secKeyData);
+        SessionKey hit = mCache.get(mDigest);
+        if (hit != null) {
+          mCached = true;
+          return hit.toSessionData(keyAlgorithm, pkeskVersion);
+        }
+      }
+      return super.recoverSessionData(keyAlgorithm, secKeyData,
+          pkeskVersion);
+    }
+
+    private void cacheRecovered(SessionKey sessionKey) {
+      if ((mCache != null) && !mCached && (mDigest != null)) {
+        mCache.put(mDigest, sessionKey);
+      }
+    }
+
+    private int getKeyAlgorithm() {
+      return mKeyAlgorithm;
+    }
+
+    private boolean isCached() {
+      return mCached;
+    }
+
+    private final PGPPrivateKey mDecryptKey;
+    private final SessionKeyCache mCache;
+    private String mDigest = null;
+    private int mKeyAlgorithm = 0;
+    private boolean mCached = false;
+  }
+
+  /**
+   * Decrypts data with a known session key. CFB decryption is left
+   * to Bouncy Castle, and AEAD decryption to a {@link
+   * ParallelAEADDecryptor}.
+   */
+  private static final class KnownKeyFactory
+      extends BcSessionKeyDataDecryptorFactory {
+
+    private KnownKeyFactory(SessionKey sessionKey) {
+      super(sessionKey.toPGPSessionKey());
+    }
+
+    @Override
+    public PGPDataDecryptor createDataDecryptor(AEADEncDataPacket aeadData,
+        PGPSessionKey sessionKey) throws PGPException {
+      return ParallelAEADDecryptor.create(aeadData, sessionKey);
+    }
+
+    @Override
+    public PGPDataDecryptor createDataDecryptor(
+        SymmetricEncIntegrityPacket seipd, PGPSessionKey sessionKey)
+        throws PGPException {
+      return createSEIPDDecryptor(seipd, sessionKey);
+    }
+  }
+
+  /**
+   * Derives message keys from a passphrase, within the S2K limits,
+   * and through a cache of earlier derivations when one is given.
+   * The session key itself is still recovered by Bouncy Castle, and
+   * AEAD data is decrypted as for public keys.
+   */
+  private static final class PassphraseFactory
+      extends BcPBEDataDecryptorFactory {
+
+    private PassphraseFactory(String passphrase, Limits limits,
+        S2KKeyCache cache) {
+      super(passphrase.toCharArray(), new BcPGPDigestCalculatorProvider());
+      mPassphrase = passphrase;
+      mLimits = limits;
+      mCache = cache;
+    }
+
+    @Override
+    public byte[] makeKeyFromPassPhrase(int keyAlgorithm, S2K s2k)
+        throws PGPException {
+      try {
+        mLimits.checkS2K(s2k, "message");
+      } catch (LimitExceededException lee) {
+        // Only a PGPException can be thrown from here, so the caller
+        // looks for this afterwards.
+        mLimitExceeded = lee;
+        throw new PGPException(lee.getMessage(), lee);
+      }
+
+      Events.S2KDerivation event = new Events.S2KDerivation();
+      event.begin();
+      long start = System.nanoTime();
+      String digest = null;
+      byte[] ret = null;
+      if (mCache != null) {
+        try {
+          digest = S2KKeyCache.digest(keyAlgorithm, s2k, mPassphrase);
+        } catch (IOException ioe) {
+          throw new PGPException("Could not encode S2K", ioe);
+        }
+        ret = mCache.get(digest);
+      }
+      boolean cached = (ret != null);
+      if (!cached) {
+        ret = super.makeKeyFromPassPhrase(keyAlgorithm, s2k);
+        if (mCache != null) {
+          mCache.put(digest, ret, System.nanoTime() - start);
+        }
+      }
+      PerfBaseline.phase("kdf", start);
+      if (event.shouldCommit()) {
+        event.keyAlgorithm = keyAlgorithm;
+        if (s2k != null) {
+          event.s2kType = s2k.getType();
+          event.hashAlgorithm = s2k.getHashAlgorithm();
+          if (s2k.getType() == S2K.SALTED_AND_ITERATED) {
+            event.iterationCount = s2k.getIterationCount();
+          } else if (s2k.getType() == S2K.ARGON_2) {
+            event.memorySizeExponent = s2k.getMemorySizeExponent();
+            event.passes = s2k.getPasses();
+            event.parallelism = s2k.getParallelism();
+          }
+        }
+        event.cached = cached;
+        event.commit();
+      }
+      return ret;
+    }
+
+    @Override
+    public PGPDataDecryptor createDataDecryptor(AEADEncDataPacket aeadData,
+        PGPSessionKey sessionKey) throws PGPException {
+      return ParallelAEADDecryptor.create(aeadData, sessionKey);
+    }
+
+    @Override
+    public PGPDataDecryptor createDataDecryptor(
+        SymmetricEncIntegrityPacket seipd, PGPSessionKey sessionKey)
+        throws PGPException {
+      return createSEIPDDecryptor(seipd, sessionKey);
+    }
+
+    private LimitExceededException getLimitExceeded() {
+      return mLimitExceeded;
+    }
+
+    private final String mPassphrase;
+    private final Limits mLimits;
+    private final S2KKeyCache mCache;
+    private LimitExceededException mLimitExceeded = null;
+  }
+
+  // Version 1 SEIPD packets use CFB mode with a trailing MDC, and
+  // must be decrypted in order; version 2 packets are chunked AEAD.
+  private static final PGPDataDecryptor createSEIPDDecryptor(
+      SymmetricEncIntegrityPacket seipd, PGPSessionKey sessionKey)
+      throws PGPException {
+    if (seipd.getVersion() == SymmetricEncIntegrityPacket.VERSION_2) {
+      return ParallelAEADDecryptor.create(seipd, sessionKey);
+    }
+    return SYMMETRIC.createDataDecryptor(seipd, sessionKey);
+  }
+
+  // The largest buffer to allocate up front for a literal body.
+  private static final long MAX_SIZE_HINT = 16L << 20;
+
+  // Supplies symmetric decryptors for a raw session key. The
+  // passphrase is never used, as we don't ask it to derive a key.
+  private static final BcPBEDataDecryptorFactory SYMMETRIC =
+      new BcPBEDataDecryptorFactory(new char[0],
+          new BcPGPDigestCalculatorProvider());
 }
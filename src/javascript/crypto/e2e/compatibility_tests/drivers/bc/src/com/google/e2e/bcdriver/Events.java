@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * <p>Java Flight Recorder events for the expensive steps in the
+ * driver. Events over whole keyrings or messages carry their size,
+ * so costs can be set against the size of the input.</p>
+ *
+ * <p>Callers follow the usual pattern of <tt>begin()</tt> before the
+ * work and <tt>shouldCommit()</tt> before filling in fields, so a
+ * disabled event costs little more than the allocation, which the
+ * JIT can usually remove.</p>
+ */
+final class Events {
+
+  private static final String CATEGORY = "Bouncy Castle Driver";
+
+  @Name("com.google.e2e.bcdriver.KeyringParse")
+  @Label("Keyring Parse")
+  @Description("Parsing an armored or binary keyring")
+  @Category(CATEGORY)
+  static final class KeyringParse extends Event {
+    @Label("Key ID")
+    @Description("Key ID of the primary key")
+    long keyID;
+
+    @Label("Secret")
+    boolean secret;
+
+    @Label("Keys")
+    @Description("Number of keys, including subkeys")
+    int keyCount;
+
+    @Label("Input Size")
+    @DataAmount
+    long size;
+
+    @Label("Skipped Signatures")
+    @Description("Third-party signatures left undecoded")
+    int skippedSignatures;
+  }
+
+  @Name("com.google.e2e.bcdriver.KeyValidation")
+  @Label("Key Validation")
+  @Description("Checking all self-signatures on a keyring")
+  @Category(CATEGORY)
+  static final class KeyValidation extends Event {
+    @Label("Key ID")
+    long keyID;
+
+    @Label("Status")
+    String status;
+
+    @Label("User IDs")
+    @Description("Number of verified user ids")
+    int userIDCount;
+
+    @Label("Subkeys")
+    @Description("Number of verified subkeys")
+    int subkeyCount;
+
+    @Label("Keyring Size")
+    @Description("Encoded size of the keyring as validated")
+    @DataAmount
+    long size;
+  }
+
+  @Name("com.google.e2e.bcdriver.SignatureCheck")
+  @Label("Signature Check")
+  @Description("Verifying one signature during key validation")
+  @Category(CATEGORY)
+  static final class SignatureCheck extends Event {
+    @Label("Issuer Key ID")
+    long issuerKeyID;
+
+    @Label("Target Key ID")
+    @Description("Key ID of the key the signature is over")
+    long targetKeyID;
+
+    @Label("Signature Type")
+    int signatureType;
+
+    @Label("Key Algorithm")
+    int keyAlgorithm;
+
+    @Label("Valid")
+    boolean valid;
+  }
+
+  @Name("com.google.e2e.bcdriver.S2KExtraction")
+  @Label("S2K Key Extraction")
+  @Description("Unlocking a secret key with a passphrase")
+  @Category(CATEGORY)
+  static final class S2KExtraction extends Event {
+    @Label("Key ID")
+    long keyID;
+
+    @Label("S2K Type")
+    int s2kType;
+
+    @Label("Hash Algorithm")
+    int hashAlgorithm;
+
+    @Label("Iterations")
+    @Description("Bytes hashed by an iterated and salted S2K")
+    long iterationCount;
+
+    @Label("Argon2 Memory Exponent")
+    @Description("Argon2 memory use, as a power of two in KiB")
+    int memorySizeExponent;
+
+    @Label("Argon2 Passes")
+    int passes;
+
+    @Label("Argon2 Parallelism")
+    int parallelism;
+  }
+
+  @Name("com.google.e2e.bcdriver.S2KDerivation")
+  @Label("S2K Key Derivation")
+  @Description("Deriving a message key from a passphrase")
+  @Category(CATEGORY)
+  static final class S2KDerivation extends Event {
+    @Label("Symmetric Algorithm")
+    int keyAlgorithm;
+
+    @Label("S2K Type")
+    int s2kType;
+
+    @Label("Hash Algorithm")
+    int hashAlgorithm;
+
+    @Label("Iterations")
+    @Description("Bytes hashed by an iterated and salted S2K")
+    long iterationCount;
+
+    @Label("Argon2 Memory Exponent")
+    @Description("Argon2 memory use, as a power of two in KiB")
+    int memorySizeExponent;
+
+    @Label("Argon2 Passes")
+    int passes;
+
+    @Label("Argon2 Parallelism")
+    int parallelism;
+
+    @Label("Cached")
+    @Description("True if the derived key was found in the cache")
+    boolean cached;
+  }
+
+  @Name("com.google.e2e.bcdriver.SessionKeyDecryption")
+  @Label("Session Key Decryption")
+  @Description("Recovering the session key and starting decryption")
+  @Category(CATEGORY)
+  static final class SessionKeyDecryption extends Event {
+    @Label("Key ID")
+    long keyID;
+
+    @Label("Key Algorithm")
+    int keyAlgorithm;
+
+    @Label("Integrity Protected")
+    boolean integrityProtected;
+
+    @Label("Cached")
+    @Description("True if the session key was supplied or cached")
+    boolean cached;
+
+    @Label("Message Size")
+    @Description("Bytes of the message read, armored or not")
+    @DataAmount
+    long size;
+  }
+
+  @Name("com.google.e2e.bcdriver.LiteralData")
+  @Label("Literal Data")
+  @Description("Reading, and possibly verifying, the literal data")
+  @Category(CATEGORY)
+  static final class LiteralData extends Event {
+    @Label("Signer Key ID")
+    @Description("Key ID of the first verified signer, or zero if none")
+    long signerKeyID;
+
+    @Label("Signatures")
+    @Description("Number of one-pass signatures in the message")
+    int signatures;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+  }
+
+  private Events() {
+  }
+}
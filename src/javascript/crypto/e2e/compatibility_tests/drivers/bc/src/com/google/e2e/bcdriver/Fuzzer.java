@@ -0,0 +1,803 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedDataList;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPObjectFactory;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.util.encoders.Hex;
+import org.bouncycastle.util.io.Streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * <p>A fuzzer that searches for inputs which are slow or expensive to
+ * process, as well as ones that make the driver fail with something
+ * other than a clean rejection.</p>
+ *
+ * <p>Usage:
+ * <pre>
+ * Main fuzz [--target keyring|validate|decrypt] [--seconds n]
+ *      [--runs n] [--slow-ms n] [--max-alloc-ratio n] [--max-len n]
+ *      [--seed n] [--out dir] root
+ * </pre>
+ * Seeds are taken from the testcases under root: keyrings from the
+ * import tests, and the decrypted contents of the messages in the
+ * decrypt tests. Decrypt inputs are encrypted again to the test's key
+ * before each run, so mutations reach the compressed, literal and
+ * signature packets inside the message.</p>
+ *
+ * <p>Besides byte-level mutations, whole packets are repeated,
+ * dropped or wrapped in compressed packets, which is how keys with
+ * huge numbers of userids, signatures or subkeys and deeply nested
+ * messages are reached.</p>
+ *
+ * <p>Without coverage instrumentation, an input is kept when it
+ * shows new behavior: a different outcome or failing location, or a
+ * higher bucket of time or allocation per input byte. The search is
+ * thereby steered towards inputs whose cost grows faster than their
+ * size. Inputs exceeding <tt>--slow-ms</tt>, allocating more than
+ * <tt>--max-alloc-ratio</tt> bytes per input byte, hitting a {@link
+ * Limits} deadline, or failing with an unchecked exception are
+ * written to <tt>--out</tt> as testcases that the driver can run.
+ * The exit status is 1 if a crash was found, 2 if only slow inputs
+ * were found, and 0 otherwise.</p>
+ *
+ * <p>{@link #fuzzerTestOneInput} is also an entry point for Jazzer,
+ * which supplies coverage guidance. The target is chosen by the
+ * <tt>bcdriver.fuzz.target</tt> system property, and the decrypt
+ * target reads its key from the first decrypt test under
+ * <tt>bcdriver.fuzz.root</tt>.</p>
+ */
+public final class Fuzzer {
+
+  enum Target { KEYRING, VALIDATE, DECRYPT };
+
+  /**
+   * Jazzer initialization hook.
+   */
+  public static void fuzzerInitialize() throws IOException, PGPException {
+    sTarget = Target.valueOf(System.getProperty(
+            "bcdriver.fuzz.target", "validate").toUpperCase());
+    if (sTarget == Target.DECRYPT) {
+      List<Seed> seeds = loadSeeds(
+          new File(System.getProperty("bcdriver.fuzz.root", ".")), sTarget);
+      if (seeds.isEmpty()) {
+        throw new IllegalStateException("No decrypt tests found");
+      }
+      sSeed = seeds.get(0);
+    }
+  }
+
+  /**
+   * Jazzer entry point. Unchecked exceptions from the target are
+   * rethrown so they are reported as findings.
+   */
+  public static void fuzzerTestOneInput(byte[] data) throws Throwable {
+    Outcome outcome = execute(sTarget, sSeed, data, Limits.DEFAULT);
+    if (outcome.isCrash()) {
+      throw outcome.getError();
+    }
+  }
+
+  static final int run(String args[]) throws IOException, PGPException {
+    Target target = Target.VALIDATE;
+    long seconds = 60L;
+    long runs = 0L;
+    long slowMillis = 1000L;
+    long maxAllocRatio = 4096L;
+    int maxLen = 256 * 1024;
+    long seed = System.nanoTime();
+    File out = new File(".");
+    File root = null;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--target")) {
+        target = Target.valueOf(requireValue(args, i++).toUpperCase());
+      } else if (args[i].equals("--seconds")) {
+        seconds = Long.parseLong(requireValue(args, i++));
+      } else if (args[i].equals("--runs")) {
+        runs = Long.parseLong(requireValue(args, i++));
+      } else if (args[i].equals("--slow-ms")) {
+        slowMillis = Long.parseLong(requireValue(args, i++));
+      } else if (args[i].equals("--max-alloc-ratio")) {
+        maxAllocRatio = Long.parseLong(requireValue(args, i++));
+      } else if (args[i].equals("--max-len")) {
+        maxLen = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--seed")) {
+        seed = Long.parseLong(requireValue(args, i++));
+      } else if (args[i].equals("--out")) {
+        out = new File(requireValue(args, i++));
+      } else if (root == null) {
+        root = new File(args[i]);
+      } else {
+        throw new IllegalArgumentException("Unexpected argument " + args[i]);
+      }
+    }
+    if (root == null) {
+      throw new IllegalArgumentException("Missing testcase directory");
+    }
+
+    List<Seed> seeds = loadSeeds(root, target);
+    if (seeds.isEmpty()) {
+      throw new IllegalArgumentException("No " + target
+          + " seeds found under " + root);
+    }
+    if (!out.isDirectory() && !out.mkdirs()) {
+      throw new IOException("Unable to create " + out);
+    }
+
+    // A deadline well past --slow-ms stops runaway inputs, which are
+    // then saved like any other slow input.
+    Limits limits = new Limits(Limits.DEFAULT.getMaxDecompressedBytes(),
+        Limits.DEFAULT.getMaxS2KIterations(), Integer.MAX_VALUE,
+        Math.max(10L * slowMillis, 1000L));
+    Random random = new Random(seed);
+    Set<String> features = new HashSet<String>();
+    List<Candidate> corpus = new ArrayList<Candidate>();
+    for (Seed s : seeds) {
+      Outcome outcome = execute(target, s, s.mData, limits.start());
+      features.addAll(outcome.getFeatures(s.mData.length));
+      corpus.add(new Candidate(s.mData, s, outcome));
+    }
+    println("Fuzzing " + target + " from " + corpus.size()
+        + " seeds, random seed " + seed);
+
+    int crashes = 0;
+    int slow = 0;
+    long start = System.nanoTime();
+    long deadline = start + seconds * 1000000000L;
+    long lastReport = start;
+    long count = 0L;
+    while (((runs == 0L) || (count < runs))
+        && ((seconds == 0L) || (System.nanoTime() < deadline))) {
+      Candidate parent = pick(corpus, random);
+      byte[] data = mutate(parent.mData, corpus, target, random, maxLen);
+      Outcome outcome = execute(target, parent.mSeed, data, limits.start());
+      count++;
+
+      boolean novel = false;
+      for (String feature : outcome.getFeatures(data.length)) {
+        novel |= features.add(feature);
+      }
+      if (novel) {
+        Candidate candidate = new Candidate(data, parent.mSeed, outcome);
+        corpus.add(candidate);
+        boolean expensive = outcome.isLimit()
+            || (outcome.getMillis() > slowMillis)
+            || (outcome.getAllocated()
+                > maxAllocRatio * Math.max(data.length, 1024));
+        if (outcome.isCrash() || expensive) {
+          String name = save(out, target, candidate, limits.start());
+          println((outcome.isCrash() ? "CRASH " : "SLOW ") + name + ": "
+              + outcome.describe() + ", " + data.length + " bytes");
+          if (outcome.isCrash()) {
+            crashes++;
+          } else {
+            slow++;
+          }
+        }
+      }
+
+      long now = System.nanoTime();
+      if (now - lastReport > 10000000000L) {
+        lastReport = now;
+        println(count + " runs, " + corpus.size() + " inputs, "
+            + features.size() + " features, "
+            + (count * 1000000000L / (now - start)) + " runs/s");
+      }
+    }
+    println(count + " runs, " + corpus.size() + " inputs, "
+        + crashes + " crashes, " + slow + " slow inputs");
+    return (crashes > 0) ? 1 : ((slow > 0) ? 2 : 0);
+  }
+
+  // The testcase an input was derived from. Decrypt seeds carry the
+  // key needed to encrypt and decrypt their mutants.
+  private static final class Seed {
+    private Seed(TestInput input, byte[] data) {
+      mInput = input;
+      mData = data;
+    }
+    private final TestInput mInput;
+    private final byte[] mData;
+    private PGPPrivateKey mDecryptKey = null;
+    private PGPPublicKey mRecipient = null;
+  }
+
+  private static final class Candidate {
+    private Candidate(byte[] data, Seed seed, Outcome outcome) {
+      mData = data;
+      mSeed = seed;
+      mOutcome = outcome;
+    }
+    private final byte[] mData;
+    private final Seed mSeed;
+    private final Outcome mOutcome;
+  }
+
+  private static final class Outcome {
+    boolean isCrash() {
+      return (mError != null) && !isLimit() && !isRejection(mError);
+    }
+    boolean isLimit() {
+      return findLimitExceeded(mError) != null;
+    }
+    Throwable getError() {
+      return mError;
+    }
+    Object getStatus() {
+      return mStatus;
+    }
+    long getMillis() {
+      return mNanos / 1000000L;
+    }
+    long getAllocated() {
+      return mAllocated;
+    }
+    String describe() {
+      return getResult() + " in " + getMillis() + "ms, "
+          + mAllocated + " bytes allocated";
+    }
+
+    // Outcome and failing location, plus the log2 buckets of time and
+    // allocation per input byte.
+    List<String> getFeatures(int length) {
+      List<String> ret = new ArrayList<String>();
+      ret.add(getResult());
+      int len = Math.max(length, 1);
+      ret.add("time:" + (63 - Long.numberOfLeadingZeros(mNanos / len)));
+      ret.add("alloc:"
+          + (63 - Long.numberOfLeadingZeros(mAllocated / len)));
+      return ret;
+    }
+
+    private String getResult() {
+      if (mError == null) {
+        return (mStatus != null) ? ("ok:" + mStatus) : "ok";
+      }
+      if (isLimit()) {
+        return "limit:" + findLimitExceeded(mError).getMessage();
+      }
+      return (isCrash() ? "crash:" : "error:")
+          + mError.getClass().getName() + "@" + locate(mError);
+    }
+
+    private Outcome(Throwable error, Object status, long nanos,
+        long allocated) {
+      mError = error;
+      mStatus = status;
+      mNanos = nanos;
+      mAllocated = allocated;
+    }
+    private final Throwable mError;
+    private final Object mStatus;
+    private final long mNanos;
+    private final long mAllocated;
+  }
+
+  private static final Outcome execute(Target target, Seed seed,
+      byte[] data, Limits limits) {
+    byte[] input = data;
+    if (target == Target.DECRYPT) {
+      try {
+        input = encrypt(seed.mRecipient, data);
+      } catch (Exception ex) {
+        throw new IllegalStateException("Unable to encrypt input", ex);
+      }
+    }
+
+    Object status = null;
+    Throwable error = null;
+    long allocated = allocatedBytes();
+    long start = System.nanoTime();
+    try {
+      switch (target) {
+        case KEYRING:
+          Util.readPublicKeyRing(new ByteArrayInputStream(input));
+          break;
+        case VALIDATE:
+          status = KeyChecker.validate(LazyKeyRing.read(
+                  new ByteArrayInputStream(input)).getSelfSigned(), limits)
+              .getStatus();
+          break;
+        case DECRYPT:
+          Decryptor.decrypt(new ByteArrayInputStream(input),
+              seed.mDecryptKey, null, limits);
+          break;
+      }
+    } catch (Throwable t) {
+      error = t;
+    }
+    long nanos = System.nanoTime() - start;
+    return new Outcome(error, status, nanos, allocatedBytes() - allocated);
+  }
+
+  // Exceptions by which the driver reports bad input.
+  private static final boolean isRejection(Throwable t) {
+    return (t instanceof IOException) || (t instanceof PGPException)
+        || (t instanceof SignatureException);
+  }
+
+  private static final LimitExceededException findLimitExceeded(
+      Throwable t) {
+    while (t != null) {
+      if (t instanceof LimitExceededException) {
+        return (LimitExceededException) t;
+      }
+      t = t.getCause();
+    }
+    return null;
+  }
+
+  // The innermost frame within Bouncy Castle or the driver.
+  private static final String locate(Throwable t) {
+    for (StackTraceElement frame : t.getStackTrace()) {
+      String cls = frame.getClassName();
+      if (cls.startsWith("org.bouncycastle.")
+          || cls.startsWith("com.google.e2e.")) {
+        return cls + "." + frame.getMethodName() + ":"
+            + frame.getLineNumber();
+      }
+    }
+    return "?";
+  }
+
+  private static final long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      long ret = ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+      return Math.max(ret, 0L);
+    }
+    return 0L;
+  }
+
+  private static final List<Seed> loadSeeds(File root, Target target)
+      throws IOException, PGPException {
+    List<String> tests = new ArrayList<String>();
+    Main.collectTests(root, "", tests);
+    List<Seed> ret = new ArrayList<Seed>();
+    for (String path : tests) {
+      TestInput input = TestInput.load(root, path);
+      JsonObject config;
+      try {
+        config = input.getConfig();
+      } catch (IOException ioe) {
+        continue;
+      }
+      if (!config.has("type")) {
+        continue;
+      }
+      String type = config.get("type").getAsString();
+      String asc = input.getBaseName() + ".asc";
+      if ((target != Target.DECRYPT) && type.equals("import")) {
+        ret.add(new Seed(input, dearmor(input.getBytes(asc))));
+      } else if ((target == Target.DECRYPT) && type.equals("decrypt")) {
+        Seed seed = loadDecryptSeed(input, config);
+        if (seed != null) {
+          ret.add(seed);
+        }
+      }
+    }
+    return ret;
+  }
+
+  // Recovers the packets inside the test's message, which are what
+  // the decrypt target mutates.
+  private static final Seed loadDecryptSeed(TestInput input,
+      JsonObject config) throws IOException, PGPException {
+    PGPSecretKeyRing skr = Util.readSecretKeyRing(
+        input.open(config.get("decryptKey").getAsString()));
+    PGPPrivateKey key = Decryptor.extractDecryptionKey(skr,
+        config.get("passphrase").getAsString(), Limits.DEFAULT);
+    if (key == null) {
+      return null;
+    }
+
+    PGPObjectFactory pgpf = new PGPObjectFactory(
+        PGPUtil.getDecoderStream(input.open(input.getBaseName() + ".asc")),
+        new BcKeyFingerprintCalculator());
+    for (Object obj = pgpf.nextObject(); obj != null;
+         obj = pgpf.nextObject()) {
+      if (!(obj instanceof PGPEncryptedDataList)) {
+        continue;
+      }
+      Iterator<?> it = ((PGPEncryptedDataList) obj).getEncryptedDataObjects();
+      while (it.hasNext()) {
+        Object ed = it.next();
+        if (!(ed instanceof PGPPublicKeyEncryptedData)) {
+          continue;
+        }
+        PGPPublicKeyEncryptedData pked = (PGPPublicKeyEncryptedData) ed;
+        long keyID = pked.getKeyIdentifier().getKeyId();
+        PGPSecretKey secret = skr.getSecretKey(keyID);
+        if ((keyID != key.getKeyID()) || (secret == null)) {
+          continue;
+        }
+        InputStream in = pked.getDataStream(
+            new BcPublicKeyDataDecryptorFactory(key));
+        Seed ret = new Seed(input, Streams.readAll(in));
+        ret.mDecryptKey = key;
+        ret.mRecipient = secret.getPublicKey();
+        return ret;
+      }
+    }
+    return null;
+  }
+
+  private static final byte[] dearmor(byte[] data) throws IOException {
+    return Streams.readAll(
+        PGPUtil.getDecoderStream(new ByteArrayInputStream(data)));
+  }
+
+  private static final byte[] armor(byte[] data) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    ArmoredOutputStream aout = new ArmoredOutputStream(bout);
+    aout.write(data);
+    aout.close();
+    return bout.toByteArray();
+  }
+
+  private static final byte[] encrypt(PGPPublicKey recipient, byte[] data)
+      throws IOException, PGPException {
+    PGPEncryptedDataGenerator gen = new PGPEncryptedDataGenerator(
+        new BcPGPDataEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_128)
+        .setWithIntegrityPacket(true));
+    gen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(recipient));
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    OutputStream out = gen.open(bout, data.length);
+    out.write(data);
+    out.close();
+    return bout.toByteArray();
+  }
+
+  private static final byte[] compress(byte[] data) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    PGPCompressedDataGenerator gen =
+        new PGPCompressedDataGenerator(CompressionAlgorithmTags.ZIP);
+    OutputStream out = gen.open(bout);
+    out.write(data);
+    out.close();
+    return bout.toByteArray();
+  }
+
+  // Prefers recent additions, which tend to be the most expensive
+  // inputs found so far.
+  private static final Candidate pick(List<Candidate> corpus,
+      Random random) {
+    int n = corpus.size();
+    if (random.nextBoolean()) {
+      return corpus.get(n - 1 - random.nextInt(Math.min(n, 8)));
+    }
+    return corpus.get(random.nextInt(n));
+  }
+
+  private static final byte[] mutate(byte[] data, List<Candidate> corpus,
+      Target target, Random random, int maxLen) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    List<int[]> packets = packets(data);
+    int pos = (data.length > 0) ? random.nextInt(data.length) : 0;
+    int span = (data.length > pos) ?
+        1 + random.nextInt(Math.min(data.length - pos, 64)) : 0;
+
+    switch (random.nextInt(9)) {
+      case 0:
+        // Flip one bit.
+        byte[] copy = data.clone();
+        if (copy.length > 0) {
+          copy[pos] ^= (byte) (1 << random.nextInt(8));
+        }
+        return copy;
+
+      case 1:
+        // Overwrite a byte with a boundary value.
+        copy = data.clone();
+        if (copy.length > 0) {
+          copy[pos] = INTERESTING[random.nextInt(INTERESTING.length)];
+        }
+        return copy;
+
+      case 2:
+        // Insert random bytes.
+        out.write(data, 0, pos);
+        for (int i = random.nextInt(8); i >= 0; i--) {
+          out.write(random.nextInt(256));
+        }
+        out.write(data, pos, data.length - pos);
+        break;
+
+      case 3:
+        // Delete a range.
+        out.write(data, 0, pos);
+        out.write(data, pos + span, data.length - pos - span);
+        break;
+
+      case 4:
+        // Repeat a range.
+        out.write(data, 0, pos + span);
+        out.write(data, pos, data.length - pos);
+        break;
+
+      case 5:
+        // Splice in the tail of another input from the same seed.
+        Candidate other = corpus.get(random.nextInt(corpus.size()));
+        byte[] odata = other.mData;
+        out.write(data, 0, pos);
+        int opos = (odata.length > 0) ? random.nextInt(odata.length) : 0;
+        out.write(odata, opos, odata.length - opos);
+        break;
+
+      case 6:
+        // Repeat a run of packets many times, e.g. a userid and its
+        // certification.
+        if (packets.isEmpty()) {
+          return data;
+        }
+        int first = random.nextInt(packets.size());
+        int last = Math.min(packets.size() - 1,
+            first + random.nextInt(3));
+        int from = packets.get(first)[0];
+        int to = packets.get(last)[1];
+        int copies = 1 << (1 + random.nextInt(8));
+        out.write(data, 0, to);
+        for (int i = 0; (i < copies) && (out.size() < maxLen); i++) {
+          out.write(data, from, to - from);
+        }
+        out.write(data, to, data.length - to);
+        break;
+
+      case 7:
+        // Drop a packet.
+        if (packets.isEmpty()) {
+          return data;
+        }
+        int[] packet = packets.get(random.nextInt(packets.size()));
+        out.write(data, 0, packet[0]);
+        out.write(data, packet[1], data.length - packet[1]);
+        break;
+
+      default:
+        // Wrap everything in another compressed packet.
+        return compress(data);
+    }
+    byte[] ret = out.toByteArray();
+    return (ret.length > maxLen) ? data : ret;
+  }
+
+  // Returns the [start, end) offsets of the top-level packets in
+  // data, stopping at the first malformed or indeterminate length.
+  static final List<int[]> packets(byte[] data) {
+    List<int[]> ret = new ArrayList<int[]>();
+    int pos = 0;
+    while (pos < data.length) {
+      int tag = data[pos] & 0xff;
+      if ((tag & 0x80) == 0) {
+        break;
+      }
+      int hdr;
+      long len;
+      if ((tag & 0x40) != 0) {
+        if (pos + 1 >= data.length) {
+          break;
+        }
+        int b0 = data[pos + 1] & 0xff;
+        if (b0 < 192) {
+          hdr = 2;
+          len = b0;
+        } else if (b0 < 224) {
+          if (pos + 2 >= data.length) {
+            break;
+          }
+          hdr = 3;
+          len = ((b0 - 192) << 8) + (data[pos + 2] & 0xff) + 192;
+        } else if (b0 == 255) {
+          hdr = 6;
+          len = readLength(data, pos + 2, 4);
+        } else {
+          break; // partial length
+        }
+      } else {
+        int lengthType = tag & 0x3;
+        if (lengthType == 3) {
+          break; // indeterminate length
+        }
+        int n = 1 << lengthType;
+        hdr = 1 + n;
+        len = readLength(data, pos + 1, n);
+      }
+      if ((len < 0) || (pos + hdr + len > data.length)) {
+        break;
+      }
+      int end = (int) (pos + hdr + len);
+      ret.add(new int[] { pos, end });
+      pos = end;
+    }
+    return ret;
+  }
+
+  private static final long readLength(byte[] data, int pos, int n) {
+    if (pos + n > data.length) {
+      return -1L;
+    }
+    long ret = 0L;
+    for (int i = 0; i < n; i++) {
+      ret = (ret << 8) | (data[pos + i] & 0xff);
+    }
+    return ret;
+  }
+
+  // Writes the input as a testcase the driver can run, with the
+  // outcome it should have once the cost is fixed. Returns the
+  // testcase name.
+  private static final String save(File dir, Target target,
+      Candidate candidate, Limits limits) throws IOException {
+    byte[] input = candidate.mData;
+    Outcome outcome = candidate.mOutcome;
+    Seed seed = candidate.mSeed;
+
+    String name = "fuzz_" + target.name().toLowerCase() + "_"
+        + sha256(input).substring(0, 16);
+    JsonObject config = new JsonObject();
+    byte[] asc;
+    if (target == Target.DECRYPT) {
+      try {
+        asc = armor(encrypt(seed.mRecipient, input));
+      } catch (PGPException pe) {
+        throw new IOException("Unable to encrypt input", pe);
+      }
+      JsonObject original = seed.mInput.getConfig();
+      config.addProperty("type", "decrypt");
+      for (String key : new String[] { "decryptKey", "passphrase" }) {
+        config.add(key, original.get(key));
+      }
+      String keyName = original.get("decryptKey").getAsString();
+      File keyFile = new File(dir, keyName);
+      if (!keyFile.exists()) {
+        write(keyFile, seed.mInput.getBytes(keyName));
+      }
+    } else {
+      asc = armor(input);
+      config.addProperty("type", "import");
+      if (outcome.getError() == null) {
+        addExpectedImport(config, input, outcome, limits);
+      }
+    }
+    if (outcome.isLimit()) {
+      config.addProperty("expect_limit", Boolean.TRUE);
+    } else if (outcome.getError() != null) {
+      config.addProperty("expect_error", Boolean.TRUE);
+    }
+
+    JsonObject fuzz = new JsonObject();
+    fuzz.addProperty("target", target.name().toLowerCase());
+    fuzz.addProperty("outcome", outcome.getResult());
+    fuzz.addProperty("millis", Long.valueOf(outcome.getMillis()));
+    fuzz.addProperty("allocatedBytes",
+        Long.valueOf(outcome.getAllocated()));
+    fuzz.addProperty("seed", seed.mInput.getPath());
+    config.add("fuzz", fuzz);
+
+    write(new File(dir, name + ".asc"), asc);
+    write(new File(dir, name + ".json"),
+        (config.toString() + "\n").getBytes("utf-8"));
+    return name;
+  }
+
+  // Import tests expect a valid key, so keys that don't validate
+  // are recorded as expected errors instead. The outcome already
+  // tells for validated inputs; others are validated again under the
+  // same limits, as they may be just as slow.
+  private static final void addExpectedImport(JsonObject config,
+      byte[] input, Outcome outcome, Limits limits) {
+    if ((outcome.getStatus() != null)
+        && (outcome.getStatus() != KeyChecker.PKR.Status.OK)) {
+      config.addProperty("expect_error", Boolean.TRUE);
+      return;
+    }
+    try {
+      KeyChecker.PKR pkr = KeyChecker.validate(LazyKeyRing.read(
+              new ByteArrayInputStream(input)).getSelfSigned(), limits);
+      if (pkr.getStatus() != KeyChecker.PKR.Status.OK) {
+        config.addProperty("expect_error", Boolean.TRUE);
+        return;
+      }
+      config.addProperty("expected_fingerprint",
+          Hex.toHexString(pkr.getOriginal().getPublicKey().getFingerprint()));
+      JsonArray uids = new JsonArray();
+      for (KeyChecker.UserID uid : pkr.getUserIDs()) {
+        uids.add(new JsonPrimitive(uid.getName()));
+      }
+      config.add("expected_uids", uids);
+    } catch (Exception ex) {
+      config.addProperty((findLimitExceeded(ex) != null)
+          ? "expect_limit" : "expect_error", Boolean.TRUE);
+    }
+  }
+
+  private static final String sha256(byte[] data) {
+    SHA256Digest digest = new SHA256Digest();
+    digest.update(data, 0, data.length);
+    byte[] out = new byte[digest.getDigestSize()];
+    digest.doFinal(out, 0);
+    return Hex.toHexString(out);
+  }
+
+  private static final void write(File path, byte[] data)
+      throws IOException {
+    OutputStream out = new FileOutputStream(path);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static final String requireValue(String args[], int i) {
+    if (i + 1 >= args.length) {
+      throw new IllegalArgumentException("Missing value for " + args[i]);
+    }
+    return args[i + 1];
+  }
+
+  private static final void println(String s) {
+    System.err.println(s);
+  }
+
+  private static final byte[] INTERESTING = {
+    (byte) 0x00, (byte) 0x01, (byte) 0x7f, (byte) 0x80, (byte) 0xbf,
+    (byte) 0xc0, (byte) 0xdf, (byte) 0xe0, (byte) 0xfe, (byte) 0xff
+  };
+
+  private static Target sTarget = Target.VALIDATE;
+  private static Seed sSeed = null;
+
+  private Fuzzer() {}
+}
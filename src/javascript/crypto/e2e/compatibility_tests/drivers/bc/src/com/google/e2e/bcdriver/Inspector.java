@@ -0,0 +1,401 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.OnePassSignaturePacket;
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.bcpg.PublicKeyEncSessionPacket;
+import org.bouncycastle.bcpg.SignaturePacket;
+import org.bouncycastle.bcpg.SymmetricKeyEncSessionPacket;
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Support class to examine the packet framing of a message without
+ * decrypting it, so it can be routed to the right key holder.</p>
+ *
+ * <p>Only packet headers and the small packets leading up to the
+ * first data packet are read. Reading stops at the encrypted data
+ * packet, or at the literal data header of an already decrypted
+ * message.</p>
+ */
+public class Inspector {
+
+  /**
+   * What could be learnt about a message from its framing alone.
+   */
+  static final class MessageInfo {
+    /**
+     * @return true if the message has an encrypted data packet.
+     */
+    final boolean isEncrypted() {
+      return mEncrypted;
+    }
+    /**
+     * @return the key ids of each public key recipient. A key id of
+     * zero indicates a hidden recipient.
+     */
+    final List<Long> getRecipientKeyIDs() {
+      return mRecipients;
+    }
+    /**
+     * @return true if the message can be decrypted with a passphrase.
+     */
+    final boolean isPassphraseEncrypted() {
+      return mPassphrase;
+    }
+    final boolean isIntegrityProtected() {
+      return mIntegrityProtected;
+    }
+    /**
+     * @return the symmetric algorithm, or -1 if it can't be known
+     * without decrypting a session key.
+     */
+    final int getSymmetricAlgorithm() {
+      return mSymmetricAlgorithm;
+    }
+    /**
+     * @return the AEAD mode of a version 2 integrity protected or a
+     * LibrePGP AEAD encrypted data packet, or -1 for other messages.
+     */
+    final int getAEADAlgorithm() {
+      return mAEADAlgorithm;
+    }
+    /**
+     * @return the algorithm of the outermost compressed data packet,
+     * or -1 if the message isn't (visibly) compressed.
+     */
+    final int getCompressionAlgorithm() {
+      return mCompressionAlgorithm;
+    }
+    /**
+     * @return the key ids from any one-pass (or leading) signatures.
+     */
+    final List<Long> getSignerKeyIDs() {
+      return mSigners;
+    }
+    /**
+     * @return the literal data filename, or null if the literal
+     * data packet wasn't reached.
+     */
+    final String getFileName() {
+      return mFileName;
+    }
+    /**
+     * @return the literal data format, or -1 if unknown.
+     */
+    final int getLiteralFormat() {
+      return mLiteralFormat;
+    }
+    /**
+     * @return the number of content bytes declared by the literal
+     * data packet, or -1 if it has no definite length or wasn't
+     * reached.
+     */
+    final long getDeclaredLength() {
+      return mDeclaredLength;
+    }
+
+    private MessageInfo() {
+    }
+
+    private boolean mEncrypted = false;
+    private final List<Long> mRecipients = new ArrayList<Long>();
+    private boolean mPassphrase = false;
+    private boolean mIntegrityProtected = false;
+    private int mSymmetricAlgorithm = -1;
+    private int mAEADAlgorithm = -1;
+    private int mCompressionAlgorithm = -1;
+    private final List<Long> mSigners = new ArrayList<Long>();
+    private String mFileName = null;
+    private int mLiteralFormat = -1;
+    private long mDeclaredLength = -1L;
+  }
+
+  /**
+   * <p>Keeps a copy of the bytes read through it, so that the packets
+   * leading up to the literal data can be examined after another
+   * parser has consumed them.</p>
+   *
+   * <p>Only the first few kilobytes are kept; past that, the header
+   * is treated as unknown. The copy is wiped once recording
+   * stops.</p>
+   */
+  static final class HeaderRecorder extends FilterInputStream {
+    HeaderRecorder(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if ((b >= 0) && (mHeader != null)) {
+        if (mSize < mHeader.length) {
+          mHeader[mSize++] = (byte) b;
+        } else {
+          stop();
+        }
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+      int nread = super.read(buf, off, len);
+      if ((nread > 0) && (mHeader != null)) {
+        if (nread <= mHeader.length - mSize) {
+          System.arraycopy(buf, off, mHeader, mSize, nread);
+          mSize += nread;
+        } else {
+          stop();
+        }
+      }
+      return nread;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes leave a gap, so the copy is no longer useful.
+      stop();
+      return super.skip(n);
+    }
+
+    /**
+     * Stops recording, and inspects what was read so far.
+     *
+     * @return the content length declared by the literal data packet,
+     * or -1 if it has no definite length or was not read in full.
+     */
+    long getDeclaredLength() {
+      if (mHeader == null) {
+        return -1L;
+      }
+      try {
+        return inspect(new ByteArrayInputStream(mHeader, 0, mSize))
+            .getDeclaredLength();
+      } catch (IOException ioe) {
+        return -1L;
+      } finally {
+        stop();
+      }
+    }
+
+    /**
+     * Stops recording, and wipes what was recorded, since it may be
+     * decrypted data.
+     */
+    void stop() {
+      if (mHeader != null) {
+        Arrays.fill(mHeader, 0, mSize, (byte) 0);
+        mHeader = null;
+      }
+    }
+
+    private byte[] mHeader = new byte[MAX_RECORDED_HEADER];
+    private int mSize = 0;
+  }
+
+  /**
+   * Examines an armored or binary message, which may be either
+   * encrypted or an already decrypted (possibly signed and
+   * compressed) message.
+   */
+  static final MessageInfo inspect(InputStream in) throws IOException {
+    MessageInfo info = new MessageInfo();
+    BCPGInputStream bin = new BCPGInputStream(PGPUtil.getDecoderStream(in));
+    int nesting = 0;
+
+    while (true) {
+      int tag = bin.nextPacketTag();
+      switch (tag) {
+        case PacketTags.PUBLIC_KEY_ENC_SESSION: {
+          PublicKeyEncSessionPacket pkesk =
+              (PublicKeyEncSessionPacket) bin.readPacket();
+          info.mRecipients.add(Long.valueOf(pkesk.getKeyID()));
+          break;
+        }
+
+        case PacketTags.SYMMETRIC_KEY_ENC_SESSION: {
+          SymmetricKeyEncSessionPacket skesk =
+              (SymmetricKeyEncSessionPacket) bin.readPacket();
+          info.mPassphrase = true;
+          // Without an encrypted session key, the S2K output is the
+          // session key and the algorithm is stated in the clear.
+          byte[] esk = skesk.getSecKeyData();
+          if ((esk == null) || (esk.length == 0)) {
+            info.mSymmetricAlgorithm = skesk.getEncAlgorithm();
+          }
+          break;
+        }
+
+        case PacketTags.SYMMETRIC_KEY_ENC:
+          info.mEncrypted = true;
+          return info;
+
+        case PacketTags.SYM_ENC_INTEGRITY_PRO:
+        case PacketTags.AEAD_ENC_DATA:
+          info.mEncrypted = true;
+          info.mIntegrityProtected = true;
+          readEncryptedHeader(bin, tag, info);
+          return info;
+
+        case PacketTags.COMPRESSED_DATA: {
+          if (++nesting > MAX_COMPRESSION_NESTING) {
+            return info;
+          }
+          PGPCompressedData cdata = new PGPCompressedData(bin);
+          if (info.mCompressionAlgorithm < 0) {
+            info.mCompressionAlgorithm = cdata.getAlgorithm();
+          }
+          try {
+            bin = new BCPGInputStream(cdata.getDataStream());
+          } catch (PGPException pe) {
+            throw new IOException("Unable to decompress message", pe);
+          }
+          break;
+        }
+
+        case PacketTags.ONE_PASS_SIGNATURE: {
+          OnePassSignaturePacket ops =
+              (OnePassSignaturePacket) bin.readPacket();
+          info.mSigners.add(Long.valueOf(ops.getKeyID()));
+          break;
+        }
+
+        case PacketTags.SIGNATURE: {
+          SignaturePacket sig = (SignaturePacket) bin.readPacket();
+          info.mSigners.add(Long.valueOf(sig.getKeyID()));
+          break;
+        }
+
+        case PacketTags.MARKER:
+          bin.readPacket();
+          break;
+
+        case PacketTags.LITERAL_DATA:
+          readLiteralHeader(bin, info);
+          return info;
+
+        default:
+          // End of stream, or something we don't route on.
+          return info;
+      }
+    }
+  }
+
+  // Version 2 integrity protected data (RFC 9580, section 5.13.2)
+  // and LibrePGP's AEAD encrypted data state the cipher and AEAD mode
+  // in the clear, right after the version octet.
+  private static final void readEncryptedHeader(BCPGInputStream bin,
+      int tag, MessageInfo info) throws IOException {
+    readPacketLength(bin);
+    int version = readByte(bin);
+    if ((tag == PacketTags.AEAD_ENC_DATA) || (version == 2)) {
+      info.mSymmetricAlgorithm = readByte(bin);
+      info.mAEADAlgorithm = readByte(bin);
+    }
+  }
+
+  // Bouncy Castle doesn't expose packet lengths, so parse the
+  // literal data header here (RFC 4880, section 5.9) to find the
+  // declared length.
+  private static final void readLiteralHeader(BCPGInputStream bin,
+      MessageInfo info) throws IOException {
+    long length = readPacketLength(bin);
+
+    info.mLiteralFormat = readByte(bin);
+    int nameLength = readByte(bin);
+    byte name[] = new byte[nameLength];
+    bin.readFully(name);
+    // Skip the modification time.
+    readLength(bin, 4);
+
+    info.mFileName = new String(name, "utf-8");
+    if (length >= 0) {
+      info.mDeclaredLength = length - 6 - nameLength;
+    }
+  }
+
+  /**
+   * Reads a packet header (RFC 4880, section 4.2).
+   *
+   * @return the length of the packet body, or -1 if it has partial
+   * or indeterminate length.
+   */
+  private static final long readPacketLength(InputStream in)
+      throws IOException {
+    int hdr = readByte(in);
+    if ((hdr & 0x40) != 0) {
+      int first = readByte(in);
+      if (first < 192) {
+        return first;
+      } else if (first <= 223) {
+        return ((first - 192) << 8) + readByte(in) + 192;
+      } else if (first == 255) {
+        return readLength(in, 4);
+      } else {
+        // Partial body lengths.
+        return -1L;
+      }
+    }
+    switch (hdr & 0x03) {
+      case 0:
+        return readLength(in, 1);
+      case 1:
+        return readLength(in, 2);
+      case 2:
+        return readLength(in, 4);
+      default:
+        return -1L;
+    }
+  }
+
+  private static final long readLength(InputStream in, int nbytes)
+      throws IOException {
+    long ret = 0L;
+    for (int i = 0; i < nbytes; i++) {
+      ret = (ret << 8) | readByte(in);
+    }
+    return ret;
+  }
+
+  private static final int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new EOFException("Truncated packet header");
+    }
+    return b;
+  }
+
+  // Legitimate messages are compressed at most once, but allow a
+  // little slack before giving up.
+  private static final int MAX_COMPRESSION_NESTING = 4;
+
+  // Enough for a literal data header behind a few hundred one-pass
+  // signatures.
+  private static final int MAX_RECORDED_HEADER = 8192;
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.openpgp.PGPPrivateKey;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Keys used by the tests on one worker: validated public keyrings
+ * and unlocked decryption keys, keyed by the file they came from
+ * (see {@link Scheduler#keyPath}).</p>
+ *
+ * <p>Each worker has its own cache, so no synchronization is
+ * needed.</p>
+ */
+final class KeyCache {
+
+  KeyChecker.PKR getValidated(String path) {
+    return count(mValidated.get(path));
+  }
+
+  void putValidated(String path, KeyChecker.PKR pkr) {
+    mValidated.put(path, pkr);
+  }
+
+  PGPPrivateKey getDecryptionKey(String path, String passphrase) {
+    return count(mDecryptionKeys.get(path + '\0' + passphrase));
+  }
+
+  void putDecryptionKey(String path, String passphrase, PGPPrivateKey key) {
+    mDecryptionKeys.put(path + '\0' + passphrase, key);
+  }
+
+  int getHits() {
+    return mHits;
+  }
+
+  int getMisses() {
+    return mMisses;
+  }
+
+  private final <T> T count(T value) {
+    if (value != null) {
+      mHits++;
+    } else {
+      mMisses++;
+    }
+    return value;
+  }
+
+  private final Map<String, KeyChecker.PKR> mValidated =
+      new HashMap<String, KeyChecker.PKR>();
+  private final Map<String, PGPPrivateKey> mDecryptionKeys =
+      new HashMap<String, PGPPrivateKey>();
+  private int mHits = 0;
+  private int mMisses = 0;
+}
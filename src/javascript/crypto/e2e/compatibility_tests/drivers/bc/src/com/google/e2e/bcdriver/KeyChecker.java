@@ -15,32 +15,31 @@
  */
 package com.google.e2e.bcdriver;
 
-import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.bcpg.BCPGInputStream;
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
-import org.bouncycastle.bcpg.SignatureSubpacket;
 import org.bouncycastle.bcpg.SignatureSubpacketTags;
 import org.bouncycastle.bcpg.sig.KeyExpirationTime;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.bcpg.sig.SignatureCreationTime;
 import org.bouncycastle.bcpg.sig.SignatureExpirationTime;
 import org.bouncycastle.openpgp.PGPException;
-import org.bouncycastle.openpgp.PGPObjectFactory;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureList;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketVector;
-import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
 import org.bouncycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.SignatureException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * A support class that runs signature checks on a parsed key.
@@ -54,8 +53,25 @@ public class KeyChecker {
     public String getName() {
       return mUid;
     }
+    /**
+     * @return a private copy of the selected self-signature, which
+     * the caller may initialize and verify freely. Each call decodes
+     * a new copy, so callers should keep the one they get.
+     */
     public PGPSignature getSignature() {
-      return mSig;
+      byte[] encoded = mEncoded;
+      if (encoded == null) {
+        encoded = encode(mSig);
+        mEncoded = encoded;
+      }
+      return decode(encoded);
+    }
+    /**
+     * @return true if <tt>sig</tt> is the selected self-signature
+     * itself, rather than a copy of it.
+     */
+    boolean isSelected(PGPSignature sig) {
+      return sig == mSig;
     }
     private UserID(String uid, PGPSignature sig) {
       mUid = uid;
@@ -63,6 +79,9 @@ public class KeyChecker {
     }
     private final String mUid;
     private final PGPSignature mSig;
+    // The encoded signature, kept once a copy is first asked for.
+    // Racing threads store identical encodings.
+    private volatile byte[] mEncoded = null;
   }
 
   /**
@@ -70,8 +89,25 @@ public class KeyChecker {
    */
   public static final class Subkey {
 
+    /**
+     * @return a private copy of the selected binding signature, which
+     * the caller may initialize and verify freely. Each call decodes
+     * a new copy, so callers should keep the one they get.
+     */
     public PGPSignature getSignature() {
-      return mSig;
+      byte[] encoded = mEncoded;
+      if (encoded == null) {
+        encoded = encode(mSig);
+        mEncoded = encoded;
+      }
+      return decode(encoded);
+    }
+    /**
+     * @return true if <tt>sig</tt> is the selected binding signature
+     * itself, rather than a copy of it.
+     */
+    boolean isSelected(PGPSignature sig) {
+      return sig == mSig;
     }
     public PGPPublicKey getPublicKey() {
       return mSubkey;
@@ -83,6 +119,8 @@ public class KeyChecker {
     }
     private final PGPPublicKey mSubkey;
     private final PGPSignature mSig;
+    // As for UserID.
+    private volatile byte[] mEncoded = null;
   }
 
   /**
@@ -93,6 +131,13 @@ public class KeyChecker {
    * <p>Initialized using the
    * {@link KeyChecker#validate(PGPPublicKeyRing) validate}
    * method</p>
+   *
+   * <p>A PKR is immutable once built, and may be shared between
+   * threads without locking. Its lists are unmodifiable, and the
+   * selected signatures are only handed out as copies, since
+   * verifying a PGPSignature changes its state. The keyring from
+   * {@link #getOriginal} has already been checked, and its
+   * signatures should not be verified again in place.</p>
    */
   public static final class PKR {
 
@@ -112,7 +157,7 @@ public class KeyChecker {
      * here.</p>
      */
     public String getErrors() {
-      return mErrors.toString();
+      return mErrors;
     }
     public Status getStatus() {
       return mStatus;
@@ -129,6 +174,13 @@ public class KeyChecker {
     public List<Subkey> getSubkeys() {
       return mSubkeys;
     }
+    /**
+     * @return the revocation index consulted when this PKR was
+     * validated, or null if there was none.
+     */
+    RevocationIndex getRevocationIndex() {
+      return mRevocations;
+    }
     /**
      * @param keyid is the id to use when searching.
      *
@@ -147,7 +199,7 @@ public class KeyChecker {
         // Check if the main key is usable by checking for an
         // appropriate use flag in its verified self-signatures.
         for (UserID uid : getUserIDs()) {
-          if (Util.hasKeyFlag(uid.getSignature(), KeyFlags.SIGN_DATA)) {
+          if (Util.hasKeyFlag(uid.mSig, KeyFlags.SIGN_DATA)) {
             ret.add(masterpk);
             break;
           }
@@ -157,7 +209,7 @@ public class KeyChecker {
       for (Subkey subkey : getSubkeys()) {
         PGPPublicKey candidate = subkey.getPublicKey();
         if (candidate.getKeyID() == keyid) {
-          if (Util.hasKeyFlag(subkey.getSignature(), KeyFlags.SIGN_DATA)) {
+          if (Util.hasKeyFlag(subkey.mSig, KeyFlags.SIGN_DATA)) {
             ret.add(candidate);
             break;
           }
@@ -185,30 +237,86 @@ public class KeyChecker {
     }
 
     private PKR(Status status, PGPPublicKeyRing pkr,
-        List<UserID> uids, List<Subkey> subkeys, StringBuilder errors) {
+        List<UserID> uids, List<Subkey> subkeys, StringBuilder errors,
+        RevocationIndex revocations) {
       mStatus = status;
       mPkr = pkr;
-      mUids = uids;
-      mSubkeys = subkeys;
-      mErrors = errors;
+      mUids = Collections.unmodifiableList(new ArrayList<UserID>(uids));
+      mSubkeys =
+          Collections.unmodifiableList(new ArrayList<Subkey>(subkeys));
+      mErrors = errors.toString();
+      mRevocations = revocations;
     }
     private final Status mStatus;
     private final PGPPublicKeyRing mPkr;
     private final List<UserID> mUids;
     private final List<Subkey> mSubkeys;
-    private final StringBuilder mErrors;
+    private final String mErrors;
+    private final RevocationIndex mRevocations;
   }
 
   /**
    * <p>This is the primary way to use this utility. It examines a
    * provided PGPPublicKeyRing and returns a wrapped object that
-   * provides access only to verified key material.</p>
+   * provides access only to verified key material. No limits are
+   * applied, however many signatures the keyring carries.</p>
    *
    * @param pkr is the keyring to be examined.
    * @return an object that provides filtered access to verified key material.
    */
   public static final PKR validate(PGPPublicKeyRing pkr)
       throws PGPException, SignatureException, IOException {
+    return validate(pkr, Limits.NONE);
+  }
+
+  /**
+   * <p>As {@link #validate(PGPPublicKeyRing)}, but refuses keyrings
+   * with too many signatures, and checks the deadline in
+   * <tt>limits</tt> between signatures.</p>
+   *
+   * @param pkr is the keyring to be examined.
+   * @param limits bounds the work done on the keyring.
+   * @return an object that provides filtered access to verified key material.
+   * @throws LimitExceededException if a limit is reached.
+   */
+  public static final PKR validate(PGPPublicKeyRing pkr, Limits limits)
+      throws PGPException, SignatureException, IOException {
+    return validate(pkr, limits, null);
+  }
+
+  /**
+   * <p>As {@link #validate(PGPPublicKeyRing, Limits)}, but also
+   * honors key and subkey revocations from <tt>revocations</tt>, as
+   * if they had been merged into the keyring. Only revocations that
+   * verify against the key they claim to revoke are counted.</p>
+   *
+   * @param pkr is the keyring to be examined.
+   * @param limits bounds the work done on the keyring.
+   * @param revocations holds revocations received separately, or
+   * null.
+   * @return an object that provides filtered access to verified key material.
+   * @throws LimitExceededException if a limit is reached.
+   */
+  public static final PKR validate(PGPPublicKeyRing pkr, Limits limits,
+      RevocationIndex revocations)
+      throws PGPException, SignatureException, IOException {
+    Events.KeyValidation event = new Events.KeyValidation();
+    event.begin();
+    PKR ret = doValidate(pkr, limits, revocations);
+    if (event.shouldCommit()) {
+      event.keyID = pkr.getPublicKey().getKeyID();
+      event.status = ret.getStatus().name();
+      event.userIDCount = ret.getUserIDs().size();
+      event.subkeyCount = ret.getSubkeys().size();
+      event.size = pkr.getEncoded().length;
+      event.commit();
+    }
+    return ret;
+  }
+
+  private static final PKR doValidate(PGPPublicKeyRing pkr, Limits limits,
+      RevocationIndex revocations)
+      throws PGPException, SignatureException, IOException {
 
     // First handle keyring revocation/designated revokers
     PGPPublicKey masterpk = pkr.getPublicKey();
@@ -217,6 +325,8 @@ public class KeyChecker {
           ("Unexpected - first key is not master");
     }
 
+    limits.checkSignatureCount(masterpk.getKeyID(), countSignatures(pkr));
+
     StringBuilder errors = new StringBuilder();
 
     List<UserID> userids = new ArrayList<UserID>();
@@ -229,27 +339,46 @@ public class KeyChecker {
           masterpk.getSignaturesOfType(PGPSignature.KEY_REVOCATION),
           PGPSignature.class);
       while (masterSigit.hasNext()) {
+        limits.checkDeadline();
         PGPSignature sig = masterSigit.next();
         if (isGoodDirectSignature(sig, masterpk, masterpk, errors)) {
           validRejects++;
         }
       }
     }
+    // Then revocations received separately. Nearly every key is
+    // ruled out by the index's filter without decoding anything.
+    List<PGPSignature> external = Collections.<PGPSignature>emptyList();
+    if ((revocations != null)
+        && revocations.mightBeRevoked(masterpk.getKeyID())) {
+      external = revocations.getRevocations(masterpk.getKeyID());
+      for (PGPSignature sig : external) {
+        limits.checkDeadline();
+        if ((sig.getSignatureType() == PGPSignature.KEY_REVOCATION)
+            && isGoodExternalRevocation(sig, masterpk, masterpk, errors)) {
+          errors.append("Key " + nicePk(masterpk) + " revoked by local "
+              + niceSig(sig) + "\n");
+          validRejects++;
+        }
+      }
+    }
     if (validRejects > 0) {
       // Primary key is revoked, discard everything else.
-      return new PKR(PKR.Status.REVOKED, pkr, userids, subkeys, errors);
+      return new PKR(PKR.Status.REVOKED, pkr, userids, subkeys, errors,
+          revocations);
     }
 
     // Filter for valid userids.
     Iterator<String> uidit = Util.getTypedIterator(masterpk.getUserIDs(),
         String.class);
     while (uidit.hasNext()) {
-      maybeAddUserID(userids, masterpk, uidit.next(), errors);
+      maybeAddUserID(userids, masterpk, uidit.next(), errors, limits);
     }
 
     // Don't bother with subkeys if we don't have a valid uid.
     if ((userids.size() == 0)) {
-      return new PKR(PKR.Status.UNUSABLE, pkr, userids, subkeys, errors);
+      return new PKR(PKR.Status.UNUSABLE, pkr, userids, subkeys, errors,
+          revocations);
     }
 
     // Now start checking subkeys.
@@ -262,21 +391,115 @@ public class KeyChecker {
       if (subkey.isMasterKey()) {
         throw new IllegalArgumentException("unexpected");
       }
-      maybeAddSubkey(subkeys, masterpk, subkey, errors);
+      maybeAddSubkey(subkeys, masterpk, subkey, errors, limits, external);
     }
 
-    return new PKR(PKR.Status.OK, pkr, userids, subkeys, errors);
+    return new PKR(PKR.Status.OK, pkr, userids, subkeys, errors,
+        revocations);
   }
 
+  /**
+   * Rebuilds a PKR from the userids, subkeys and signatures that an
+   * earlier call to validate selected, without checking any
+   * signatures. The lists of names and signatures are parallel, as
+   * are the lists of subkeys and signatures.
+   */
+  static final PKR restore(PKR.Status status, PGPPublicKeyRing pkr,
+      List<String> uids, List<PGPSignature> uidSigs,
+      List<PGPPublicKey> subkeys, List<PGPSignature> subkeySigs,
+      String errors) {
+    List<UserID> userids = new ArrayList<UserID>();
+    for (int i = 0; i < uids.size(); i++) {
+      userids.add(new UserID(uids.get(i), uidSigs.get(i)));
+    }
+    List<Subkey> validSubkeys = new ArrayList<Subkey>();
+    for (int i = 0; i < subkeys.size(); i++) {
+      validSubkeys.add(new Subkey(subkeys.get(i), subkeySigs.get(i)));
+    }
+    return new PKR(status, pkr, userids, validSubkeys,
+        new StringBuilder(errors), null);
+  }
+
+  /**
+   * @return the time (in msec since the epoch) after which one of
+   * the signatures selected for this PKR will have expired, so that
+   * validating the keyring again may give a different result. Returns
+   * Long.MAX_VALUE if nothing selected ever expires.
+   */
+  static final long getValidUntil(PKR pkr) {
+    if (pkr.getStatus() == PKR.Status.REVOKED) {
+      return Long.MAX_VALUE;
+    }
+    StringBuilder ignored = new StringBuilder();
+    long ret = Long.MAX_VALUE;
+    for (UserID uid : pkr.getUserIDs()) {
+      ret = Math.min(ret, getExpiration(uid.mSig, ignored));
+    }
+    for (Subkey subkey : pkr.getSubkeys()) {
+      PGPSignature sig = subkey.mSig;
+      ret = Math.min(ret, getExpiration(sig, ignored));
+      if (Util.hasKeyFlag(sig, KeyFlags.SIGN_DATA)) {
+        PGPSignature esig =
+            getBackSignature(sig, subkey.getPublicKey(), ignored);
+        if (esig != null) {
+          ret = Math.min(ret, getExpiration(esig, ignored));
+        }
+      }
+    }
+    return ret;
+  }
+
+  // Mirrors the expiry checks in isSignatureCurrent.
+  private static final long getExpiration(PGPSignature sig,
+      StringBuilder errors) {
+    long ts = getSignatureTimestamp(sig, errors);
+    long ret = Long.MAX_VALUE;
+    PGPSignatureSubpacketVector svec = sig.getHashedSubPackets();
+    if ((ts < 0) || (svec == null)) {
+      return ret;
+    }
+    SignatureExpirationTime tspack = (SignatureExpirationTime)
+        svec.getSubpacket(SignatureSubpacketTags.EXPIRE_TIME);
+    if (tspack != null) {
+      ret = Math.min(ret,
+          ts + tspack.getTime() * 1000L + ACCEPTABLE_DELTA_MSEC);
+    }
+    KeyExpirationTime ket = (KeyExpirationTime)
+        svec.getSubpacket(SignatureSubpacketTags.KEY_EXPIRE_TIME);
+    if (ket != null) {
+      ret = Math.min(ret, ts + ket.getTime() * 1000L + ACCEPTABLE_DELTA_MSEC);
+    }
+    return ret;
+  }
+
+  @SuppressWarnings("deprecation")
   private static final boolean canSign(int algorithm) {
     return (algorithm == PublicKeyAlgorithmTags.RSA_GENERAL)
         || (algorithm == PublicKeyAlgorithmTags.RSA_SIGN)
         || (algorithm == PublicKeyAlgorithmTags.DSA)
-        || (algorithm == PublicKeyAlgorithmTags.ECDSA);
+        || (algorithm == PublicKeyAlgorithmTags.ECDSA)
+        || (algorithm == PublicKeyAlgorithmTags.EDDSA_LEGACY)
+        || (algorithm == PublicKeyAlgorithmTags.Ed25519)
+        || (algorithm == PublicKeyAlgorithmTags.Ed448);
+  }
+
+  // Count every signature on the keyring, before any of them are
+  // verified.
+  private static final int countSignatures(PGPPublicKeyRing pkr) {
+    int count = 0;
+    Iterator<PGPPublicKey> keysit = pkr.getPublicKeys();
+    while (keysit.hasNext()) {
+      Iterator<?> sigit = keysit.next().getSignatures();
+      while (sigit.hasNext()) {
+        sigit.next();
+        count++;
+      }
+    }
+    return count;
   }
 
   private static final void maybeAddUserID(List<UserID> uids, PGPPublicKey pk,
-      String uid, StringBuilder errors)
+      String uid, StringBuilder errors, Limits limits)
       throws PGPException, SignatureException, IOException {
 
     Iterator <PGPSignature> sigit =
@@ -292,6 +515,7 @@ public class KeyChecker {
     long validTs = -1L;
 
     while (sigit.hasNext()) {
+      limits.checkDeadline();
       PGPSignature sig = sigit.next();
 
       switch (sig.getSignatureType()) {
@@ -330,9 +554,20 @@ public class KeyChecker {
   }
 
   private static final void maybeAddSubkey(List<Subkey> subkeys,
-      PGPPublicKey masterpk, PGPPublicKey subkey, StringBuilder errors)
+      PGPPublicKey masterpk, PGPPublicKey subkey, StringBuilder errors,
+      Limits limits, List<PGPSignature> external)
       throws PGPException, SignatureException, IOException {
 
+    for (PGPSignature sig : external) {
+      limits.checkDeadline();
+      if ((sig.getSignatureType() == PGPSignature.SUBKEY_REVOCATION)
+          && isGoodExternalRevocation(sig, masterpk, subkey, errors)) {
+        errors.append("Subkey " + nicePk(subkey) + " revoked by local "
+            + niceSig(sig) + "\n");
+        return;
+      }
+    }
+
     Iterator <PGPSignature> sigit =
         Util.getTypedIterator(subkey.getSignatures(), PGPSignature.class);
     if (sigit == null) {
@@ -345,6 +580,7 @@ public class KeyChecker {
     long validTs = -1L;
 
     while (sigit.hasNext()) {
+      limits.checkDeadline();
       PGPSignature sig = sigit.next();
       switch (sig.getSignatureType()) {
         case PGPSignature.SUBKEY_BINDING:
@@ -384,6 +620,29 @@ public class KeyChecker {
     subkeys.add(new Subkey(subkey, validSig));
   }
 
+  // A copy decoded again from the encoded signature has no
+  // verification state in common with the original.
+  private static final byte[] encode(PGPSignature sig) {
+    try {
+      return sig.getEncoded();
+    } catch (IOException ioe) {
+      throw new IllegalStateException("Unable to copy signature", ioe);
+    }
+  }
+
+  // Reads the signature packet directly, rather than through an
+  // object factory.
+  private static final PGPSignature decode(byte[] encoded) {
+    try {
+      return new PGPSignature(
+          new BCPGInputStream(new ByteArrayInputStream(encoded)));
+    } catch (IOException ioe) {
+      throw new IllegalStateException("Unable to copy signature", ioe);
+    } catch (PGPException pe) {
+      throw new IllegalStateException("Unable to copy signature", pe);
+    }
+  }
+
   private static final String nicePk(PGPPublicKey pk) {
     return "0x" + Long.toHexString(pk.getKeyID());
   }
@@ -397,16 +656,43 @@ public class KeyChecker {
       PGPPublicKey primary, PGPPublicKey subkey, StringBuilder errors)
       throws PGPException, SignatureException, IOException {
 
+    Events.SignatureCheck event = new Events.SignatureCheck();
+    event.begin();
     sig.init(new BcPGPContentVerifierBuilderProvider(), primary);
+    boolean ok = sig.verifyCertification(primary, subkey);
+    recordSignatureCheck(event, sig, primary, subkey, ok);
 
-    return sig.verifyCertification(primary, subkey)
-        && isSignatureCurrent(sig, errors);
+    return ok && isSignatureCurrent(sig, errors);
+  }
+
+  // A revocation from a RevocationIndex is indexed only by its issuer
+  // key id, so it may be for another subkey, or made by some other key
+  // that shares the id. Such signatures just fail to verify, rather
+  // than failing the whole keyring.
+  private static final boolean isGoodExternalRevocation(PGPSignature sig,
+      PGPPublicKey masterpk, PGPPublicKey target, StringBuilder errors)
+      throws SignatureException, IOException {
+    if (sig.getKeyAlgorithm() != masterpk.getAlgorithm()) {
+      return false;
+    }
+    try {
+      if (target == masterpk) {
+        return isGoodDirectSignature(sig, masterpk, target, errors);
+      }
+      return isGoodSubkeySignature(sig, masterpk, target, errors);
+    } catch (PGPException pe) {
+      errors.append("Ignoring local " + niceSig(sig) + " for "
+          + nicePk(target) + ": " + pe.getMessage() + "\n");
+      return false;
+    }
   }
 
   private static final boolean isGoodDirectSignature(PGPSignature sig,
       PGPPublicKey signer, PGPPublicKey target, StringBuilder errors)
       throws PGPException, SignatureException, IOException {
 
+    Events.SignatureCheck event = new Events.SignatureCheck();
+    event.begin();
     sig.init(new BcPGPContentVerifierBuilderProvider(), signer);
 
     boolean ok;
@@ -425,6 +711,7 @@ public class KeyChecker {
     } else {
       ok = sig.verifyCertification(target);
     }
+    recordSignatureCheck(event, sig, signer, target, ok);
 
     // If we have a good signature, also ensure the signature
     // hasn't expired.
@@ -435,97 +722,129 @@ public class KeyChecker {
       PGPPublicKey signer, PGPPublicKey target, StringBuilder errors)
       throws PGPException, SignatureException, IOException {
 
-    SignatureSubpacket esigpack = null;
-
-    // Prefer to get it from the hashed subpacket.
-    PGPSignatureSubpacketVector svec = sig.getHashedSubPackets();
-    if (svec != null) {
-      esigpack =
-          svec.getSubpacket(SignatureSubpacketTags.EMBEDDED_SIGNATURE);
-    }
-
-    if (esigpack == null) {
-      svec = sig.getUnhashedSubPackets();
-      if (svec != null) {
-        esigpack =
-            svec.getSubpacket
-            (SignatureSubpacketTags.EMBEDDED_SIGNATURE);
-      }
+    PGPSignature esig = getBackSignature(sig, target, errors);
+    if (esig == null) {
+      return false;
     }
 
-    if (esigpack == null) {
+    if (esig.getSignatureType() != PGPSignature.PRIMARYKEY_BINDING) {
       errors.append("Rejecting " + niceSig(sig)
           + " for subkey " + nicePk(target)
-          + " because it doesn't have a cross-certification.\n"
-          + "See https://www.gnupg.org/faq/subkey-cross-certify.html\n");
+          + " because the embedded " + niceSig(esig)
+          + " is not a proper backsignature.\n");
       return false;
     }
 
-    // Unfortunately, since PGPSignature(byte[]) is not public, we
-    // have to go through this ugly contortion to get a signature.
-
-    ByteArrayOutputStream baout = new ByteArrayOutputStream();
-    // dump out an old-style header.
-    int hdr = 0x80 | (PacketTags.SIGNATURE << 2);
-    int len = esigpack.getData().length;
-    if (len <= 0xff) {
-      baout.write(hdr);
-      baout.write(len);
-    } else if (len <= 0xffff) {
-      baout.write(hdr | 0x01);
-      baout.write((len >> 8) & 0xff);
-      baout.write(len & 0xff);
-    } else {
-      baout.write(hdr | 0x02);
-      baout.write((len >> 24) & 0xff);
-      baout.write((len >> 16) & 0xff);
-      baout.write((len >> 8) & 0xff);
-      baout.write(len & 0xff);
-    }
+    // The parsed back signature is shared through the cache, so
+    // serialize the init/verify sequence on it.
+    synchronized (esig) {
+      Events.SignatureCheck event = new Events.SignatureCheck();
+      event.begin();
+      esig.init(new BcPGPContentVerifierBuilderProvider(), target);
+      boolean ok = esig.verifyCertification(signer, target);
+      recordSignatureCheck(event, esig, target, signer, ok);
 
-    baout.write(esigpack.getData());
-    baout.close();
+      return ok && isSignatureCurrent(esig, errors);
+    }
+  }
 
-    PGPObjectFactory fact = new PGPObjectFactory(new ByteArrayInputStream(
-        baout.toByteArray()), new BcKeyFingerprintCalculator());
+  // Return the signature embedded within a subkey binding signature,
+  // or null if there isn't a usable one. Parsed signatures are cached
+  // against the binding signature, so re-validating a keyring doesn't
+  // parse them again.
+  private static final PGPSignature getBackSignature(PGPSignature sig,
+      PGPPublicKey target, StringBuilder errors) {
 
-    Object obj = fact.nextObject();
+    PGPSignature esig = sBackSignatures.get(sig);
+    if (esig != null) {
+      return esig;
+    }
 
-    if (!(obj instanceof PGPSignatureList)) {
+    try {
+      // Prefer to get it from the hashed subpacket. The embedded
+      // signature is decoded directly from the subpacket data.
+      esig = getFirstEmbeddedSignature(sig.getHashedSubPackets());
+      if (esig == null) {
+        esig = getFirstEmbeddedSignature(sig.getUnhashedSubPackets());
+      }
+    } catch (PGPException pe) {
       errors.append("Rejecting " + niceSig(sig)
           + " for subkey " + nicePk(target)
           + " because no usable embedded signature is available.\n");
-      return false;
+      return null;
     }
-    PGPSignatureList esiglist = (PGPSignatureList) obj;
-    if (esiglist.size() != 1) {
+
+    if (esig == null) {
       errors.append("Rejecting " + niceSig(sig)
           + " for subkey " + nicePk(target)
-          + " because no usable embedded signature is available.\n");
-      return false;
+          + " because it doesn't have a cross-certification.\n"
+          + "See https://www.gnupg.org/faq/subkey-cross-certify.html\n");
+      return null;
     }
 
-    PGPSignature esig = esiglist.get(0);
-    if (esig.getSignatureType() != PGPSignature.PRIMARYKEY_BINDING) {
-      errors.append("Rejecting " + niceSig(sig)
-          + " for subkey " + nicePk(target)
-          + " because the embedded " + niceSig(esig)
-          + " is not a proper backsignature.\n");
-      return false;
+    sBackSignatures.put(sig, esig);
+    return esig;
+  }
+
+  private static final PGPSignature getFirstEmbeddedSignature(
+      PGPSignatureSubpacketVector svec) throws PGPException {
+    if ((svec == null)
+        || !svec.hasSubpacket(SignatureSubpacketTags.EMBEDDED_SIGNATURE)) {
+      return null;
+    }
+    PGPSignatureList esiglist = svec.getEmbeddedSignatures();
+    if (esiglist.isEmpty()) {
+      return null;
     }
+    return esiglist.get(0);
+  }
+
+  /**
+   * Checks a certification of a userid on <tt>target</tt> made by
+   * another key, but not its validity period, so the answer holds at
+   * any time; see {@link #getValidFrom} and {@link #getValidUntil}.
+   * The signature is initialized in the process, so it must not be
+   * shared.
+   */
+  static final boolean isGoodCertification(PGPSignature sig,
+      PGPPublicKey certifier, PGPPublicKey target, String uid)
+      throws PGPException {
+    Events.SignatureCheck event = new Events.SignatureCheck();
+    event.begin();
+    sig.init(new BcPGPContentVerifierBuilderProvider(), certifier);
+    boolean ok = sig.verifyCertification(uid, target);
+    recordSignatureCheck(event, sig, certifier, target, ok);
+    return ok;
+  }
 
-    esig.init(new BcPGPContentVerifierBuilderProvider(), target);
+  /**
+   * @return the earliest time, in milliseconds, at which the
+   * signature is current; or Long.MAX_VALUE if it has no usable
+   * creation time.
+   */
+  static final long getValidFrom(PGPSignature sig) {
+    long ts = getSignatureTimestamp(sig, new StringBuilder());
+    return (ts < 0) ? Long.MAX_VALUE : ts - ACCEPTABLE_DELTA_MSEC;
+  }
 
-    return esig.verifyCertification(signer, target)
-        && isSignatureCurrent(esig, errors);
+  /**
+   * @return the latest time, in milliseconds, at which the signature
+   * is current; or Long.MAX_VALUE if it doesn't expire.
+   */
+  static final long getValidUntil(PGPSignature sig) {
+    return getExpiration(sig, new StringBuilder());
   }
 
   private static final boolean isGoodUIDSignature(PGPSignature sig,
       PGPPublicKey masterpk, String uid, StringBuilder errors)
       throws PGPException, SignatureException, IOException {
 
+    Events.SignatureCheck event = new Events.SignatureCheck();
+    event.begin();
     sig.init(new BcPGPContentVerifierBuilderProvider(), masterpk);
-    if (!sig.verifyCertification(uid, masterpk)) {
+    boolean ok = sig.verifyCertification(uid, masterpk);
+    recordSignatureCheck(event, sig, masterpk, masterpk, ok);
+    if (!ok) {
       errors.append("Skipping certification " + niceSig(sig)
           + " for '" + uid + "' because the signature is invalid.\n");
       return false;
@@ -533,6 +852,19 @@ public class KeyChecker {
     return isSignatureCurrent(sig, errors);
   }
 
+  private static final void recordSignatureCheck(
+      Events.SignatureCheck event, PGPSignature sig, PGPPublicKey signer,
+      PGPPublicKey target, boolean valid) {
+    if (event.shouldCommit()) {
+      event.issuerKeyID = signer.getKeyID();
+      event.targetKeyID = target.getKeyID();
+      event.signatureType = sig.getSignatureType();
+      event.keyAlgorithm = sig.getKeyAlgorithm();
+      event.valid = valid;
+      event.commit();
+    }
+  }
+
   // Return a negative value if the signature doesn't have a
   // valid timestamp.
   private static final long getSignatureTimestamp(PGPSignature sig,
@@ -618,4 +950,11 @@ public class KeyChecker {
 
   // willing to accept timestamps within this interval. (1 minute)
   private static final long ACCEPTABLE_DELTA_MSEC = 60L * 1000L;
+
+  // Parsed back signatures, keyed by their enclosing binding
+  // signature. Weakly held, so entries go away along with their
+  // keyring.
+  private static final Map<PGPSignature, PGPSignature> sBackSignatures =
+      Collections.synchronizedMap(
+          new WeakHashMap<PGPSignature, PGPSignature>());
 }
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.bc.BcPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>A public keyring that is indexed by packet offsets when read,
+ * and only decoded as needed.</p>
+ *
+ * <p>Heavily certified keys can carry many thousands of third-party
+ * certifications, none of which {@link KeyChecker} looks at. The
+ * issuer of each signature packet is read straight from its
+ * subpackets, and {@link #getSelfSigned} decodes a keyring with
+ * just the signatures issued by the primary key (or with no issuer
+ * at all). Third-party certifications stay undecoded until asked for
+ * with {@link #getCertifications}.</p>
+ */
+final class LazyKeyRing {
+
+  /**
+   * A third-party certification over one of the userids, decoded on
+   * demand.
+   */
+  final class Certification {
+    /**
+     * @return the userid it certifies, or null if it is over a user
+     * attribute.
+     */
+    String getUserID() {
+      return mUserID;
+    }
+    long getIssuerKeyID() {
+      return mIssuer[mIndex];
+    }
+    PGPSignature getSignature() throws IOException, PGPException {
+      Object obj = new BcPGPObjectFactory(
+          Arrays.copyOfRange(mData, mStart[mIndex], mEnd[mIndex]))
+          .nextObject();
+      if (!(obj instanceof PGPSignatureList)) {
+        throw new IOException("Unable to decode signature packet "
+            + mIndex);
+      }
+      return ((PGPSignatureList) obj).get(0);
+    }
+    private Certification(int index, String uid) {
+      mIndex = index;
+      mUserID = uid;
+    }
+    private final int mIndex;
+    private final String mUserID;
+  }
+
+  /**
+   * Reads and indexes a keyring, which may be armored. Only the
+   * primary key packet is decoded.
+   */
+  static final LazyKeyRing read(InputStream in)
+      throws IOException, PGPException {
+    Events.KeyringParse event = new Events.KeyringParse();
+    event.begin();
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    InputStream din = PGPUtil.getDecoderStream(in);
+    byte buf[] = new byte[8192];
+    int nread;
+    while ((nread = din.read(buf)) > 0) {
+      bout.write(buf, 0, nread);
+    }
+    LazyKeyRing ret = new LazyKeyRing(bout.toByteArray());
+    if (event.shouldCommit()) {
+      event.keyID = ret.getKeyID();
+      event.secret = false;
+      event.keyCount = ret.count(PacketTags.PUBLIC_KEY)
+          + ret.count(PacketTags.PUBLIC_SUBKEY);
+      event.size = ret.mData.length;
+      event.skippedSignatures = ret.getSkippedCount();
+      event.commit();
+    }
+    return ret;
+  }
+
+  /**
+   * @return the key ID of the primary key.
+   */
+  long getKeyID() {
+    return mKeyID;
+  }
+
+  /**
+   * @return the number of signature packets in the keyring.
+   */
+  int getSignatureCount() {
+    return count(PacketTags.SIGNATURE);
+  }
+
+  /**
+   * @return the number of signatures left out of {@link
+   * #getSelfSigned}.
+   */
+  int getSkippedCount() {
+    int count = 0;
+    for (int i = 0; i < mCount; i++) {
+      if ((mTag[i] == PacketTags.SIGNATURE) && !mSelf[i]) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the keyring with every key, userid and user attribute,
+   * but only the signatures issued by the primary key or without an
+   * issuer. The result is decoded once and then kept.
+   */
+  PGPPublicKeyRing getSelfSigned() throws IOException, PGPException {
+    if (mSelfSigned == null) {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream(mData.length);
+      for (int i = 0; i < mCount; i++) {
+        if ((mTag[i] != PacketTags.SIGNATURE) || mSelf[i]) {
+          bout.write(mData, mStart[i], mEnd[i] - mStart[i]);
+        }
+      }
+      mSelfSigned = new PGPPublicKeyRing(bout.toByteArray(),
+          new BcKeyFingerprintCalculator());
+    }
+    return mSelfSigned;
+  }
+
+  /**
+   * @return the key IDs of all third-party certifiers, in order of
+   * appearance.
+   */
+  Set<Long> getCertifierKeyIDs() {
+    Set<Long> ret = new LinkedHashSet<Long>();
+    for (int i = 0; i < mCount; i++) {
+      if ((mTag[i] == PacketTags.SIGNATURE) && !mSelf[i]
+          && (mOwner[i] >= 0)) {
+        ret.add(Long.valueOf(mIssuer[i]));
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return the certifications of userids and user attributes issued
+   * by the given key. Nothing is decoded until {@link
+   * Certification#getSignature} is called.
+   */
+  List<Certification> getCertifications(long issuerKeyID)
+      throws IOException {
+    return getCertifications(issuerKeyID, false);
+  }
+
+  /**
+   * @return all third-party certifications of userids and user
+   * attributes, still undecoded.
+   */
+  List<Certification> getCertifications() throws IOException {
+    return getCertifications(NO_ISSUER, true);
+  }
+
+  private final List<Certification> getCertifications(long issuerKeyID,
+      boolean all) throws IOException {
+    List<Certification> ret = new ArrayList<Certification>();
+    for (int i = 0; i < mCount; i++) {
+      if ((mTag[i] == PacketTags.SIGNATURE) && !mSelf[i]
+          && (mOwner[i] >= 0) && (all || (mIssuer[i] == issuerKeyID))) {
+        int owner = mOwner[i];
+        String uid = (mTag[owner] == PacketTags.USER_ID)
+            ? new String(mData, mBody[owner], mEnd[owner] - mBody[owner],
+                "utf-8")
+            : null;
+        ret.add(new Certification(i, uid));
+      }
+    }
+    return ret;
+  }
+
+  private final int count(int tag) {
+    int count = 0;
+    for (int i = 0; i < mCount; i++) {
+      if (mTag[i] == tag) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private LazyKeyRing(byte[] data) throws IOException, PGPException {
+    mData = data;
+    int capacity = 16;
+    mTag = new int[capacity];
+    mStart = new int[capacity];
+    mBody = new int[capacity];
+    mEnd = new int[capacity];
+    mOwner = new int[capacity];
+    mIssuer = new long[capacity];
+    mSelf = new boolean[capacity];
+
+    int owner = -1;
+    int pos = 0;
+    while (pos < data.length) {
+      if (mCount == mTag.length) {
+        grow();
+      }
+      int end = readHeader(pos);
+      int tag = mTag[mCount];
+      if ((mCount == 0) && (tag != PacketTags.PUBLIC_KEY)) {
+        throw new IOException("Keyring does not start with a public key");
+      }
+      if ((mCount > 0) && (tag == PacketTags.PUBLIC_KEY)) {
+        // The start of the next keyring.
+        break;
+      }
+      mStart[mCount] = pos;
+      mEnd[mCount] = end;
+      if ((tag == PacketTags.USER_ID)
+          || (tag == PacketTags.USER_ATTRIBUTE)) {
+        owner = mCount;
+      } else if ((tag == PacketTags.PUBLIC_KEY)
+          || (tag == PacketTags.PUBLIC_SUBKEY)) {
+        owner = -1;
+      }
+      mOwner[mCount] = owner;
+      if (tag == PacketTags.SIGNATURE) {
+        mIssuer[mCount] = readIssuer(mBody[mCount], end);
+      }
+      mCount++;
+      pos = end;
+    }
+    if (mCount == 0) {
+      throw new IOException("Empty keyring");
+    }
+
+    mKeyID = new PGPPublicKeyRing(
+        Arrays.copyOfRange(data, mStart[0], mEnd[0]),
+        new BcKeyFingerprintCalculator()).getPublicKey().getKeyID();
+    for (int i = 0; i < mCount; i++) {
+      mSelf[i] = (mIssuer[i] == NO_ISSUER) || (mIssuer[i] == mKeyID);
+    }
+  }
+
+  private final void grow() {
+    int capacity = mTag.length * 2;
+    mTag = Arrays.copyOf(mTag, capacity);
+    mStart = Arrays.copyOf(mStart, capacity);
+    mBody = Arrays.copyOf(mBody, capacity);
+    mEnd = Arrays.copyOf(mEnd, capacity);
+    mOwner = Arrays.copyOf(mOwner, capacity);
+    mIssuer = Arrays.copyOf(mIssuer, capacity);
+    mSelf = Arrays.copyOf(mSelf, capacity);
+  }
+
+  // Reads the packet header at pos into the current entry, and
+  // returns the end of the packet.
+  private final int readHeader(int pos) throws IOException {
+    int hdr = byteAt(pos++, mData.length);
+    if ((hdr & 0x80) == 0) {
+      throw new IOException("Bad packet header at " + (pos - 1));
+    }
+    long len;
+    if ((hdr & 0x40) != 0) {
+      mTag[mCount] = hdr & 0x3f;
+      int b0 = byteAt(pos++, mData.length);
+      if (b0 < 192) {
+        len = b0;
+      } else if (b0 < 224) {
+        len = ((b0 - 192) << 8) + byteAt(pos++, mData.length) + 192;
+      } else if (b0 == 255) {
+        len = readUint32(pos);
+        pos += 4;
+      } else {
+        throw new IOException("Partial length packet in keyring");
+      }
+    } else {
+      mTag[mCount] = (hdr >> 2) & 0xf;
+      switch (hdr & 0x3) {
+        case 0:
+          len = byteAt(pos++, mData.length);
+          break;
+        case 1:
+          len = (byteAt(pos, mData.length) << 8)
+              | byteAt(pos + 1, mData.length);
+          pos += 2;
+          break;
+        case 2:
+          len = readUint32(pos);
+          pos += 4;
+          break;
+        default:
+          len = mData.length - pos;
+          break;
+      }
+    }
+    if (len > mData.length - pos) {
+      throw new IOException("Truncated packet at " + pos);
+    }
+    mBody[mCount] = pos;
+    return (int) (pos + len);
+  }
+
+  // Finds the issuer key ID of a signature packet without decoding
+  // it, or NO_ISSUER if it doesn't name one (or can't be read).
+  private final long readIssuer(int pos, int end) {
+    try {
+      int version = byteAt(pos, end);
+      if ((version == 2) || (version == 3)) {
+        // version, hashed length (5), type, time, then the key ID.
+        return readLong(pos + 7, end);
+      }
+      if ((version != 4) && (version != 6)) {
+        return NO_ISSUER;
+      }
+      // version, type, public key and hash algorithms, then the
+      // hashed and unhashed subpacket areas.
+      int sizeLen = (version == 4) ? 2 : 4;
+      int area = pos + 4;
+      for (int i = 0; i < 2; i++) {
+        long size = (sizeLen == 2)
+            ? ((byteAt(area, end) << 8) | byteAt(area + 1, end))
+            : readUint32(area);
+        int start = area + sizeLen;
+        if (size > end - start) {
+          return NO_ISSUER;
+        }
+        long issuer = findIssuer(start, (int) (start + size));
+        if (issuer != NO_ISSUER) {
+          return issuer;
+        }
+        area = (int) (start + size);
+      }
+    } catch (IOException ignore) {
+      ; // fall through
+    }
+    return NO_ISSUER;
+  }
+
+  private final long findIssuer(int pos, int end) throws IOException {
+    while (pos < end) {
+      int b0 = byteAt(pos++, end);
+      long len;
+      if (b0 < 192) {
+        len = b0;
+      } else if (b0 < 255) {
+        len = ((b0 - 192) << 8) + byteAt(pos++, end) + 192;
+      } else {
+        len = readUint32(pos);
+        pos += 4;
+      }
+      if ((len < 1) || (len > end - pos)) {
+        return NO_ISSUER;
+      }
+      int type = byteAt(pos, end) & 0x7f;
+      if ((type == ISSUER) && (len == 9)) {
+        return readLong(pos + 1, end);
+      }
+      if ((type == ISSUER_FINGERPRINT) && (len >= 10)) {
+        // v4 key IDs are the low 64 bits of the fingerprint, later
+        // versions use the high 64 bits.
+        int fpVersion = byteAt(pos + 1, end);
+        int off = (fpVersion == 4) ? (int) (pos + len - 8) : pos + 2;
+        return readLong(off, end);
+      }
+      pos += (int) len;
+    }
+    return NO_ISSUER;
+  }
+
+  private final int byteAt(int pos, int end) throws IOException {
+    if ((pos < 0) || (pos >= end)) {
+      throw new IOException("Truncated packet at " + pos);
+    }
+    return mData[pos] & 0xff;
+  }
+
+  private final long readUint32(int pos) throws IOException {
+    long ret = 0L;
+    for (int i = 0; i < 4; i++) {
+      ret = (ret << 8) | byteAt(pos + i, mData.length);
+    }
+    return ret;
+  }
+
+  private final long readLong(int pos, int end) throws IOException {
+    long ret = 0L;
+    for (int i = 0; i < 8; i++) {
+      ret = (ret << 8) | byteAt(pos + i, end);
+    }
+    return ret;
+  }
+
+  // A key ID of zero is used by some implementations as a wildcard,
+  // and is never a real issuer.
+  private static final long NO_ISSUER = 0L;
+  private static final int ISSUER = 16;
+  private static final int ISSUER_FINGERPRINT = 33;
+
+  private final byte[] mData;
+  private final long mKeyID;
+  private int mCount = 0;
+  private int mTag[];
+  private int mStart[];
+  private int mBody[];
+  private int mEnd[];
+  private int mOwner[];
+  private long mIssuer[];
+  private boolean mSelf[];
+  private PGPPublicKeyRing mSelfSigned = null;
+}
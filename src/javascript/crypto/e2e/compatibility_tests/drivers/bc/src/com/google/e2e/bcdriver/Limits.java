@@ -0,0 +1,317 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.openpgp.PGPSecretKey;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>Bounds the work done on a single, possibly hostile, input.</p>
+ *
+ * <p>A <tt>Limits</tt> carries the configured maxima along with an
+ * optional wall-clock deadline. Call {@link #start()} at the
+ * beginning of each test to get an instance whose deadline is
+ * running. The deadline is enforced cooperatively: long-running
+ * loops call {@link #checkDeadline()}, which fails once the deadline
+ * passes or after {@link #cancel()} has been called on these limits
+ * or on those they were started or forked from.</p>
+ *
+ * <p>All violations are reported with a
+ * {@link LimitExceededException}.</p>
+ */
+public final class Limits {
+
+  // The largest count expressible by the one-byte coded form in
+  // RFC 4880, section 3.7.1.3.
+  private static final long MAX_ENCODABLE_S2K_ITERATIONS = 65011712L;
+
+  // Room to spare over the Argon2 parameters recommended in RFC 9580,
+  // section 3.7.1.4: 2 GiB of memory, 3 passes and 4 lanes at most.
+  private static final int DEFAULT_MAX_ARGON2_MEMORY_EXPONENT = 21;
+  private static final int DEFAULT_MAX_ARGON2_PASSES = 8;
+  private static final int DEFAULT_MAX_ARGON2_PARALLELISM = 16;
+
+  /**
+   * No limits at all, for callers that trust their input.
+   */
+  public static final Limits NONE = new Limits(
+      Long.MAX_VALUE,
+      Long.MAX_VALUE,
+      Integer.MAX_VALUE,
+      0L,
+      Integer.MAX_VALUE,
+      Integer.MAX_VALUE,
+      Integer.MAX_VALUE);
+
+  /**
+   * Defaults for untrusted input. They accept any iterated S2K that
+   * can be encoded, and Argon2 with up to 2 GiB, 8 passes and 16
+   * lanes. They have no deadline, but refuse keyrings with more than
+   * 10000 signatures and stop decompressing after 256 MiB.
+   */
+  public static final Limits DEFAULT = new Limits(
+      256L * 1024L * 1024L,
+      MAX_ENCODABLE_S2K_ITERATIONS,
+      10000,
+      0L);
+
+  /**
+   * @param maxDecompressedBytes the largest number of bytes that may
+   * be read from a compressed data packet.
+   * @param maxS2KIterations the largest number of bytes that may be
+   * hashed by an iterated and salted S2K when unlocking a secret key
+   * or a passphrase-encrypted message.
+   * @param maxSignaturesPerKey the largest number of signatures a
+   * keyring may carry for it to be validated.
+   * @param deadlineMillis the wall-clock time allowed for each test,
+   * or zero for no deadline.
+   */
+  public Limits(long maxDecompressedBytes, long maxS2KIterations,
+      int maxSignaturesPerKey, long deadlineMillis) {
+    this(maxDecompressedBytes, maxS2KIterations, maxSignaturesPerKey,
+        deadlineMillis, DEFAULT_MAX_ARGON2_MEMORY_EXPONENT,
+        DEFAULT_MAX_ARGON2_PASSES, DEFAULT_MAX_ARGON2_PARALLELISM);
+  }
+
+  /**
+   * As {@link #Limits(long, long, int, long)}, but also bounding
+   * Argon2 S2K specifiers.
+   *
+   * @param maxArgon2MemoryExponent the largest memory exponent; an
+   * Argon2 S2K uses 2^n KiB.
+   * @param maxArgon2Passes the largest number of passes.
+   * @param maxArgon2Parallelism the largest number of lanes.
+   */
+  public Limits(long maxDecompressedBytes, long maxS2KIterations,
+      int maxSignaturesPerKey, long deadlineMillis,
+      int maxArgon2MemoryExponent, int maxArgon2Passes,
+      int maxArgon2Parallelism) {
+    this(maxDecompressedBytes, maxS2KIterations, maxSignaturesPerKey,
+        deadlineMillis, maxArgon2MemoryExponent, maxArgon2Passes,
+        maxArgon2Parallelism, false, 0L, null);
+  }
+
+  public long getMaxDecompressedBytes() {
+    return mMaxDecompressedBytes;
+  }
+  public long getMaxS2KIterations() {
+    return mMaxS2KIterations;
+  }
+  public int getMaxSignaturesPerKey() {
+    return mMaxSignaturesPerKey;
+  }
+  public long getDeadlineMillis() {
+    return mDeadlineMillis;
+  }
+  public int getMaxArgon2MemoryExponent() {
+    return mMaxArgon2MemoryExponent;
+  }
+  public int getMaxArgon2Passes() {
+    return mMaxArgon2Passes;
+  }
+  public int getMaxArgon2Parallelism() {
+    return mMaxArgon2Parallelism;
+  }
+
+  /**
+   * @return a copy of these limits, whose deadline (if any) starts
+   * counting from now.
+   */
+  public Limits start() {
+    return new Limits(mMaxDecompressedBytes, mMaxS2KIterations,
+        mMaxSignaturesPerKey, mDeadlineMillis, mMaxArgon2MemoryExponent,
+        mMaxArgon2Passes, mMaxArgon2Parallelism, (mDeadlineMillis > 0),
+        System.nanoTime() + (mDeadlineMillis * 1000000L), this);
+  }
+
+  /**
+   * @return a copy of these limits that may be cancelled separately,
+   * and whose deadline has not started.
+   */
+  public Limits fork() {
+    return new Limits(mMaxDecompressedBytes, mMaxS2KIterations,
+        mMaxSignaturesPerKey, mDeadlineMillis, mMaxArgon2MemoryExponent,
+        mMaxArgon2Passes, mMaxArgon2Parallelism, false, 0L, this);
+  }
+
+  /**
+   * Requests that work under these limits, or any started or forked
+   * from them, stop at its next checkpoint. Safe to call from any
+   * thread.
+   */
+  public void cancel() {
+    mCancelled = true;
+  }
+
+  public boolean isCancelled() {
+    for (Limits l = this; l != null; l = l.mParent) {
+      if (l.mCancelled) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void checkDeadline() throws LimitExceededException {
+    if (isCancelled()) {
+      throw new LimitExceededException("Cancelled");
+    }
+    if (mHasExpiry && (System.nanoTime() - mExpiryNanos > 0)) {
+      throw new LimitExceededException("Deadline of " + mDeadlineMillis
+          + " ms exceeded");
+    }
+  }
+
+  void checkS2K(PGPSecretKey sk) throws LimitExceededException {
+    checkS2K(sk.getS2K(), "keyid 0x" + Long.toHexString(sk.getKeyID()));
+  }
+
+  /**
+   * Checks the S2K specifier that derives a key from a passphrase.
+   * Types whose cost we can't bound are refused.
+   *
+   * @param what names the secret key or message, for the error.
+   */
+  @SuppressWarnings("deprecation")
+  void checkS2K(S2K s2k, String what) throws LimitExceededException {
+    if (s2k == null) {
+      return;
+    }
+    switch (s2k.getType()) {
+      case S2K.SIMPLE:
+      case S2K.SALTED:
+      case S2K.GNU_DUMMY_S2K:
+        return;
+      case S2K.SALTED_AND_ITERATED:
+        checkS2KParameter("iteration count", s2k.getIterationCount(),
+            mMaxS2KIterations, what);
+        return;
+      case S2K.ARGON_2:
+        checkS2KParameter("Argon2 memory exponent",
+            s2k.getMemorySizeExponent(), mMaxArgon2MemoryExponent, what);
+        checkS2KParameter("Argon2 passes", s2k.getPasses(),
+            mMaxArgon2Passes, what);
+        checkS2KParameter("Argon2 parallelism", s2k.getParallelism(),
+            mMaxArgon2Parallelism, what);
+        return;
+      default:
+        throw new LimitExceededException("Unknown S2K type "
+            + s2k.getType() + " for " + what);
+    }
+  }
+
+  private static final void checkS2KParameter(String name, long value,
+      long max, String what) throws LimitExceededException {
+    if (value > max) {
+      throw new LimitExceededException("S2K " + name + " " + value
+          + " for " + what + " exceeds " + max);
+    }
+  }
+
+  void checkSignatureCount(long keyid, int count)
+      throws LimitExceededException {
+    if (count > mMaxSignaturesPerKey) {
+      throw new LimitExceededException("Key 0x" + Long.toHexString(keyid)
+          + " has more than " + mMaxSignaturesPerKey + " signatures");
+    }
+  }
+
+  /**
+   * Wraps a decompressing stream so reading fails once more than the
+   * allowed number of bytes have been produced, or the deadline
+   * passes.
+   */
+  InputStream limitDecompressed(InputStream in) {
+    return new LimitedInputStream(in);
+  }
+
+  private final class LimitedInputStream extends FilterInputStream {
+    private LimitedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        account(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+      int nread = super.read(buf, off, len);
+      if (nread > 0) {
+        account(nread);
+      }
+      return nread;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long nskipped = super.skip(n);
+      if (nskipped > 0) {
+        account(nskipped);
+      }
+      return nskipped;
+    }
+
+    private void account(long n) throws LimitExceededException {
+      mCount += n;
+      if (mCount > mMaxDecompressedBytes) {
+        throw new LimitExceededException("Decompressed data exceeds "
+            + mMaxDecompressedBytes + " bytes");
+      }
+      checkDeadline();
+    }
+
+    private long mCount = 0L;
+  }
+
+  private Limits(long maxDecompressedBytes, long maxS2KIterations,
+      int maxSignaturesPerKey, long deadlineMillis,
+      int maxArgon2MemoryExponent, int maxArgon2Passes,
+      int maxArgon2Parallelism, boolean hasExpiry, long expiryNanos,
+      Limits parent) {
+    mMaxDecompressedBytes = maxDecompressedBytes;
+    mMaxS2KIterations = maxS2KIterations;
+    mMaxSignaturesPerKey = maxSignaturesPerKey;
+    mDeadlineMillis = deadlineMillis;
+    mMaxArgon2MemoryExponent = maxArgon2MemoryExponent;
+    mMaxArgon2Passes = maxArgon2Passes;
+    mMaxArgon2Parallelism = maxArgon2Parallelism;
+    mHasExpiry = hasExpiry;
+    mExpiryNanos = expiryNanos;
+    mParent = parent;
+  }
+
+  private final long mMaxDecompressedBytes;
+  private final long mMaxS2KIterations;
+  private final int mMaxSignaturesPerKey;
+  private final long mDeadlineMillis;
+  private final int mMaxArgon2MemoryExponent;
+  private final int mMaxArgon2Passes;
+  private final int mMaxArgon2Parallelism;
+  private final boolean mHasExpiry;
+  private final long mExpiryNanos;
+  private final Limits mParent;
+  private volatile boolean mCancelled = false;
+}
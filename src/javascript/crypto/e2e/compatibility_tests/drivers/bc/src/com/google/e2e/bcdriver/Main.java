@@ -18,100 +18,717 @@ package com.google.e2e.bcdriver;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
 import org.bouncycastle.util.encoders.Hex;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A simple driver to run the OpenPGP compatibility tests against
- * the Bouncy Castle library.
+ * <p>A simple driver to run the OpenPGP compatibility tests against
+ * the Bouncy Castle library.</p>
+ *
+ * <p>Usage:
+ * <pre>
+ * Main [--shard i/n] [--weights results.json] [--results out.json]
+ *      [--max-decompressed-bytes n] [--max-s2k-iterations n]
+ *      [--max-argon2-memory-exponent n] [--max-argon2-passes n]
+ *      [--max-argon2-parallelism n] [--max-signatures n]
+ *      [--deadline-ms n]
+ *      [--prefetch-depth n] [--prefetch-budget bytes]
+ *      [--session-key-cache n] [--s2k-cache n] [--key-store file]
+ *      [--revocations path [--revocations-reload-ms n]]
+ *      [--workers n] [--perf-record file] [--perf-compare file]
+ *      [--perf-warmup n] [--perf-runs n] [--perf-threshold percent]
+ *      [--perf-min-ms n] [--warmup n] [--direct-buffers] root
+ * Main merge [--results out.json] shard-results.json...
+ * Main fuzz [options] root
+ * Main bench [--seconds n] [--types a,b,...] [--threads n]
+ *      [--heap [--count n]]
+ * </pre>
+ * With <tt>--shard</tt>, only the i'th of n disjoint subsets of the
+ * tests under root is run. <tt>--weights</tt> balances shards using
+ * test durations from an earlier results file, and <tt>--results</tt>
+ * records the outcome of this run. The <tt>merge</tt> command
+ * combines results from all shards into one report, and the
+ * <tt>fuzz</tt> command searches for expensive inputs (see {@link
+ * Fuzzer}). The <tt>bench</tt> command times generated RSA, P-256
+ * and Curve25519 keys on the same code paths (see {@link Bench}).</p>
+ *
+ * <p>An <tt>import</tt> test with <tt>"check_signatures": true</tt>
+ * also verifies copies of every selected self-signature.</p>
+ *
+ * <p>A testcase with <tt>"expect_error": true</tt> passes only if
+ * the input is rejected with an error rather than accepted, and one
+ * with <tt>"expect_limit": true</tt> only if it is stopped by one of
+ * the limits.
+ * Besides <tt>import</tt> and <tt>decrypt</tt> tests, a
+ * <tt>trust</tt> test checks the certification path to a userid
+ * through a set of keys (see {@link TrustGraph}), and an
+ * <tt>inspect</tt> test checks what can be learnt from a message's
+ * framing without decrypting it (see {@link Inspector}).</p>
+ *
+ * <p>The <tt>--max-*</tt> and <tt>--deadline-ms</tt> options bound
+ * the work done on each test (see {@link Limits}). Tests stopped by
+ * a limit are reported separately from failures. The exit status is
+ * 1 if any test failed, otherwise 2 if any test hit a limit.</p>
+ *
+ * <p>Testcase files are read ahead on background threads (see
+ * {@link Prefetcher}). <tt>--prefetch-depth</tt> sets how many tests
+ * may be read ahead, zero to disable, and <tt>--prefetch-budget</tt>
+ * caps the bytes buffered for them.</p>
+ *
+ * <p><tt>--session-key-cache</tt> keeps up to n recovered session
+ * keys, so messages that appear in several tests are only decrypted
+ * with the private key once.</p>
+ *
+ * <p>A <tt>decrypt</tt> test without a <tt>decryptKey</tt> decrypts
+ * a message encrypted to its <tt>passphrase</tt>. <tt>--s2k-cache</tt>
+ * keeps up to n keys derived from passphrases, so messages sharing a
+ * passphrase and salt only run the key derivation once; the time
+ * spent deriving keys is reported at the end, and as the
+ * <tt>kdf</tt> phase in performance runs.</p>
+ *
+ * <p>A <tt>decrypt</tt> test may list several <tt>verifyKeys</tt>
+ * instead of one <tt>verifyKey</tt>. Every signature is then checked
+ * against them, and <tt>expected_signatures</tt> gives the status of
+ * each (<tt>valid</tt>, <tt>invalid</tt> or <tt>no_key</tt>) in
+ * header order.</p>
+ *
+ * <p><tt>--key-store</tt> names a {@link ValidatedKeyStore}. Keyrings
+ * found there are not validated again until their validity window
+ * has passed, and keyrings validated during the run are added to it
+ * afterwards.</p>
+ *
+ * <p><tt>--revocations</tt> names a file or directory of revocation
+ * certificates received separately from the keyrings (see {@link
+ * RevocationIndex}), which are honored whenever a keyring is
+ * validated. The files are looked at again every
+ * <tt>--revocations-reload-ms</tt>, and certificates that have
+ * arrived since are applied to keyrings already validated or found
+ * in the key store.</p>
+ *
+ * <p>Tests are grouped by the keyrings they use (see {@link
+ * Scheduler}), and each group runs on one of <tt>--workers</tt>
+ * threads, which keeps its own cache of validated and unlocked
+ * keys.</p>
+ *
+ * <p><tt>--perf-record</tt> and <tt>--perf-compare</tt> run the tests
+ * <tt>--perf-warmup</tt> times unmeasured and then
+ * <tt>--perf-runs</tt> times measured, and either save the timings
+ * and allocation as a {@link PerfBaseline} or compare them against
+ * one. A test or phase that is slower or allocates more than
+ * <tt>--perf-threshold</tt> percent beyond the baseline is a
+ * regression, unless the difference is within the noise between
+ * runs or below <tt>--perf-min-ms</tt>. The exit status is 3 if
+ * there were regressions and no test failed or hit a limit. To gate
+ * a Bouncy Castle upgrade, record a baseline with the current jars
+ * and compare against it with the new ones. The session key and
+ * S2K caches, and keyrings validated into the key store, are
+ * emptied before every round, so each round does the same work.</p>
+ *
+ * <p><tt>--warmup</tt> first runs a small generated corpus n times
+ * (see {@link Warmup}), so that testcases don't pay for class loading
+ * and interpretation. The time from JVM launch to entering the driver,
+ * the warm-up, and the time until the first test result are reported
+ * separately. The <tt>cds</tt> target in build.xml creates a class
+ * data sharing archive to further shorten startup.</p>
+ *
+ * <p><tt>--direct-buffers</tt> decrypts into pooled off-heap buffers
+ * (see {@link PlainTextBuffer}), which are wiped as soon as each
+ * test has checked its plaintext.</p>
  */
 public class Main {
   public static void main(String args[])
-      throws IOException, PGPException {
-    int failureCount = runTests(new File(args[0]), 0);
+      throws IOException, PGPException, InterruptedException,
+      SignatureException {
+    sMainMillis = System.currentTimeMillis();
+    if ((args.length > 0) && args[0].equals("merge")) {
+      System.exit(runMerge(args));
+    } else if ((args.length > 0) && args[0].equals("fuzz")) {
+      System.exit(Fuzzer.run(args));
+    } else if ((args.length > 0) && args[0].equals("bench")) {
+      System.exit(Bench.run(args));
+    } else {
+      System.exit(runShard(args));
+    }
+  }
+
+  private static final int report(int failureCount, int limitCount) {
+    if (limitCount > 0) {
+      System.out.println(limitCount + " limits exceeded");
+    }
     if (failureCount > 0) {
       System.out.println(failureCount + " failures");
-      System.exit(1);
+      return 1;
+    }
+    return (limitCount > 0) ? 2 : 0;
+  }
+
+  private static final int runShard(String args[])
+      throws IOException, PGPException, InterruptedException {
+    Shard shard = Shard.ALL;
+    File weights = null;
+    File output = null;
+    File root = null;
+    long maxDecompressedBytes = Limits.DEFAULT.getMaxDecompressedBytes();
+    long maxS2KIterations = Limits.DEFAULT.getMaxS2KIterations();
+    int maxSignatures = Limits.DEFAULT.getMaxSignaturesPerKey();
+    long deadlineMillis = Limits.DEFAULT.getDeadlineMillis();
+    int maxArgon2MemoryExponent =
+        Limits.DEFAULT.getMaxArgon2MemoryExponent();
+    int maxArgon2Passes = Limits.DEFAULT.getMaxArgon2Passes();
+    int maxArgon2Parallelism = Limits.DEFAULT.getMaxArgon2Parallelism();
+    int sessionKeyCacheSize = 0;
+    int s2kCacheSize = 0;
+    File keyStore = null;
+    File revocations = null;
+    long revocationsReloadMillis = DEFAULT_REVOCATIONS_RELOAD_MILLIS;
+    int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+    int workers = 1;
+    File perfRecord = null;
+    File perfCompare = null;
+    int perfWarmup = 5;
+    int perfRuns = 10;
+    double perfThreshold = 10.0;
+    double perfMinMillis = 1.0;
+    int warmup = 0;
+    long prefetchBudget = DEFAULT_PREFETCH_BUDGET;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--shard")) {
+        shard = Shard.parse(requireValue(args, i++));
+      } else if (args[i].equals("--weights")) {
+        weights = new File(requireValue(args, i++));
+      } else if (args[i].equals("--results")) {
+        output = new File(requireValue(args, i++));
+      } else if (args[i].equals("--max-decompressed-bytes")) {
+        maxDecompressedBytes = Long.parseLong(requireValue(args, i++));
+      } else if (args[i].equals("--max-s2k-iterations")) {
+        maxS2KIterations = Long.parseLong(requireValue(args, i++));
+      } else if (args[i].equals("--max-argon2-memory-exponent")) {
+        maxArgon2MemoryExponent = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--max-argon2-passes")) {
+        maxArgon2Passes = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--max-argon2-parallelism")) {
+        maxArgon2Parallelism = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--max-signatures")) {
+        maxSignatures = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--deadline-ms")) {
+        deadlineMillis = Long.parseLong(requireValue(args, i++));
+      } else if (args[i].equals("--key-store")) {
+        keyStore = new File(requireValue(args, i++));
+      } else if (args[i].equals("--revocations")) {
+        revocations = new File(requireValue(args, i++));
+      } else if (args[i].equals("--revocations-reload-ms")) {
+        revocationsReloadMillis = Long.parseLong(requireValue(args, i++));
+      } else if (args[i].equals("--session-key-cache")) {
+        sessionKeyCacheSize = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--s2k-cache")) {
+        s2kCacheSize = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--prefetch-depth")) {
+        prefetchDepth = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--prefetch-budget")) {
+        prefetchBudget = Long.parseLong(requireValue(args, i++));
+      } else if (args[i].equals("--workers")) {
+        workers = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--perf-record")) {
+        perfRecord = new File(requireValue(args, i++));
+      } else if (args[i].equals("--perf-compare")) {
+        perfCompare = new File(requireValue(args, i++));
+      } else if (args[i].equals("--perf-warmup")) {
+        perfWarmup = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--perf-runs")) {
+        perfRuns = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--perf-threshold")) {
+        perfThreshold = Double.parseDouble(requireValue(args, i++));
+      } else if (args[i].equals("--perf-min-ms")) {
+        perfMinMillis = Double.parseDouble(requireValue(args, i++));
+      } else if (args[i].equals("--warmup")) {
+        warmup = Integer.parseInt(requireValue(args, i++));
+      } else if (args[i].equals("--direct-buffers")) {
+        sDirectBuffers = true;
+      } else if (root == null) {
+        root = new File(args[i]);
+      } else {
+        throw new IllegalArgumentException("Unexpected argument " + args[i]);
+      }
+    }
+    if (root == null) {
+      throw new IllegalArgumentException("Missing testcase directory");
+    }
+
+    long warmupMillis = 0L;
+    if (warmup > 0) {
+      long start = System.nanoTime();
+      try {
+        Warmup.run(warmup);
+      } catch (SignatureException se) {
+        throw new PGPException("Warm-up failed", se);
+      }
+      warmupMillis = (System.nanoTime() - start) / 1000000L;
+    }
+
+    List<String> tests = new ArrayList<String>();
+    collectTests(root, "", tests);
+    Map<String, Long> durations;
+    if (weights != null) {
+      durations = TestResults.read(weights).getDurations();
     } else {
-      System.exit(0);
+      durations = Collections.<String, Long>emptyMap();
+    }
+
+    Limits limits = new Limits(maxDecompressedBytes, maxS2KIterations,
+        maxSignatures, deadlineMillis, maxArgon2MemoryExponent,
+        maxArgon2Passes, maxArgon2Parallelism);
+    if (sessionKeyCacheSize > 0) {
+      sSessionKeyCache = new SessionKeyCache(sessionKeyCacheSize);
+    }
+    if (s2kCacheSize > 0) {
+      sS2KKeyCache = new S2KKeyCache(s2kCacheSize);
+    }
+    if (keyStore != null) {
+      sKeyStore = ValidatedKeyStore.open(keyStore);
+      sKeyStoreAdditions = Collections.synchronizedMap(
+          new HashMap<String, KeyChecker.PKR>());
+    }
+    if (revocations != null) {
+      sRevocations =
+          new RevocationIndex.Reloader(revocations, revocationsReloadMillis);
+    }
+    if (workers < 1) {
+      throw new IllegalArgumentException("--workers must be positive");
+    }
+
+    Scheduler scheduler = new Scheduler(root, shard.select(tests, durations));
+    println(scheduler.getSummary());
+    List<List<String>> plan = scheduler.assign(workers);
+
+    // Without a baseline to record or compare, tests run once.
+    PerfBaseline perf = null;
+    PerfBaseline baseline = null;
+    int rounds = 1;
+    if ((perfRecord != null) || (perfCompare != null)) {
+      if (perfRuns < 1) {
+        throw new IllegalArgumentException("--perf-runs must be positive");
+      }
+      perf = new PerfBaseline();
+      baseline = (perfCompare != null) ? PerfBaseline.read(perfCompare) : null;
+      rounds = perfWarmup + perfRuns;
+    }
+    TestResults results = null;
+    for (int round = 0; round < rounds; round++) {
+      // Each round starts cold, so that a measured round times the
+      // decrypt, unlock and validate work rather than cache hits.
+      if (round > 0) {
+        if (sessionKeyCacheSize > 0) {
+          sSessionKeyCache = new SessionKeyCache(sessionKeyCacheSize);
+        }
+        if (s2kCacheSize > 0) {
+          sS2KKeyCache = new S2KKeyCache(s2kCacheSize);
+        }
+        if (sKeyStoreAdditions != null) {
+          sKeyStoreAdditions.clear();
+        }
+      }
+      if ((perf != null) && (round >= perfWarmup)) {
+        perf.startRound();
+        sPerf = perf;
+      }
+      results = new TestResults(shard);
+      runWorkers(root, plan, scheduler.getConfigs(), limits, prefetchDepth,
+          prefetchBudget / workers, results);
+    }
+    sPerf = null;
+    if ((keyStore != null) && !sKeyStoreAdditions.isEmpty()) {
+      ValidatedKeyStore.write(keyStore, sKeyStore, sKeyStoreAdditions);
+    }
+    if (output != null) {
+      results.write(output);
+    }
+    if (sS2KKeyCache != null) {
+      println("S2K cache: " + sS2KKeyCache.getHits() + " hits, "
+          + sS2KKeyCache.getMisses() + " misses, "
+          + (sS2KKeyCache.getDeriveNanos() / 1000000L) + " ms deriving keys");
+    }
+    if (sRevocations != null) {
+      RevocationIndex index = sRevocations.get();
+      println("Revocations: " + index.getSignatureCount() + " signatures for "
+          + index.size() + " keys, " + sRevocations.getReloadCount()
+          + " reloads");
+    }
+    reportStartup(warmupMillis);
+    int status = report(results.getFailureCount(), results.getLimitCount());
+
+    if (perfRecord != null) {
+      perf.write(perfRecord);
     }
+    if (baseline != null) {
+      StringBuilder perfReport = new StringBuilder();
+      int regressions = perf.compare(baseline, perfThreshold / 100.0,
+          perfMinMillis, perfReport);
+      System.out.print(perfReport);
+      if ((regressions > 0) && (status == 0)) {
+        status = 3;
+      }
+    }
+    return status;
+  }
+
+  private static final int runMerge(String args[]) throws IOException {
+    File output = null;
+    TestResults merged = new TestResults();
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--results")) {
+        output = new File(requireValue(args, i++));
+      } else {
+        merged.addAll(TestResults.read(new File(args[i])));
+      }
+    }
+
+    for (TestResults.Entry entry : merged.getEntries()) {
+      if (entry.getStatus() != TestResults.Status.OK) {
+        println(entry.getPath() + ": " + entry.getStatus());
+      }
+    }
+    int failureCount = merged.getFailureCount()
+        + checkShardCoverage(merged.getShards());
+    println(merged.getEntries().size() + " tests from "
+        + merged.getShards().size() + " shards");
+
+    if (output != null) {
+      merged.write(output);
+    }
+    return report(failureCount, merged.getLimitCount());
+  }
+
+  // Each missing or duplicated shard is reported, and counted as a
+  // failure so an incomplete merge can't pass.
+  private static final int checkShardCoverage(List<String> shards) {
+    if (shards.isEmpty()) {
+      println("No shard results to merge");
+      return 1;
+    }
+    int problems = 0;
+    int count = Shard.parse(shards.get(0)).getCount();
+    int seen[] = new int[count];
+    for (String spec : shards) {
+      Shard shard = Shard.parse(spec);
+      if (shard.getCount() != count) {
+        println("Shard " + spec + " does not partition into " + count);
+        problems++;
+      } else {
+        seen[shard.getIndex()]++;
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      if (seen[i] != 1) {
+        println("Shard " + i + "/" + count + " merged " + seen[i] + " times");
+        problems++;
+      }
+    }
+    return problems;
   }
 
-  private static final int runTests(File root, int failureCount) {
+  private static final String requireValue(String args[], int i) {
+    if (i + 1 >= args.length) {
+      throw new IllegalArgumentException("Missing value for " + args[i]);
+    }
+    return args[i + 1];
+  }
+
+  // Gather the relative paths of all testcases under dir.
+  static final void collectTests(File dir, String prefix,
+      List<String> tests) {
 
-    File children[] = root.listFiles();
+    File children[] = dir.listFiles();
     if (children == null) {
-      return failureCount;
+      return;
     }
     for (File child : children) {
       if (child.getName().startsWith(".")) {
         continue;
       }
       if (child.isDirectory()) {
-        failureCount = runTests(child, failureCount);
+        collectTests(child, prefix + child.getName() + "/", tests);
       } else if (child.getName().endsWith(".json")) {
+        tests.add(prefix + child.getName());
+      }
+    }
+  }
+
+  // Runs each worker's tests on its own thread, with its own
+  // prefetcher and key cache. A single worker runs on the calling
+  // thread.
+  private static final void runWorkers(final File root,
+      List<List<String>> plan, final Map<String, JsonObject> configs,
+      final Limits limits, final int prefetchDepth,
+      final long prefetchBudget, TestResults results)
+      throws IOException, InterruptedException {
+
+    if (plan.size() == 1) {
+      KeyCache cache = new KeyCache();
+      runTests(new Prefetcher(root, plan.get(0), configs, prefetchDepth,
+              prefetchBudget), limits, cache, results, false);
+      reportCache(cache);
+      return;
+    }
+
+    // If one worker fails or this thread is interrupted, the others
+    // stop at their next checkpoint instead of finishing the test in
+    // hand, which an interrupt alone won't do.
+    final Limits workerLimits = limits.fork();
+    boolean done = false;
+    ExecutorService executor = Executors.newFixedThreadPool(plan.size());
+    try {
+      List<Future<TestResults>> pending = new ArrayList<Future<TestResults>>();
+      for (final List<String> tests : plan) {
+        pending.add(executor.submit(new Callable<TestResults>() {
+            @Override
+            public TestResults call() throws InterruptedException {
+              KeyCache cache = new KeyCache();
+              TestResults ret = new TestResults();
+              runTests(new Prefetcher(root, tests, configs, prefetchDepth,
+                      prefetchBudget), workerLimits, cache, ret, true);
+              reportCache(cache);
+              return ret;
+            }
+          }));
+      }
+      for (Future<TestResults> worker : pending) {
+        try {
+          results.addAll(worker.get());
+        } catch (ExecutionException ee) {
+          throw new IOException("Worker failed", ee.getCause());
+        }
+      }
+      done = true;
+    } finally {
+      if (!done) {
+        workerLimits.cancel();
+      }
+      executor.shutdownNow();
+    }
+  }
+
+  private static final void reportStartup(long warmupMillis) {
+    long launch = ManagementFactory.getRuntimeMXBean().getStartTime();
+    StringBuilder sb = new StringBuilder();
+    sb.append("Startup ").append(sMainMillis - launch).append(" ms");
+    if (warmupMillis > 0) {
+      sb.append(", warm-up ").append(warmupMillis).append(" ms");
+    }
+    long first = sFirstResultMillis.get();
+    if (first != 0L) {
+      sb.append(", first result after ").append(first - launch)
+          .append(" ms");
+    }
+    sb.append(", total ").append(System.currentTimeMillis() - launch)
+        .append(" ms");
+    println(sb.toString());
+  }
+
+  private static final void reportCache(KeyCache cache) {
+    println("Key cache: " + cache.getHits() + " hits, "
+        + cache.getMisses() + " misses");
+  }
+
+  // With several workers, each test's output is collected and
+  // printed in one piece so that it isn't interleaved with others.
+  private static final void runTests(Prefetcher prefetcher, Limits limits,
+      KeyCache cache, TestResults results, boolean buffered)
+      throws InterruptedException {
+
+    try {
+      while (prefetcher.hasNext() && !limits.isCancelled()) {
+        TestInput input = prefetcher.next();
+        if (buffered) {
+          sOutput.set(new StringBuilder());
+        }
+        PerfBaseline perf = sPerf;
+        PerfBaseline.Sample sample = (perf != null) ? perf.begin() : null;
+        long start = System.nanoTime();
+        TestResults.Status status;
         try {
-          print(child.getName() + ": ");
-          runTest(child);
+          print(input.getFile().getName() + ": ");
+          runTest(input, limits.start(), cache);
+          status = TestResults.Status.OK;
         } catch (Throwable any) {
-          failureCount++;
-          println("FAILED");
-          any.printStackTrace();
-          println("");
+          LimitExceededException lee = findLimitExceeded(any);
+          if (lee != null) {
+            status = TestResults.Status.LIMIT;
+            println("LIMIT EXCEEDED: " + lee.getMessage());
+          } else {
+            status = TestResults.Status.FAILED;
+            println("FAILED");
+            StringWriter trace = new StringWriter();
+            any.printStackTrace(new PrintWriter(trace));
+            println(trace.toString());
+          }
+        }
+        results.add(input.getPath(), status,
+            (System.nanoTime() - start) / 1000000L);
+        sFirstResultMillis.compareAndSet(0L, System.currentTimeMillis());
+        if (sample != null) {
+          perf.end(input.getPath(), sample);
+        }
+        if (buffered) {
+          System.err.print(sOutput.get());
+          System.err.flush();
+          sOutput.remove();
         }
       }
+    } finally {
+      prefetcher.close();
     }
-    return failureCount;
   }
 
-  private static final void runTest(File base)
+  // Limits may be hit deep within Bouncy Castle, which sometimes
+  // wraps the exception.
+  private static final LimitExceededException findLimitExceeded(
+      Throwable t) {
+    while (t != null) {
+      if (t instanceof LimitExceededException) {
+        return (LimitExceededException) t;
+      }
+      t = t.getCause();
+    }
+    return null;
+  }
+
+  private static final void runTest(TestInput input, Limits limits,
+      KeyCache cache)
       throws IOException, PGPException, SignatureException {
-    BufferedReader br = new BufferedReader(new FileReader(base));
-    JsonParser parser = new JsonParser();
+    JsonObject config = input.getConfig();
+    if (config.has("expect_limit")
+        && config.get("expect_limit").getAsBoolean()) {
+      runLimitTest(config, input, limits, cache);
+      return;
+    }
+    if (!config.has("expect_error")
+        || !config.get("expect_error").getAsBoolean()) {
+      runTestOfType(config, input, limits, cache);
+      println("OK");
+      return;
+    }
+
+    // Limits are still reported as such, and only the errors by which
+    // bad input is rejected are expected.
     try {
-      JsonObject config = parser.parse(br).getAsJsonObject();
-      String testType = config.get("type").getAsString();
-      if (testType.equals("import")) {
-        print("IMPORT: ");
-        runImportTest(config, base);
-      } else if (testType.equals("decrypt")) {
-        print("DECRYPT: ");
-        runDecryptTest(config, base);
-      } else {
-        throw new IllegalArgumentException(
-            "Unexpected test type in " + base);
+      runTestOfType(config, input, limits, cache);
+    } catch (IOException ioe) {
+      expectedError(ioe);
+      return;
+    } catch (PGPException pe) {
+      expectedError(pe);
+      return;
+    } catch (SignatureException se) {
+      expectedError(se);
+      return;
+    } catch (AssertionError ae) {
+      println("OK (rejected: " + ae.getMessage() + ")");
+      return;
+    }
+    throw new AssertionError("Expected an error");
+  }
+
+  // Passes only if a limit stops the test; any other error fails it
+  // as usual.
+  private static final void runLimitTest(JsonObject config,
+      TestInput input, Limits limits, KeyCache cache)
+      throws IOException, PGPException, SignatureException {
+    try {
+      runTestOfType(config, input, limits, cache);
+    } catch (IOException ioe) {
+      if (!expectedLimit(ioe)) {
+        throw ioe;
       }
-    } finally {
-      br.close();
+      return;
+    } catch (PGPException pe) {
+      if (!expectedLimit(pe)) {
+        throw pe;
+      }
+      return;
+    } catch (SignatureException se) {
+      if (!expectedLimit(se)) {
+        throw se;
+      }
+      return;
     }
+    throw new AssertionError("Expected a limit to be exceeded");
   }
 
-  private static final String getBaseName(File base) {
-    String name = base.getName();
-    return name.substring(0, name.length() - ".json".length());
+  private static final boolean expectedLimit(Exception ex) {
+    LimitExceededException lee = findLimitExceeded(ex);
+    if (lee == null) {
+      return false;
+    }
+    println("OK (limit exceeded: " + lee.getMessage() + ")");
+    return true;
   }
 
-  private static final void runImportTest(JsonObject config, File base)
+  private static final void expectedError(Exception ex)
+      throws IOException {
+    LimitExceededException lee = findLimitExceeded(ex);
+    if (lee != null) {
+      throw lee;
+    }
+    println("OK (rejected: " + ex + ")");
+  }
+
+  private static final void runTestOfType(JsonObject config,
+      TestInput input, Limits limits, KeyCache cache)
       throws IOException, PGPException, SignatureException {
-    File root = base.getParentFile();
-    String baseName = getBaseName(base);
-    KeyChecker.PKR info = KeyChecker.validate(Util.readPublicKeyRing(
-        new File(root, baseName + ".asc")));
+    String testType = config.get("type").getAsString();
+    if (testType.equals("import")) {
+      print("IMPORT: ");
+      runImportTest(config, input, limits, cache);
+    } else if (testType.equals("decrypt")) {
+      print("DECRYPT: ");
+      runDecryptTest(config, input, limits, cache);
+    } else if (testType.equals("trust")) {
+      print("TRUST: ");
+      runTrustTest(config, input, limits, cache);
+    } else if (testType.equals("inspect")) {
+      print("INSPECT: ");
+      runInspectTest(config, input);
+    } else {
+      throw new IllegalArgumentException(
+          "Unexpected test type in " + input.getFile());
+    }
+  }
+
+  private static final void runImportTest(JsonObject config, TestInput input,
+      Limits limits, KeyCache cache)
+      throws IOException, PGPException, SignatureException {
+    KeyChecker.PKR info =
+        validateKey(input, input.getBaseName() + ".asc", limits, cache);
     assertEquals(info.getErrors(), KeyChecker.PKR.Status.OK, info.getStatus());
     assertEquals("mismatched fingerprint",
         config.get("expected_fingerprint").getAsString(),
@@ -143,7 +760,183 @@ public class Main {
         }
       }
     }
-    println("OK");
+    if (config.has("check_signatures")
+        && config.get("check_signatures").getAsBoolean()) {
+      checkSelfSignatures(info);
+    }
+  }
+
+  // Every thread shares the PKR's selected signatures, so each must
+  // hand out its own copy, and verifying one copy must leave the
+  // next one intact.
+  private static final void checkSelfSignatures(KeyChecker.PKR info)
+      throws PGPException {
+    PGPPublicKey primary = info.getOriginal().getPublicKey();
+    for (KeyChecker.UserID uid : info.getUserIDs()) {
+      for (int i = 0; i < 2; i++) {
+        PGPSignature sig = uid.getSignature();
+        assertEquals("shared self-signature", false, uid.isSelected(sig));
+        sig.init(new BcPGPContentVerifierBuilderProvider(), primary);
+        assertEquals("bad self-signature copy", true,
+            sig.verifyCertification(uid.getName(), primary));
+      }
+    }
+    for (KeyChecker.Subkey subkey : info.getSubkeys()) {
+      for (int i = 0; i < 2; i++) {
+        PGPSignature sig = subkey.getSignature();
+        assertEquals("shared binding signature", false,
+            subkey.isSelected(sig));
+        sig.init(new BcPGPContentVerifierBuilderProvider(), primary);
+        assertEquals("bad binding signature copy", true,
+            sig.verifyCertification(primary, subkey.getPublicKey()));
+      }
+    }
+  }
+
+  // Checks what Inspector learns from the message framing alone
+  // against whichever of "encrypted", "integrity_protected",
+  // "symmetric_algorithm", "aead_algorithm" and "recipients" (hex key
+  // ids) are given.
+  private static final void runInspectTest(JsonObject config,
+      TestInput input) throws IOException {
+    Inspector.MessageInfo info =
+        Inspector.inspect(input.open(input.getBaseName() + ".asc"));
+    if (config.has("encrypted")) {
+      assertEquals("Mismatched encryption",
+          Boolean.valueOf(config.get("encrypted").getAsBoolean()),
+          Boolean.valueOf(info.isEncrypted()));
+    }
+    if (config.has("integrity_protected")) {
+      assertEquals("Mismatched integrity protection",
+          Boolean.valueOf(config.get("integrity_protected").getAsBoolean()),
+          Boolean.valueOf(info.isIntegrityProtected()));
+    }
+    if (config.has("symmetric_algorithm")) {
+      assertEquals("Mismatched symmetric algorithm",
+          Integer.valueOf(config.get("symmetric_algorithm").getAsInt()),
+          Integer.valueOf(info.getSymmetricAlgorithm()));
+    }
+    if (config.has("aead_algorithm")) {
+      assertEquals("Mismatched AEAD algorithm",
+          Integer.valueOf(config.get("aead_algorithm").getAsInt()),
+          Integer.valueOf(info.getAEADAlgorithm()));
+    }
+    if (config.has("recipients")) {
+      List<String> expected = new ArrayList<String>();
+      for (JsonElement el : config.get("recipients").getAsJsonArray()) {
+        expected.add(el.getAsString());
+      }
+      List<String> actual = new ArrayList<String>();
+      for (Long keyid : info.getRecipientKeyIDs()) {
+        actual.add(Long.toHexString(keyid.longValue()));
+      }
+      assertEquals("Mismatched recipients", expected, actual);
+    }
+  }
+
+  // Loads "keys" into a trust graph, trusting "roots" and revoking
+  // "revoked", and checks that the shortest path to "uid" on
+  // "target" is "expected_path" (empty if there should be none).
+  private static final void runTrustTest(JsonObject config,
+      TestInput input, Limits limits, KeyCache cache)
+      throws IOException, PGPException, SignatureException {
+    Map<String, Long> keyIDs = new HashMap<String, Long>();
+    TrustGraph graph = new TrustGraph();
+    for (JsonElement el : config.get("keys").getAsJsonArray()) {
+      String name = el.getAsString();
+      LazyKeyRing ring = LazyKeyRing.read(input.open(name));
+      graph.add(ring, validateKey(input, name, limits, cache));
+      keyIDs.put(name, Long.valueOf(ring.getKeyID()));
+    }
+    for (JsonElement el : config.get("roots").getAsJsonArray()) {
+      graph.addTrustRoot(keyIDOf(keyIDs, el.getAsString()));
+    }
+    if (config.has("revoked")) {
+      for (JsonElement el : config.get("revoked").getAsJsonArray()) {
+        graph.revoke(keyIDOf(keyIDs, el.getAsString()));
+      }
+    }
+    List<Long> path;
+    try {
+      path = graph.findPath(
+          keyIDOf(keyIDs, config.get("target").getAsString()),
+          config.get("uid").getAsString(),
+          config.get("max_depth").getAsInt());
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted", ie);
+    }
+    List<Long> expected = new ArrayList<Long>();
+    for (JsonElement el : config.get("expected_path").getAsJsonArray()) {
+      expected.add(Long.valueOf(keyIDOf(keyIDs, el.getAsString())));
+    }
+    assertEquals("Mismatched trust path", expected,
+        (path != null) ? path : Collections.<Long>emptyList());
+  }
+
+  private static final long keyIDOf(Map<String, Long> keyIDs,
+      String name) {
+    Long ret = keyIDs.get(name);
+    if (ret == null) {
+      throw new IllegalArgumentException(name + " is not one of the keys");
+    }
+    return ret.longValue();
+  }
+
+  // Validates a keyring file from the test, using the worker's cache
+  // and then the key store when one was provided.
+  private static final KeyChecker.PKR validateKey(TestInput input,
+      String name, Limits limits, KeyCache cache)
+      throws IOException, PGPException, SignatureException {
+    String path = Scheduler.keyPath(input.getFile(), name);
+    KeyChecker.PKR ret = cache.getValidated(path);
+    if ((ret != null) && !mayBeNewlyRevoked(ret)) {
+      return ret;
+    }
+    if (sKeyStoreAdditions == null) {
+      ret = parseAndValidate(input, name, limits);
+      cache.putValidated(path, ret);
+      return ret;
+    }
+    String digest = ValidatedKeyStore.digest(input.getBytes(name));
+    ret = sKeyStoreAdditions.get(digest);
+    if ((ret == null) && (sKeyStore != null)) {
+      ret = sKeyStore.findBySource(digest, limits);
+    }
+    if ((ret == null) || mayBeNewlyRevoked(ret)) {
+      ret = parseAndValidate(input, name, limits);
+      sKeyStoreAdditions.put(digest, ret);
+    }
+    cache.putValidated(path, ret);
+    return ret;
+  }
+
+  private static final KeyChecker.PKR parseAndValidate(TestInput input,
+      String name, Limits limits)
+      throws IOException, PGPException, SignatureException {
+    long start = System.nanoTime();
+    PGPPublicKeyRing pkr =
+        LazyKeyRing.read(input.open(name)).getSelfSigned();
+    PerfBaseline.phase("parse", start);
+    start = System.nanoTime();
+    RevocationIndex revocations =
+        (sRevocations != null) ? sRevocations.get() : null;
+    KeyChecker.PKR ret = KeyChecker.validate(pkr, limits, revocations);
+    PerfBaseline.phase("validate", start);
+    return ret;
+  }
+
+  // A keyring validated or stored before the current revocations were
+  // loaded needs validating again, but only if the index may hold a
+  // revocation issued by its primary key.
+  private static final boolean mayBeNewlyRevoked(KeyChecker.PKR pkr) {
+    if ((sRevocations == null)
+        || (pkr.getStatus() == KeyChecker.PKR.Status.REVOKED)) {
+      return false;
+    }
+    RevocationIndex index = sRevocations.get();
+    return (pkr.getRevocationIndex() != index)
+        && index.mightBeRevoked(pkr.getOriginal().getPublicKey().getKeyID());
   }
 
   private static final String hexEncode(byte[] data)
@@ -172,35 +965,87 @@ public class Main {
     }
   }
 
-  private static final void runDecryptTest(JsonObject config, File base)
+  private static final void runDecryptTest(JsonObject config,
+      TestInput input, Limits limits, KeyCache cache)
       throws PGPException, SignatureException, IOException {
-    File root = base.getParentFile();
-    String baseName = getBaseName(base);
-
     KeyChecker.PKR verify;
     if (config.has("verifyKey")) {
-      verify = KeyChecker.validate(Util.readPublicKeyRing(
-          new File(root, config.get("verifyKey").getAsString())));
+      verify = validateKey(input, config.get("verifyKey").getAsString(),
+          limits, cache);
       assertEquals(verify.getErrors(),
           KeyChecker.PKR.Status.OK, verify.getStatus());
     } else {
       verify = null;
     }
+    List<KeyChecker.PKR> verifiers = null;
+    if (config.has("verifyKeys")) {
+      verifiers = new ArrayList<KeyChecker.PKR>();
+      for (JsonElement el : config.get("verifyKeys").getAsJsonArray()) {
+        verifiers.add(validateKey(input, el.getAsString(), limits, cache));
+      }
+    }
 
-    PGPSecretKeyRing skr =
-        Util.readSecretKeyRing(new File(root,
-                config.get("decryptKey").getAsString()));
-    assertNotNull("Could not read key", skr);
+    String passphrase = config.get("passphrase").getAsString();
+    InputStream message;
+    Decryptor.Result result;
+    if (!config.has("decryptKey")) {
+      // The message itself is encrypted to the passphrase.
+      long start = System.nanoTime();
+      message = input.open(input.getBaseName() + ".asc");
+      if (verifiers != null) {
+        result = Decryptor.decryptWithPassphraseVerifyingAll(message,
+            passphrase, verifiers, limits, sS2KKeyCache, sDirectBuffers);
+      } else if (sDirectBuffers) {
+        result = Decryptor.decryptToBufferWithPassphrase(message,
+            passphrase, verify, limits, sS2KKeyCache);
+      } else {
+        result = Decryptor.decryptWithPassphrase(message, passphrase,
+            verify, limits, sS2KKeyCache);
+      }
+      PerfBaseline.phase("decrypt", start);
+    } else {
+      String keyName = config.get("decryptKey").getAsString();
+      String keyPath = Scheduler.keyPath(input.getFile(), keyName);
+      PGPPrivateKey decryptKey = cache.getDecryptionKey(keyPath, passphrase);
+      if (decryptKey == null) {
+        long start = System.nanoTime();
+        PGPSecretKeyRing skr = Util.readSecretKeyRing(input.open(keyName));
+        assertNotNull("Could not read key", skr);
 
-    PGPPrivateKey decryptKey = Decryptor.extractDecryptionKey(skr,
-        config.get("passphrase").getAsString());
-    assertNotNull("Could not decrypt secret key", decryptKey);
+        decryptKey = Decryptor.extractDecryptionKey(skr, passphrase, limits);
+        assertNotNull("Could not decrypt secret key", decryptKey);
+        cache.putDecryptionKey(keyPath, passphrase, decryptKey);
+        PerfBaseline.phase("unlock", start);
+      }
 
-    BufferedInputStream bin = null;
+      long start = System.nanoTime();
+      message = input.open(input.getBaseName() + ".asc");
+      if (verifiers != null) {
+        result = Decryptor.decryptVerifyingAll(message, decryptKey,
+            verifiers, limits, sSessionKeyCache, sDirectBuffers);
+      } else {
+        result = sDirectBuffers
+            ? Decryptor.decryptToBuffer(message, decryptKey, verify, limits,
+                sSessionKeyCache)
+            : Decryptor.decrypt(message, decryptKey, verify, limits,
+                sSessionKeyCache);
+      }
+      PerfBaseline.phase("decrypt", start);
+    }
+    assertNotNull("Could not decrypt message", result);
     try {
-      bin = new BufferedInputStream(new FileInputStream(
-          new File(root, baseName + ".asc")));
-      Decryptor.Result result = Decryptor.decrypt(bin, decryptKey, verify);
+      if (config.has("expected_signatures")) {
+        List<String> expected = new ArrayList<String>();
+        for (JsonElement el :
+                 config.get("expected_signatures").getAsJsonArray()) {
+          expected.add(el.getAsString());
+        }
+        List<String> actual = new ArrayList<String>();
+        for (Decryptor.SignatureResult sig : result.getSignatures()) {
+          actual.add(sig.getStatus().name().toLowerCase());
+        }
+        assertEquals("Mismatched signatures", expected, actual);
+      }
       if (config.has("filename")) {
         assertEquals("Mismatched filename",
             config.get("filename").getAsString(), result.getName());
@@ -208,25 +1053,50 @@ public class Main {
       if (config.has("textcontent")) {
         assertEquals("Incorrect content",
             config.get("textcontent").getAsString(),
-            new String(result.getPlainText(), "utf-8"));
+            Charset.forName("utf-8")
+            .decode(result.getPlainTextBuffer()).toString());
       }
-      println("OK");
     } finally {
-      if (bin != null) {
-        try {
-          bin.close();
-        } catch (IOException ignore) {
-          ; // ignore
-        }
-      }
+      result.close();
     }
   }
 
+  private static SessionKeyCache sSessionKeyCache = null;
+  private static S2KKeyCache sS2KKeyCache = null;
+  private static boolean sDirectBuffers = false;
+  private static ValidatedKeyStore sKeyStore = null;
+  private static RevocationIndex.Reloader sRevocations = null;
+  // Wall clock times at which main was entered and the first test
+  // finished.
+  private static long sMainMillis = 0L;
+  private static final AtomicLong sFirstResultMillis = new AtomicLong();
+  // Set during measured rounds of a performance run.
+  private static volatile PerfBaseline sPerf = null;
+  private static Map<String, KeyChecker.PKR> sKeyStoreAdditions = null;
+
+  private static final int DEFAULT_PREFETCH_DEPTH = 8;
+  private static final long DEFAULT_PREFETCH_BUDGET = 64L * 1024L * 1024L;
+  private static final long DEFAULT_REVOCATIONS_RELOAD_MILLIS = 1000L;
+
+  // Output of the current test, when it is being collected.
+  private static final ThreadLocal<StringBuilder> sOutput =
+      new ThreadLocal<StringBuilder>();
+
   private static final void print(String s) {
+    StringBuilder output = sOutput.get();
+    if (output != null) {
+      output.append(s);
+      return;
+    }
     System.err.print(s);
     System.err.flush();
   }
   private static final void println(String s) {
+    StringBuilder output = sOutput.get();
+    if (output != null) {
+      output.append(s).append('\n');
+      return;
+    }
     System.err.println(s);
   }
 
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.bcpg.AEADEncDataPacket;
+import org.bouncycastle.bcpg.AEADUtils;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricEncIntegrityPacket;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.HKDFParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPSessionKey;
+import org.bouncycastle.openpgp.operator.PGPDataDecryptor;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcAEADUtil;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Decrypts chunked AEAD encrypted data, from either a version 2
+ * SEIPD packet (RFC 9580) or a version 1 AEAD encrypted data packet
+ * (LibrePGP), authenticating its chunks in parallel.</p>
+ *
+ * <p>Every chunk carries its own tag and nonce, so chunks read ahead
+ * of the caller are decrypted on a shared pool of threads, and handed
+ * back in order once their tag has been checked. At most {@link
+ * #WINDOW} chunks are in flight, which bounds the memory used however
+ * large the message is, and each chunk's plaintext is wiped once it
+ * has been read. The final tag, which covers the total length, is
+ * checked before the last chunk is returned, so a truncated message
+ * fails rather than ending early.</p>
+ *
+ * <p>A message with a single chunk, or any message on a single
+ * processor, is decrypted on the calling thread.</p>
+ */
+final class ParallelAEADDecryptor implements PGPDataDecryptor {
+
+  /**
+   * @return a decryptor for a version 2 SEIPD packet, whose message
+   * key and nonce are derived from the session key.
+   */
+  static final PGPDataDecryptor create(SymmetricEncIntegrityPacket seipd,
+      PGPSessionKey sessionKey) throws PGPException {
+    if (seipd.getVersion() != SymmetricEncIntegrityPacket.VERSION_2) {
+      throw new IllegalArgumentException("Not an AEAD packet");
+    }
+    byte[] aad = seipd.getAAData();
+    byte[] ikm = sessionKey.getKey();
+    int ivLength = AEADUtils.getIVLength(seipd.getAeadAlgorithm()) - 8;
+    HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+    hkdf.init(new HKDFParameters(ikm, seipd.getSalt(), aad));
+    byte[] keyAndIV = new byte[ikm.length + ivLength];
+    hkdf.generateBytes(keyAndIV, 0, keyAndIV.length);
+    Arrays.fill(ikm, (byte) 0);
+
+    ParallelAEADDecryptor ret = new ParallelAEADDecryptor(false,
+        seipd.getCipherAlgorithm(), seipd.getAeadAlgorithm(),
+        seipd.getChunkSize(),
+        Arrays.copyOfRange(keyAndIV, 0, keyAndIV.length - ivLength),
+        Arrays.copyOfRange(keyAndIV, keyAndIV.length - ivLength,
+            keyAndIV.length), aad);
+    Arrays.fill(keyAndIV, (byte) 0);
+    return ret;
+  }
+
+  /**
+   * @return a decryptor for a LibrePGP AEAD encrypted data packet,
+   * which uses the session key directly.
+   */
+  static final PGPDataDecryptor create(AEADEncDataPacket aead,
+      PGPSessionKey sessionKey) throws PGPException {
+    return new ParallelAEADDecryptor(true, aead.getAlgorithm() & 0xff,
+        aead.getAEADAlgorithm() & 0xff, aead.getChunkSize(),
+        sessionKey.getKey(), aead.getIV(), aead.getAAData());
+  }
+
+  @Override
+  public InputStream getInputStream(InputStream in) {
+    return new ChunkStream(in);
+  }
+
+  @Override
+  public int getBlockSize() {
+    return mBlockSize;
+  }
+
+  // Unused for AEAD data, whose integrity is checked by the stream,
+  // but Bouncy Castle's own decryptors supply one.
+  @Override
+  public PGPDigestCalculator getIntegrityCalculator() {
+    return mIntegrityCalculator;
+  }
+
+  private ParallelAEADDecryptor(boolean librePGP, int cipherAlgorithm,
+      int aeadAlgorithm, int chunkSize, byte[] key, byte[] iv, byte[] aad)
+      throws PGPException {
+    if ((chunkSize < 0) || (chunkSize > MAX_CHUNK_SIZE)) {
+      throw new PGPException("Unsupported AEAD chunk size " + chunkSize);
+    }
+    mLibrePGP = librePGP;
+    mCipherAlgorithm = cipherAlgorithm;
+    mAEADAlgorithm = aeadAlgorithm;
+    mChunkLength = 1 << (chunkSize + 6);
+    mTagLength = AEADUtils.getAuthTagLength(aeadAlgorithm);
+    mKey = key;
+    mIV = iv;
+    mAAD = aad;
+    mBlockSize = BcAEADUtil.createAEADCipher(cipherAlgorithm, aeadAlgorithm)
+        .getUnderlyingCipher().getBlockSize();
+    mIntegrityCalculator = new BcPGPDigestCalculatorProvider()
+        .get(HashAlgorithmTags.SHA1);
+  }
+
+  // Returns a cipher set up for one chunk, or for the final tag when
+  // totalLength is not negative.
+  private final AEADBlockCipher getCipher(long index, long totalLength)
+      throws PGPException {
+    byte[] nonce;
+    if (mLibrePGP) {
+      // The IV with the chunk index xor'd into its last eight bytes.
+      nonce = mIV.clone();
+      for (int i = 0; i < 8; i++) {
+        nonce[nonce.length - 1 - i] ^= (byte) (index >> (8 * i));
+      }
+    } else {
+      // The IV followed by the chunk index.
+      nonce = Arrays.copyOf(mIV, mIV.length + 8);
+      putLong(nonce, mIV.length, index);
+    }
+
+    // LibrePGP also authenticates the chunk index, and both
+    // authenticate the total length in the final tag.
+    int extra = (mLibrePGP ? 8 : 0) + ((totalLength >= 0) ? 8 : 0);
+    byte[] aad = Arrays.copyOf(mAAD, mAAD.length + extra);
+    int off = mAAD.length;
+    if (mLibrePGP) {
+      putLong(aad, off, index);
+      off += 8;
+    }
+    if (totalLength >= 0) {
+      putLong(aad, off, totalLength);
+    }
+
+    AEADBlockCipher ret =
+        BcAEADUtil.createAEADCipher(mCipherAlgorithm, mAEADAlgorithm);
+    ret.init(false, new AEADParameters(new KeyParameter(mKey),
+            8 * mTagLength, nonce, aad));
+    return ret;
+  }
+
+  private static final void putLong(byte[] buf, int off, long value) {
+    for (int i = 0; i < 8; i++) {
+      buf[off + i] = (byte) (value >> (56 - 8 * i));
+    }
+  }
+
+  // Decrypts and authenticates one chunk, from the start of its
+  // buffer.
+  private final class Chunk implements Callable<byte[]> {
+    private Chunk(byte[] data, int length, long index) {
+      mData = data;
+      mLength = length;
+      mIndex = index;
+    }
+
+    @Override
+    public byte[] call() throws IOException, PGPException {
+      AEADBlockCipher cipher = getCipher(mIndex, -1L);
+      byte[] ret = new byte[cipher.getOutputSize(mLength)];
+      try {
+        int n = cipher.processBytes(mData, 0, mLength, ret, 0);
+        cipher.doFinal(ret, n);
+      } catch (InvalidCipherTextException icte) {
+        Arrays.fill(ret, (byte) 0);
+        throw new IOException("AEAD chunk " + mIndex
+            + " failed to authenticate", icte);
+      }
+      return ret;
+    }
+
+    private final byte[] mData;
+    private final int mLength;
+    private final long mIndex;
+  }
+
+  // Reads chunks ahead of the caller, and returns their plaintext in
+  // order.
+  private final class ChunkStream extends InputStream {
+    private ChunkStream(InputStream in) {
+      mIn = in;
+      mCarry = new byte[mTagLength];
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!ensureAvailable()) {
+        return -1;
+      }
+      return mChunk[mPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!ensureAvailable()) {
+        return -1;
+      }
+      int n = Math.min(len, mChunk.length - mPos);
+      System.arraycopy(mChunk, mPos, buf, off, n);
+      mPos += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return (mChunk != null) ? (mChunk.length - mPos) : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (Future<byte[]> pending : mPending) {
+        pending.cancel(true);
+      }
+      mPending.clear();
+      wipeChunk();
+      mIn.close();
+    }
+
+    // Returns false at the end of the data, once every chunk and the
+    // final tag have been authenticated.
+    private boolean ensureAvailable() throws IOException {
+      while ((mChunk == null) || (mPos == mChunk.length)) {
+        wipeChunk();
+        while (!mEnd && (mPending.size() < WINDOW)) {
+          readChunk();
+        }
+        if (mPending.isEmpty()) {
+          checkFinalTag();
+          return false;
+        }
+        mChunk = await(mPending.removeFirst());
+        mPos = 0;
+        // Callers may stop once they have the data they expect, so
+        // the final tag is checked along with the last chunk.
+        if (mEnd && mPending.isEmpty()) {
+          checkFinalTag();
+        }
+      }
+      return true;
+    }
+
+    // Reads the next chunk, holding back enough bytes to recognize
+    // the final tag, and queues it for decryption.
+    private void readChunk() throws IOException {
+      byte[] buf = new byte[mChunkLength + 2 * mTagLength];
+      System.arraycopy(mCarry, 0, buf, 0, mCarryCount);
+      int n = mCarryCount;
+      while (n < buf.length) {
+        int nread = mIn.read(buf, n, buf.length - n);
+        if (nread < 0) {
+          break;
+        }
+        n += nread;
+      }
+
+      int length;
+      if (n == buf.length) {
+        length = mChunkLength + mTagLength;
+        System.arraycopy(buf, length, mCarry, 0, mTagLength);
+        mCarryCount = mTagLength;
+      } else {
+        mEnd = true;
+        if (n < mTagLength) {
+          throw new IOException("AEAD data is truncated");
+        }
+        length = n - mTagLength;
+        mFinalTag = Arrays.copyOfRange(buf, length, n);
+        if (length == 0) {
+          return;
+        }
+      }
+
+      mTotalLength += length - mTagLength;
+      FutureTask<byte[]> task =
+          new FutureTask<byte[]>(new Chunk(buf, length, mIndex++));
+      if ((THREADS == 1) || (mEnd && mPending.isEmpty())) {
+        task.run();
+      } else {
+        EXECUTOR.execute(task);
+      }
+      mPending.addLast(task);
+    }
+
+    private void checkFinalTag() throws IOException {
+      if (mFinalTag == null) {
+        return;
+      }
+      try {
+        AEADBlockCipher cipher = getCipher(mIndex, mTotalLength);
+        byte[] out = new byte[cipher.getOutputSize(mFinalTag.length)];
+        int n = cipher.processBytes(mFinalTag, 0, mFinalTag.length, out, 0);
+        cipher.doFinal(out, n);
+      } catch (PGPException pe) {
+        throw new IOException(pe.getMessage(), pe);
+      } catch (InvalidCipherTextException icte) {
+        throw new IOException("AEAD final tag failed to authenticate",
+            icte);
+      }
+      mFinalTag = null;
+    }
+
+    private byte[] await(Future<byte[]> chunk) throws IOException {
+      try {
+        return chunk.get();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted decrypting AEAD data");
+      } catch (ExecutionException ee) {
+        Throwable cause = ee.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        throw new IOException(cause.getMessage(), cause);
+      }
+    }
+
+    private void wipeChunk() {
+      if (mChunk != null) {
+        Arrays.fill(mChunk, (byte) 0);
+        mChunk = null;
+      }
+    }
+
+    private final InputStream mIn;
+    private final Deque<Future<byte[]>> mPending =
+        new ArrayDeque<Future<byte[]>>();
+    // The last tag-length bytes read, which may turn out to be the
+    // final tag.
+    private final byte[] mCarry;
+    private int mCarryCount = 0;
+    private byte[] mChunk = null;
+    private int mPos = 0;
+    private long mIndex = 0L;
+    private long mTotalLength = 0L;
+    private byte[] mFinalTag = null;
+    private boolean mEnd = false;
+  }
+
+  private final boolean mLibrePGP;
+  private final int mCipherAlgorithm;
+  private final int mAEADAlgorithm;
+  private final int mChunkLength;
+  private final int mTagLength;
+  private final byte[] mKey;
+  private final byte[] mIV;
+  private final byte[] mAAD;
+  private final int mBlockSize;
+  private final PGPDigestCalculator mIntegrityCalculator;
+
+  // RFC 9580 limits chunks to 4 MiB.
+  private static final int MAX_CHUNK_SIZE = 16;
+  private static final int THREADS =
+      Runtime.getRuntime().availableProcessors();
+  private static final int WINDOW = 2 * THREADS;
+  private static final ExecutorService EXECUTOR =
+      Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "bcdriver-aead");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Timings and allocation of repeated runs over the testcases,
+ * recorded as a baseline and compared against by later runs.</p>
+ *
+ * <p>For every measured round, each test's wall time and the bytes
+ * it allocated on its thread are kept, along with the total time
+ * spent in each phase (parsing, validation, unlocking keys and
+ * decryption) across all tests. Comparisons use the median of the
+ * rounds. A change only counts as a regression when it exceeds the
+ * relative threshold, a minimum absolute difference, and several
+ * times the spread between rounds in either run.</p>
+ *
+ * <p>The on-disk form is a json object:
+ * <pre>
+ * {"bcVersion": "1.61", "javaVersion": "17", "rounds": 5,
+ *  "tests": {"a/b.json": {"nanos": [...], "allocated": [...]}, ...},
+ *  "phases": {"validate": [...], ...}}
+ * </pre>
+ * with one array element per round.</p>
+ */
+final class PerfBaseline {
+
+  /**
+   * Measurements of one test, collected while it runs on the
+   * current thread.
+   */
+  static final class Sample {
+    private Sample() {
+      mStartNanos = System.nanoTime();
+      mStartAllocated = allocatedBytes();
+    }
+    private final long mStartNanos;
+    private final long mStartAllocated;
+    private final Map<String, Long> mPhases = new TreeMap<String, Long>();
+  }
+
+  PerfBaseline() {
+    mBouncyCastleVersion = Util.getBouncyCastleVersion();
+    mJavaVersion = System.getProperty("java.version");
+  }
+
+  /**
+   * Begins a new measured round. Samples ended afterwards are
+   * attributed to it.
+   */
+  synchronized void startRound() {
+    mRounds++;
+  }
+
+  /**
+   * Starts measuring a test on the current thread.
+   */
+  Sample begin() {
+    Sample ret = new Sample();
+    sCurrent.set(ret);
+    return ret;
+  }
+
+  /**
+   * Finishes measuring a test started with {@link #begin}.
+   */
+  void end(String path, Sample sample) {
+    long nanos = System.nanoTime() - sample.mStartNanos;
+    long allocated = allocatedBytes() - sample.mStartAllocated;
+    sCurrent.remove();
+    synchronized (this) {
+      addRoundValue(mTestNanos, path, nanos);
+      addRoundValue(mTestAllocated, path, allocated);
+      for (Map.Entry<String, Long> phase : sample.mPhases.entrySet()) {
+        addRoundValue(mPhaseNanos, phase.getKey(),
+            phase.getValue().longValue());
+      }
+    }
+  }
+
+  /**
+   * Charges the time since <tt>startNanos</tt> to a phase of the
+   * test being measured on this thread, if any.
+   */
+  static final void phase(String name, long startNanos) {
+    Sample sample = sCurrent.get();
+    if (sample == null) {
+      return;
+    }
+    long nanos = System.nanoTime() - startNanos;
+    Long prev = sample.mPhases.get(name);
+    sample.mPhases.put(name, Long.valueOf(
+            (prev == null) ? nanos : prev.longValue() + nanos));
+  }
+
+  /**
+   * Compares this run against a baseline, printing a line for each
+   * regression and improvement.
+   *
+   * @param threshold the relative slowdown tolerated, e.g. 0.1 for
+   * ten percent.
+   * @param minMillis the smallest absolute change in time that is
+   * reported.
+   * @return the number of regressions.
+   */
+  int compare(PerfBaseline baseline, double threshold, double minMillis,
+      Appendable out) throws IOException {
+    if (!baseline.mBouncyCastleVersion.equals(mBouncyCastleVersion)
+        || !baseline.mJavaVersion.equals(mJavaVersion)) {
+      out.append("Comparing Bouncy Castle " + mBouncyCastleVersion
+          + " on Java " + mJavaVersion + " against a baseline of "
+          + baseline.mBouncyCastleVersion + " on Java "
+          + baseline.mJavaVersion + "\n");
+    }
+
+    int regressions = 0;
+    int improvements = 0;
+    int missing = 0;
+    for (Map.Entry<String, List<Long>> entry : mTestNanos.entrySet()) {
+      String path = entry.getKey();
+      List<Long> base = baseline.mTestNanos.get(path);
+      if (base == null) {
+        missing++;
+        continue;
+      }
+      // A regression in either one is not offset by an improvement
+      // in the other.
+      int time = compareTimes("test " + path, base, entry.getValue(),
+          threshold, minMillis, out);
+      int allocation = compareAllocations("test " + path,
+          baseline.mTestAllocated.get(path), mTestAllocated.get(path),
+          threshold, out);
+      if ((time > 0) || (allocation > 0)) {
+        regressions++;
+      } else if ((time < 0) || (allocation < 0)) {
+        improvements++;
+      }
+    }
+    for (Map.Entry<String, List<Long>> entry : mPhaseNanos.entrySet()) {
+      List<Long> base = baseline.mPhaseNanos.get(entry.getKey());
+      if (base != null) {
+        int cmp = compareTimes("phase " + entry.getKey(), base,
+            entry.getValue(), threshold, minMillis, out);
+        regressions += (cmp > 0) ? 1 : 0;
+        improvements += (cmp < 0) ? 1 : 0;
+      }
+    }
+
+    out.append(regressions + " performance regressions, " + improvements
+        + " improvements over " + mRounds + " rounds against "
+        + baseline.mRounds);
+    if (missing > 0) {
+      out.append("; " + missing + " tests not in the baseline");
+    }
+    out.append("\n");
+    return regressions;
+  }
+
+  // Returns 1 for a regression, -1 for an improvement, otherwise 0.
+  private static final int compareTimes(String what, List<Long> base,
+      List<Long> current, double threshold, double minMillis,
+      Appendable out) throws IOException {
+    double baseMedian = median(base);
+    double curMedian = median(current);
+    double noise = NOISE_FACTOR * Math.max(mad(base), mad(current));
+    double delta = curMedian - baseMedian;
+    if ((Math.abs(delta) <= noise)
+        || (Math.abs(delta) / 1e6 < minMillis)
+        || (Math.abs(delta) <= threshold * baseMedian)) {
+      return 0;
+    }
+    out.append(String.format("PERF %s %s: %.2f ms -> %.2f ms (%+.0f%%, "
+            + "noise %.2f ms)\n",
+            (delta > 0) ? "REGRESSION" : "improvement", what,
+            baseMedian / 1e6, curMedian / 1e6,
+            100.0 * delta / Math.max(baseMedian, 1.0), noise / 1e6));
+    return (delta > 0) ? 1 : -1;
+  }
+
+  private static final int compareAllocations(String what, List<Long> base,
+      List<Long> current, double threshold, Appendable out)
+      throws IOException {
+    if ((base == null) || (current == null)) {
+      return 0;
+    }
+    double baseMedian = median(base);
+    double curMedian = median(current);
+    double delta = curMedian - baseMedian;
+    if ((Math.abs(delta) < MIN_ALLOCATION_DELTA)
+        || (Math.abs(delta) <= threshold * baseMedian)) {
+      return 0;
+    }
+    out.append(String.format("PERF %s %s: allocated %.0f KiB -> %.0f KiB "
+            + "(%+.0f%%)\n",
+            (delta > 0) ? "REGRESSION" : "improvement", what,
+            baseMedian / 1024, curMedian / 1024,
+            100.0 * delta / Math.max(baseMedian, 1.0)));
+    return (delta > 0) ? 1 : -1;
+  }
+
+  private static final double median(List<Long> values) {
+    long sorted[] = new long[values.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = values.get(i).longValue();
+    }
+    Arrays.sort(sorted);
+    int n = sorted.length;
+    if (n == 0) {
+      return 0.0;
+    }
+    return ((n % 2) == 1) ? sorted[n / 2]
+        : (sorted[n / 2 - 1] + sorted[n / 2]) / 2.0;
+  }
+
+  // Median absolute deviation, a spread estimate that tolerates the
+  // occasional round disturbed by GC or other processes.
+  private static final double mad(List<Long> values) {
+    double median = median(values);
+    List<Long> deviations = new ArrayList<Long>();
+    for (Long value : values) {
+      deviations.add(Long.valueOf(
+              Math.round(Math.abs(value.longValue() - median))));
+    }
+    return median(deviations);
+  }
+
+  // Values for the current round are kept at index mRounds - 1, and
+  // phases accumulate over all tests in the round.
+  private final void addRoundValue(Map<String, List<Long>> map,
+      String key, long value) {
+    List<Long> values = map.get(key);
+    if (values == null) {
+      values = new ArrayList<Long>();
+      map.put(key, values);
+    }
+    while (values.size() < mRounds) {
+      values.add(Long.valueOf(0L));
+    }
+    int last = values.size() - 1;
+    values.set(last, Long.valueOf(values.get(last).longValue() + value));
+  }
+
+  private static final long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return Math.max(0L, ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId()));
+    }
+    return 0L;
+  }
+
+  void write(File path) throws IOException {
+    JsonObject tests = new JsonObject();
+    for (String test : mTestNanos.keySet()) {
+      JsonObject entry = new JsonObject();
+      entry.add("nanos", toJson(mTestNanos.get(test)));
+      entry.add("allocated", toJson(mTestAllocated.get(test)));
+      tests.add(test, entry);
+    }
+    JsonObject phases = new JsonObject();
+    for (Map.Entry<String, List<Long>> entry : mPhaseNanos.entrySet()) {
+      phases.add(entry.getKey(), toJson(entry.getValue()));
+    }
+    JsonObject root = new JsonObject();
+    root.addProperty("bcVersion", mBouncyCastleVersion);
+    root.addProperty("javaVersion", mJavaVersion);
+    root.addProperty("rounds", Integer.valueOf(mRounds));
+    root.add("tests", tests);
+    root.add("phases", phases);
+
+    Writer out = null;
+    try {
+      out = new OutputStreamWriter(new FileOutputStream(path), "utf-8");
+      out.write(root.toString());
+      out.write("\n");
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  static final PerfBaseline read(File path) throws IOException {
+    BufferedReader br = new BufferedReader(new FileReader(path));
+    try {
+      JsonObject root = new JsonParser().parse(br).getAsJsonObject();
+      PerfBaseline ret = new PerfBaseline(
+          root.get("bcVersion").getAsString(),
+          root.get("javaVersion").getAsString(),
+          root.get("rounds").getAsInt());
+      for (Map.Entry<String, JsonElement> entry
+               : root.get("tests").getAsJsonObject().entrySet()) {
+        JsonObject test = entry.getValue().getAsJsonObject();
+        ret.mTestNanos.put(entry.getKey(), fromJson(test.get("nanos")));
+        ret.mTestAllocated.put(entry.getKey(),
+            fromJson(test.get("allocated")));
+      }
+      for (Map.Entry<String, JsonElement> entry
+               : root.get("phases").getAsJsonObject().entrySet()) {
+        ret.mPhaseNanos.put(entry.getKey(), fromJson(entry.getValue()));
+      }
+      return ret;
+    } finally {
+      br.close();
+    }
+  }
+
+  private static final JsonArray toJson(List<Long> values) {
+    JsonArray ret = new JsonArray();
+    for (Long value : values) {
+      ret.add(new JsonPrimitive(value));
+    }
+    return ret;
+  }
+
+  private static final List<Long> fromJson(JsonElement el) {
+    List<Long> ret = new ArrayList<Long>();
+    for (JsonElement value : el.getAsJsonArray()) {
+      ret.add(Long.valueOf(value.getAsLong()));
+    }
+    return ret;
+  }
+
+  private PerfBaseline(String bcVersion, String javaVersion, int rounds) {
+    mBouncyCastleVersion = bcVersion;
+    mJavaVersion = javaVersion;
+    mRounds = rounds;
+  }
+
+  private final String mBouncyCastleVersion;
+  private final String mJavaVersion;
+  private int mRounds = 0;
+  private final Map<String, List<Long>> mTestNanos =
+      new TreeMap<String, List<Long>>();
+  private final Map<String, List<Long>> mTestAllocated =
+      new TreeMap<String, List<Long>>();
+  private final Map<String, List<Long>> mPhaseNanos =
+      new TreeMap<String, List<Long>>();
+
+  private static final ThreadLocal<Sample> sCurrent =
+      new ThreadLocal<Sample>();
+
+  // How many median absolute deviations a change must exceed.
+  private static final double NOISE_FACTOR = 3.0;
+  private static final long MIN_ALLOCATION_DELTA = 64L * 1024L;
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * <p>A growable plaintext buffer in pooled, off-heap memory, which is
+ * wiped when closed.</p>
+ *
+ * <p>Buffers come in power-of-two sizes from 4 KiB to 16 MiB, and a
+ * few of each size are kept for reuse, so decrypting many messages
+ * doesn't allocate (or leave behind) a new array for each. Larger
+ * buffers are allocated exactly and not pooled. Every buffer is
+ * zeroed before it is returned to the pool or dropped, so pooled
+ * buffers never hold plaintext.</p>
+ *
+ * <p>A buffer belongs to one thread at a time. Views returned by
+ * {@link #asReadOnlyBuffer} must not be used after {@link
+ * #close}.</p>
+ */
+final class PlainTextBuffer implements Closeable {
+
+  /**
+   * @param sizeHint the expected size of the plaintext, or zero if
+   * unknown. The buffer grows as needed.
+   */
+  static final PlainTextBuffer allocate(int sizeHint) {
+    return new PlainTextBuffer(acquire(Math.max(sizeHint, 0)));
+  }
+
+  void write(byte[] data, int off, int len) {
+    ensureOpen();
+    if (len > mBuffer.remaining()) {
+      grow(mBuffer.position() + len);
+    }
+    mBuffer.put(data, off, len);
+  }
+
+  int size() {
+    ensureOpen();
+    return mBuffer.position();
+  }
+
+  /**
+   * @return a read-only view of the plaintext written so far.
+   */
+  ByteBuffer asReadOnlyBuffer() {
+    ensureOpen();
+    ByteBuffer ret = mBuffer.asReadOnlyBuffer();
+    ret.flip();
+    return ret;
+  }
+
+  /**
+   * @return a copy of the plaintext on the heap, which the caller is
+   * responsible for wiping.
+   */
+  byte[] toByteArray() {
+    byte ret[] = new byte[size()];
+    asReadOnlyBuffer().get(ret);
+    return ret;
+  }
+
+  /**
+   * Wipes the plaintext and releases the memory. Further calls have
+   * no effect.
+   */
+  @Override
+  public void close() {
+    if (mBuffer != null) {
+      release(mBuffer);
+      mBuffer = null;
+    }
+  }
+
+  private PlainTextBuffer(ByteBuffer buffer) {
+    mBuffer = buffer;
+  }
+
+  private final void ensureOpen() {
+    if (mBuffer == null) {
+      throw new IllegalStateException("Plaintext buffer is closed");
+    }
+  }
+
+  private final void grow(int needed) {
+    if (needed < 0) {
+      throw new IllegalStateException("Plaintext exceeds 2 GiB");
+    }
+    long doubled = 2L * mBuffer.capacity();
+    ByteBuffer next = acquire((int) Math.min(Math.max(doubled, needed),
+            Integer.MAX_VALUE));
+    ByteBuffer old = mBuffer.duplicate();
+    old.flip();
+    next.put(old);
+    release(mBuffer);
+    mBuffer = next;
+  }
+
+  // Returns a zeroed buffer with at least the given capacity.
+  private static final ByteBuffer acquire(int capacity) {
+    int sizeClass = sizeClassOf(capacity);
+    if (sizeClass < 0) {
+      return ByteBuffer.allocateDirect(capacity);
+    }
+    ByteBuffer ret = sPools[sizeClass].poll();
+    if (ret == null) {
+      ret = ByteBuffer.allocateDirect(MIN_POOLED << sizeClass);
+    }
+    return ret;
+  }
+
+  // Zeroes the used part of the buffer, and returns it to its pool
+  // if there is room.
+  private static final void release(ByteBuffer buffer) {
+    int used = buffer.position();
+    buffer.clear();
+    while (used > 0) {
+      int n = Math.min(used, ZEROS.length);
+      buffer.put(ZEROS, 0, n);
+      used -= n;
+    }
+    buffer.clear();
+    int sizeClass = sizeClassOf(buffer.capacity());
+    if ((sizeClass >= 0)
+        && (buffer.capacity() == (MIN_POOLED << sizeClass))) {
+      sPools[sizeClass].offer(buffer);
+    }
+  }
+
+  // Returns the index of the smallest pooled size that holds
+  // capacity bytes, or -1 if it's too large to pool.
+  private static final int sizeClassOf(int capacity) {
+    int size = MIN_POOLED;
+    for (int i = 0; i < sPools.length; i++, size <<= 1) {
+      if (capacity <= size) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private ByteBuffer mBuffer;
+
+  private static final int MIN_POOLED = 4 * 1024;
+  private static final int MAX_POOLED = 16 * 1024 * 1024;
+  private static final int BUFFERS_PER_SIZE = 4;
+  private static final byte[] ZEROS = new byte[8192];
+  private static final ArrayBlockingQueue<ByteBuffer> sPools[] =
+      newPools();
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static final ArrayBlockingQueue<ByteBuffer>[] newPools() {
+    int count = Integer.numberOfTrailingZeros(MAX_POOLED / MIN_POOLED) + 1;
+    ArrayBlockingQueue<ByteBuffer> ret[] = new ArrayBlockingQueue[count];
+    for (int i = 0; i < count; i++) {
+      ret[i] = new ArrayBlockingQueue<ByteBuffer>(BUFFERS_PER_SIZE);
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Reads upcoming testcases on background threads while the
+ * current one runs.</p>
+ *
+ * <p>At most <tt>depth</tt> tests are read ahead, and no further
+ * reads start while the prefetched but unconsumed inputs, counting
+ * those still being read at their size on disk, hold more than
+ * <tt>budget</tt> bytes. Tests are always handed out in their
+ * original order. A depth of zero reads each test on demand in the
+ * calling thread.</p>
+ */
+final class Prefetcher {
+
+  /**
+   * @param configs the manifests already parsed, by test path, such
+   * as those from {@link Scheduler#getConfigs}. Other manifests are
+   * read along with their test.
+   */
+  Prefetcher(File root, List<String> tests, Map<String, JsonObject> configs,
+      int depth, long budget) {
+    mRoot = root;
+    mTests = tests;
+    mConfigs = configs;
+    mDepth = depth;
+    mBudget = budget;
+    if (depth > 0) {
+      mExecutor = Executors.newFixedThreadPool(
+          Math.min(depth, MAX_THREADS), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "bcdriver-prefetch");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    } else {
+      mExecutor = null;
+    }
+  }
+
+  boolean hasNext() {
+    return mNext < mTests.size();
+  }
+
+  /**
+   * Returns the next test in order, waiting for it to be read if
+   * necessary.
+   */
+  TestInput next() throws InterruptedException {
+    if (mExecutor == null) {
+      String test = mTests.get(mNext++);
+      return TestInput.load(mRoot, test, mConfigs.get(test));
+    }
+
+    fill();
+    Future<TestInput> head = mPending.removeFirst();
+    mNext++;
+    TestInput ret;
+    try {
+      ret = head.get();
+    } catch (ExecutionException ee) {
+      // TestInput.load() captures its own errors.
+      throw new IllegalStateException(ee.getCause());
+    }
+    mBuffered.addAndGet(-ret.getSize());
+    fill();
+    return ret;
+  }
+
+  void close() {
+    if (mExecutor != null) {
+      mExecutor.shutdownNow();
+    }
+  }
+
+  // Start reading further tests until we reach the depth or the
+  // memory budget. The head of the queue is always submitted, so
+  // the consumer can't starve. Each test's size is reserved as it is
+  // submitted, so reads in flight count against the budget too, and
+  // corrected once it has been read.
+  private final void fill() {
+    while ((mNext + mPending.size() < mTests.size())
+        && (mPending.size() < mDepth)
+        && (mPending.isEmpty() || (mBuffered.get() < mBudget))) {
+      final String test = mTests.get(mNext + mPending.size());
+      final JsonObject config = mConfigs.get(test);
+      final long reserved = TestInput.estimateSize(mRoot, test, config);
+      mBuffered.addAndGet(reserved);
+      mPending.addLast(mExecutor.submit(new Callable<TestInput>() {
+          @Override
+          public TestInput call() {
+            TestInput input = TestInput.load(mRoot, test, config);
+            mBuffered.addAndGet(input.getSize() - reserved);
+            return input;
+          }
+        }));
+    }
+  }
+
+  private final File mRoot;
+  private final List<String> mTests;
+  private final Map<String, JsonObject> mConfigs;
+  private final int mDepth;
+  private final long mBudget;
+  private final ExecutorService mExecutor;
+  private final Deque<Future<TestInput>> mPending =
+      new ArrayDeque<Future<TestInput>>();
+  private final AtomicLong mBuffered = new AtomicLong(0L);
+  private int mNext = 0;
+
+  private static final int MAX_THREADS = 4;
+}
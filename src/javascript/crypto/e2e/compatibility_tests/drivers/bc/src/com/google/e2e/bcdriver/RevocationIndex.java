@@ -0,0 +1,341 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.bc.BcPGPObjectFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Revocation certificates received separately from the keyrings
+ * they revoke, for {@link KeyChecker#validate(PGPPublicKeyRing,
+ * Limits, RevocationIndex)} to honor as if they had been merged into
+ * each ring.</p>
+ *
+ * <p>Key and subkey revocations are both issued by the primary key,
+ * so they are indexed by the issuer key id. Nothing is verified when
+ * they are loaded; validation checks each candidate against the key
+ * it claims to revoke, so a bogus certificate can't revoke anything.
+ * </p>
+ *
+ * <p>Almost every key looked up has no revocation, so a Bloom filter
+ * over the key ids is checked first, which costs a hash and three
+ * bit tests. Only if it matches is the open-addressed table of key
+ * ids consulted, and the certificates are kept encoded until then.
+ * An index is immutable; use a {@link Reloader} to pick up new
+ * certificates as they arrive.</p>
+ */
+final class RevocationIndex {
+
+  /**
+   * Reads every revocation signature from a file, or from all the
+   * files in a directory. Files may be armored or binary, and may
+   * hold bare signatures or whole keyrings, from which only the key
+   * and subkey revocations are kept.
+   */
+  static final RevocationIndex load(File path)
+      throws IOException, PGPException {
+    Map<Long, ByteArrayOutputStream> byIssuer =
+        new LinkedHashMap<Long, ByteArrayOutputStream>();
+    int count = 0;
+    for (File file : listFiles(path)) {
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try {
+        count += read(PGPUtil.getDecoderStream(in), byIssuer);
+      } finally {
+        in.close();
+      }
+    }
+    return new RevocationIndex(byIssuer, count);
+  }
+
+  /**
+   * @return false if there is certainly no revocation issued by this
+   * key; true if there may be one.
+   */
+  boolean mightBeRevoked(long keyid) {
+    long h = mix(keyid);
+    int h1 = (int) h;
+    int h2 = (int) (h >>> 32) | 1;
+    for (int i = 0; i < HASHES; i++) {
+      int bit = (h1 + i * h2) & mBloomMask;
+      if ((mBloom[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return freshly decoded key and subkey revocations issued by this
+   * key, none of which have been verified.
+   */
+  List<PGPSignature> getRevocations(long keyid) throws IOException {
+    if (!mightBeRevoked(keyid)) {
+      return Collections.<PGPSignature>emptyList();
+    }
+    int slot = (int) mix(keyid) & mTableMask;
+    while (mTableIndex[slot] != 0) {
+      if (mTableKeys[slot] == keyid) {
+        return decode(mSignatures[mTableIndex[slot] - 1]);
+      }
+      slot = (slot + 1) & mTableMask;
+    }
+    return Collections.<PGPSignature>emptyList();
+  }
+
+  /**
+   * @return the number of keys with revocations.
+   */
+  int size() {
+    return mSignatures.length;
+  }
+
+  /**
+   * @return the number of revocation signatures.
+   */
+  int getSignatureCount() {
+    return mSignatureCount;
+  }
+
+  /**
+   * <p>Hands out the current index for a file or directory, loading
+   * it again once the files there change.</p>
+   *
+   * <p>The files are looked at no more than once per interval, so
+   * {@link #get} is cheap enough to call for every key. If a reload
+   * fails, for instance because a certificate is still being
+   * written, the previous index is kept and the load is tried again
+   * after the next interval.</p>
+   */
+  static final class Reloader {
+    Reloader(File path, long intervalMillis)
+        throws IOException, PGPException {
+      mPath = path;
+      mIntervalNanos = intervalMillis * 1000000L;
+      mStamp = stamp(path);
+      mCurrent = load(path);
+      mCheckedNanos = System.nanoTime();
+    }
+
+    RevocationIndex get() {
+      if (System.nanoTime() - mCheckedNanos < mIntervalNanos) {
+        return mCurrent;
+      }
+      synchronized (this) {
+        long now = System.nanoTime();
+        if (now - mCheckedNanos >= mIntervalNanos) {
+          mCheckedNanos = now;
+          long stamp = stamp(mPath);
+          if (stamp != mStamp) {
+            try {
+              mCurrent = load(mPath);
+              mStamp = stamp;
+              mReloads++;
+            } catch (IOException ioe) {
+              ; // keep the previous index
+            } catch (PGPException pe) {
+              ; // keep the previous index
+            }
+          }
+        }
+        return mCurrent;
+      }
+    }
+
+    /**
+     * @return the number of times the index was loaded again.
+     */
+    synchronized int getReloadCount() {
+      return mReloads;
+    }
+
+    private final File mPath;
+    private final long mIntervalNanos;
+    private volatile RevocationIndex mCurrent;
+    private volatile long mCheckedNanos;
+    private long mStamp;
+    private int mReloads = 0;
+  }
+
+  private static final List<File> listFiles(File path) {
+    if (!path.isDirectory()) {
+      return Collections.singletonList(path);
+    }
+    List<File> ret = new ArrayList<File>();
+    File[] files = path.listFiles();
+    if (files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        if (file.isFile() && !file.getName().startsWith(".")) {
+          ret.add(file);
+        }
+      }
+    }
+    return ret;
+  }
+
+  // Changes whenever a file is added, removed, or rewritten.
+  private static final long stamp(File path) {
+    long ret = 17L;
+    for (File file : listFiles(path)) {
+      ret = 31L * ret + file.getName().hashCode();
+      ret = 31L * ret + file.length();
+      ret = 31L * ret + file.lastModified();
+    }
+    return ret;
+  }
+
+  private static final int read(InputStream in,
+      Map<Long, ByteArrayOutputStream> byIssuer)
+      throws IOException, PGPException {
+    BcPGPObjectFactory factory = new BcPGPObjectFactory(in);
+    int count = 0;
+    Object obj;
+    while ((obj = factory.nextObject()) != null) {
+      if (obj instanceof PGPSignatureList) {
+        for (PGPSignature sig : (PGPSignatureList) obj) {
+          count += add(sig, byIssuer);
+        }
+      } else if (obj instanceof PGPPublicKeyRing) {
+        Iterator<PGPPublicKey> keys = ((PGPPublicKeyRing) obj).getPublicKeys();
+        while (keys.hasNext()) {
+          Iterator<PGPSignature> sigs = keys.next().getSignatures();
+          while (sigs.hasNext()) {
+            count += add(sigs.next(), byIssuer);
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  private static final int add(PGPSignature sig,
+      Map<Long, ByteArrayOutputStream> byIssuer) throws IOException {
+    int type = sig.getSignatureType();
+    if ((type != PGPSignature.KEY_REVOCATION)
+        && (type != PGPSignature.SUBKEY_REVOCATION)) {
+      return 0;
+    }
+    Long issuer = Long.valueOf(sig.getKeyID());
+    ByteArrayOutputStream encoded = byIssuer.get(issuer);
+    if (encoded == null) {
+      encoded = new ByteArrayOutputStream();
+      byIssuer.put(issuer, encoded);
+    }
+    sig.encode(encoded);
+    return 1;
+  }
+
+  private static final List<PGPSignature> decode(byte[] encoded)
+      throws IOException {
+    List<PGPSignature> ret = new ArrayList<PGPSignature>();
+    BcPGPObjectFactory factory = new BcPGPObjectFactory(encoded);
+    Object obj;
+    while ((obj = factory.nextObject()) != null) {
+      for (PGPSignature sig : (PGPSignatureList) obj) {
+        ret.add(sig);
+      }
+    }
+    return ret;
+  }
+
+  // The finalizer from MurmurHash3, which spreads similar key ids
+  // across both halves of the result.
+  private static final long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  // Rounds up to a power of two, so hashes can be masked.
+  private static final int tableSize(int n) {
+    return Integer.highestOneBit(Math.max(n, 32) - 1) << 1;
+  }
+
+  private RevocationIndex(Map<Long, ByteArrayOutputStream> byIssuer,
+      int signatureCount) {
+    int n = byIssuer.size();
+    mSignatureCount = signatureCount;
+    mSignatures = new byte[n][];
+
+    int bloomBits = Math.max(tableSize(BITS_PER_KEY * n), 64);
+    mBloom = new long[bloomBits >>> 6];
+    mBloomMask = bloomBits - 1;
+    // At most half full, so probes stay short.
+    mTableKeys = new long[tableSize(2 * n)];
+    mTableIndex = new int[mTableKeys.length];
+    mTableMask = mTableKeys.length - 1;
+
+    int idx = 0;
+    for (Map.Entry<Long, ByteArrayOutputStream> entry : byIssuer.entrySet()) {
+      long keyid = entry.getKey().longValue();
+      mSignatures[idx] = entry.getValue().toByteArray();
+
+      long h = mix(keyid);
+      int h1 = (int) h;
+      int h2 = (int) (h >>> 32) | 1;
+      for (int i = 0; i < HASHES; i++) {
+        int bit = (h1 + i * h2) & mBloomMask;
+        mBloom[bit >>> 6] |= 1L << bit;
+      }
+
+      int slot = (int) h & mTableMask;
+      while (mTableIndex[slot] != 0) {
+        slot = (slot + 1) & mTableMask;
+      }
+      mTableKeys[slot] = keyid;
+      mTableIndex[slot] = ++idx;
+    }
+  }
+
+  private final long[] mBloom;
+  private final int mBloomMask;
+  // Open-addressed; an index of zero marks an empty slot, otherwise
+  // it is one more than the position in mSignatures.
+  private final long[] mTableKeys;
+  private final int[] mTableIndex;
+  private final int mTableMask;
+  private final byte[][] mSignatures;
+  private final int mSignatureCount;
+
+  // The filter is rounded up to a power of two, so it holds 16 to 32
+  // bits per key. The false positive rate is then between about 0.5%
+  // and 0.07%.
+  private static final int BITS_PER_KEY = 16;
+  private static final int HASHES = 3;
+}
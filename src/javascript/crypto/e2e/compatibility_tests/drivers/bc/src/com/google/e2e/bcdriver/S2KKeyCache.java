@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A bounded, least-recently-used cache of keys derived from a
+ * passphrase by an S2K specifier, so that messages encrypted with
+ * the same passphrase and salt only run the key derivation once.</p>
+ *
+ * <p>Entries are keyed by a digest over the symmetric algorithm, the
+ * whole S2K specifier (its type, hash, salt and iteration count) and
+ * the passphrase. Like {@link SessionKeyCache}, this holds secret key
+ * material in memory for as long as entries survive, so it is only
+ * used when explicitly requested.</p>
+ *
+ * <p>The cache also counts hits and misses, and the time spent
+ * deriving the keys it was asked for.</p>
+ */
+final class S2KKeyCache {
+
+  S2KKeyCache(final int maxEntries) {
+    mEntries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @param keyAlgorithm the SymmetricKeyAlgorithmTags value the key
+   * is derived for.
+   * @param s2k the specifier from the encrypted session key packet.
+   * @param passphrase the passphrase being tried.
+   * @return a key for use with {@link #get} and {@link #put}.
+   */
+  static final String digest(int keyAlgorithm, S2K s2k, String passphrase)
+      throws IOException {
+    SHA256Digest digest = new SHA256Digest();
+    digest.update((byte) keyAlgorithm);
+    byte[] encoded = s2k.getEncoded();
+    digest.update(encoded, 0, encoded.length);
+    byte[] pass = passphrase.getBytes("utf-8");
+    digest.update(pass, 0, pass.length);
+    byte[] out = new byte[digest.getDigestSize()];
+    digest.doFinal(out, 0);
+    return Hex.toHexString(out);
+  }
+
+  /**
+   * @return a copy of the derived key, or null if it isn't cached.
+   */
+  synchronized byte[] get(String digest) {
+    byte[] key = mEntries.get(digest);
+    if (key == null) {
+      mMisses++;
+      return null;
+    }
+    mHits++;
+    return key.clone();
+  }
+
+  /**
+   * Keeps a copy of a key that took <tt>nanos</tt> to derive.
+   */
+  synchronized void put(String digest, byte[] key, long nanos) {
+    mEntries.put(digest, key.clone());
+    mDeriveNanos += nanos;
+  }
+
+  synchronized long getHits() {
+    return mHits;
+  }
+
+  synchronized long getMisses() {
+    return mMisses;
+  }
+
+  /**
+   * @return the total time spent deriving the keys that were put
+   * here, in nanoseconds.
+   */
+  synchronized long getDeriveNanos() {
+    return mDeriveNanos;
+  }
+
+  private final Map<String, byte[]> mEntries;
+  private long mHits = 0L;
+  private long mMisses = 0L;
+  private long mDeriveNanos = 0L;
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Orders testcases so that tests using the same keyrings run back
+ * to back on the same worker, where the parsed and validated keys
+ * remain in that worker's {@link KeyCache}.</p>
+ *
+ * <p>Manifests are read up front to find the keyring files each test
+ * refers to. Tests sharing any keyring, directly or through other
+ * tests, form a group. Each group runs on a single worker, with the
+ * largest groups placed first on the least loaded worker. Within a
+ * group, tests are sorted by the keys they use.</p>
+ */
+final class Scheduler {
+
+  /**
+   * @param root the testcase directory.
+   * @param tests paths of the tests to schedule, relative to root.
+   */
+  Scheduler(File root, List<String> tests) {
+    mTests = tests;
+    mKeys = new HashMap<String, List<String>>();
+    mConfigs = new HashMap<String, JsonObject>();
+    for (String test : tests) {
+      File manifest = new File(root, test);
+      JsonObject config = readConfig(manifest);
+      if (config != null) {
+        mConfigs.put(test, config);
+      }
+      mKeys.put(test, readKeys(manifest, config));
+    }
+    mGroups = group();
+  }
+
+  /**
+   * @return the manifests parsed while scheduling, by test path, so
+   * they need not be parsed again. Unreadable manifests are left
+   * out.
+   */
+  Map<String, JsonObject> getConfigs() {
+    return Collections.unmodifiableMap(mConfigs);
+  }
+
+  /**
+   * @return the path identifying a keyring file referenced by a
+   * manifest, shared by all manifests that refer to the same file.
+   */
+  static final String keyPath(File manifest, String name) {
+    return new File(manifest.getParentFile(), name).toPath()
+        .normalize().toString();
+  }
+
+  /**
+   * Splits the tests between <tt>workers</tt> workers.
+   *
+   * @return the tests each worker should run, in order.
+   */
+  List<List<String>> assign(int workers) {
+    List<List<String>> ret = new ArrayList<List<String>>();
+    for (int i = 0; i < workers; i++) {
+      ret.add(new ArrayList<String>());
+    }
+    for (List<String> group : mGroups) {
+      List<String> lightest = ret.get(0);
+      for (List<String> worker : ret) {
+        if (worker.size() < lightest.size()) {
+          lightest = worker;
+        }
+      }
+      lightest.addAll(group);
+    }
+    return ret;
+  }
+
+  /**
+   * @return a summary of how often keyrings are shared between tests.
+   */
+  String getSummary() {
+    Map<String, Integer> references = new TreeMap<String, Integer>();
+    int total = 0;
+    for (List<String> keys : mKeys.values()) {
+      for (String key : keys) {
+        Integer count = references.get(key);
+        references.put(key, Integer.valueOf(
+                (count == null) ? 1 : count.intValue() + 1));
+        total++;
+      }
+    }
+    int largest = 0;
+    for (List<String> group : mGroups) {
+      largest = Math.max(largest, group.size());
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(mTests.size()).append(" tests in ").append(mGroups.size())
+        .append(" key groups (largest ").append(largest).append("); ")
+        .append(references.size()).append(" keyrings referenced ")
+        .append(total).append(" times, ")
+        .append(total - references.size()).append(" reuses");
+
+    List<Map.Entry<String, Integer>> sorted =
+        new ArrayList<Map.Entry<String, Integer>>(references.entrySet());
+    Collections.sort(sorted, new Comparator<Map.Entry<String, Integer>>() {
+        @Override
+        public int compare(Map.Entry<String, Integer> a,
+            Map.Entry<String, Integer> b) {
+          return b.getValue().compareTo(a.getValue());
+        }
+      });
+    for (int i = 0; (i < sorted.size()) && (i < TOP_KEYS); i++) {
+      if (sorted.get(i).getValue().intValue() < 2) {
+        break;
+      }
+      sb.append("\n  ").append(sorted.get(i).getValue()).append(" x ")
+          .append(sorted.get(i).getKey());
+    }
+    return sb.toString();
+  }
+
+  // Unreadable manifests give null, and fail later when the test
+  // itself runs.
+  private static final JsonObject readConfig(File manifest) {
+    try {
+      InputStream in = new FileInputStream(manifest);
+      try {
+        return new JsonParser().parse(
+            new InputStreamReader(in, "utf-8")).getAsJsonObject();
+      } finally {
+        in.close();
+      }
+    } catch (IOException ioe) {
+      return null;
+    } catch (JsonParseException jpe) {
+      return null;
+    } catch (IllegalStateException ise) {
+      return null;
+    }
+  }
+
+  // Tests without a readable manifest are treated as using no keys.
+  private static final List<String> readKeys(File manifest,
+      JsonObject config) {
+    List<String> ret = new ArrayList<String>();
+    if (config == null) {
+      return ret;
+    }
+
+    JsonElement type = config.get("type");
+    if ((type != null) && type.isJsonPrimitive()
+        && type.getAsString().equals("import")) {
+      String name = manifest.getName();
+      ret.add(keyPath(manifest,
+              name.substring(0, name.length() - ".json".length()) + ".asc"));
+    }
+    for (String property : KEY_PROPERTIES) {
+      JsonElement name = config.get(property);
+      if ((name != null) && name.isJsonPrimitive()) {
+        ret.add(keyPath(manifest, name.getAsString()));
+      } else if ((name != null) && name.isJsonArray()) {
+        for (JsonElement el : name.getAsJsonArray()) {
+          if (el.isJsonPrimitive()) {
+            ret.add(keyPath(manifest, el.getAsString()));
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
+  // Connects tests through the keys they share, then orders each
+  // group by its keys and the groups by decreasing size.
+  private final List<List<String>> group() {
+    Map<String, String> parent = new HashMap<String, String>();
+    for (String test : mTests) {
+      parent.put(test, test);
+    }
+    Map<String, String> ownerOfKey = new HashMap<String, String>();
+    for (String test : mTests) {
+      for (String key : mKeys.get(test)) {
+        String owner = ownerOfKey.get(key);
+        if (owner == null) {
+          ownerOfKey.put(key, test);
+        } else {
+          parent.put(find(parent, test), find(parent, owner));
+        }
+      }
+    }
+
+    Map<String, List<String>> groups =
+        new TreeMap<String, List<String>>();
+    for (String test : mTests) {
+      String rootTest = find(parent, test);
+      List<String> group = groups.get(rootTest);
+      if (group == null) {
+        group = new ArrayList<String>();
+        groups.put(rootTest, group);
+      }
+      group.add(test);
+    }
+
+    Comparator<String> byKeys = new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        int cmp = mKeys.get(a).toString().compareTo(mKeys.get(b).toString());
+        return (cmp != 0) ? cmp : a.compareTo(b);
+      }
+    };
+    List<List<String>> ret = new ArrayList<List<String>>(groups.values());
+    for (List<String> group : ret) {
+      Collections.sort(group, byKeys);
+    }
+    // A stable sort keeps equal sized groups in path order.
+    Collections.sort(ret, new Comparator<List<String>>() {
+        @Override
+        public int compare(List<String> a, List<String> b) {
+          return b.size() - a.size();
+        }
+      });
+    return ret;
+  }
+
+  private static final String find(Map<String, String> parent,
+      String test) {
+    String root = test;
+    while (!parent.get(root).equals(root)) {
+      root = parent.get(root);
+    }
+    // Compress the path for later lookups.
+    while (!test.equals(root)) {
+      String next = parent.get(test);
+      parent.put(test, root);
+      test = next;
+    }
+    return root;
+  }
+
+  private final List<String> mTests;
+  private final Map<String, List<String>> mKeys;
+  private final Map<String, JsonObject> mConfigs;
+  private final List<List<String>> mGroups;
+
+  // Manifest properties that name keyring files, or lists of them.
+  private static final String KEY_PROPERTIES[] = {
+    "decryptKey", "verifyKey", "verifyKeys", "keys"
+  };
+  private static final int TOP_KEYS = 5;
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.util.encoders.Hex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A bounded, least-recently-used cache of recovered session keys,
+ * so that reading the same message again costs only the symmetric
+ * decryption.</p>
+ *
+ * <p>Entries are keyed by a digest over the encrypted session key
+ * packet contents and the id of the key that decrypted it. This
+ * cache holds secret key material in memory for as long as entries
+ * survive, so it is only used when explicitly requested.</p>
+ */
+final class SessionKeyCache {
+
+  SessionKeyCache(final int maxEntries) {
+    mEntries = new LinkedHashMap<String, Decryptor.SessionKey>(
+        16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, Decryptor.SessionKey> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @param keyid the id of the decrypting key.
+   * @param keyAlgorithm the public key algorithm from the packet.
+   * @param secKeyData the encrypted session key values from the packet.
+   * @return a key for use with {@link #get} and {@link #put}.
+   */
+  static final String digest(long keyid, int keyAlgorithm,
+      byte[][] secKeyData) {
+    SHA256Digest digest = new SHA256Digest();
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      digest.update((byte) (keyid >> shift));
+    }
+    digest.update((byte) keyAlgorithm);
+    for (byte[] value : secKeyData) {
+      digest.update((byte) (value.length >> 24));
+      digest.update((byte) (value.length >> 16));
+      digest.update((byte) (value.length >> 8));
+      digest.update((byte) value.length);
+      digest.update(value, 0, value.length);
+    }
+    byte[] out = new byte[digest.getDigestSize()];
+    digest.doFinal(out, 0);
+    return Hex.toHexString(out);
+  }
+
+  synchronized Decryptor.SessionKey get(String digest) {
+    return mEntries.get(digest);
+  }
+
+  synchronized void put(String digest, Decryptor.SessionKey sessionKey) {
+    mEntries.put(digest, sessionKey);
+  }
+
+  private final Map<String, Decryptor.SessionKey> mEntries;
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Selects the subset of testcases run by one of several
+ * cooperating driver processes.</p>
+ *
+ * <p>Every process given the same list of tests (and the same
+ * durations, if any) computes the same partition, so shards can run
+ * on separate JVMs or machines without coordinating.</p>
+ */
+final class Shard {
+
+  static final Shard ALL = new Shard(0, 1);
+
+  /**
+   * @param spec a shard in the form <tt>index/count</tt>, with a
+   * zero-based index.
+   */
+  static final Shard parse(String spec) {
+    int slash = spec.indexOf('/');
+    if (slash < 0) {
+      throw new IllegalArgumentException("Bad shard '" + spec
+          + "', expected index/count");
+    }
+    int index;
+    int count;
+    try {
+      index = Integer.parseInt(spec.substring(0, slash));
+      count = Integer.parseInt(spec.substring(slash + 1));
+    } catch (NumberFormatException nfe) {
+      throw new IllegalArgumentException("Bad shard '" + spec
+          + "', expected index/count");
+    }
+    if ((count < 1) || (index < 0) || (index >= count)) {
+      throw new IllegalArgumentException("Bad shard '" + spec
+          + "', index must be within [0, count)");
+    }
+    return new Shard(index, count);
+  }
+
+  int getIndex() {
+    return mIndex;
+  }
+
+  int getCount() {
+    return mCount;
+  }
+
+  @Override
+  public String toString() {
+    return mIndex + "/" + mCount;
+  }
+
+  /**
+   * <p>Returns the tests belonging to this shard, in their original
+   * order.</p>
+   *
+   * <p>Without durations, each test is placed by a hash of its
+   * path. With durations from an earlier run, tests are instead
+   * balanced across shards longest-first, and tests without a
+   * recorded duration are assumed to take the average time.</p>
+   *
+   * @param tests the relative paths of all tests.
+   * @param durations historical test durations in milliseconds,
+   * keyed by path. May be empty.
+   */
+  List<String> select(List<String> tests, Map<String, Long> durations) {
+    if (mCount == 1) {
+      return tests;
+    }
+
+    List<String> ret = new ArrayList<String>();
+    if (durations.isEmpty()) {
+      for (String test : tests) {
+        if (bucketOf(test) == mIndex) {
+          ret.add(test);
+        }
+      }
+      return ret;
+    }
+
+    Map<String, Integer> assigned = balance(tests, durations);
+    for (String test : tests) {
+      if (assigned.get(test).intValue() == mIndex) {
+        ret.add(test);
+      }
+    }
+    return ret;
+  }
+
+  private final int bucketOf(String test) {
+    CRC32 crc = new CRC32();
+    try {
+      crc.update(test.getBytes("utf-8"));
+    } catch (UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+    return (int) (crc.getValue() % mCount);
+  }
+
+  // Greedy longest-processing-time assignment. Ties are broken by
+  // path and then by shard index, so the result doesn't depend on
+  // the order in which tests were discovered.
+  private final Map<String, Integer> balance(List<String> tests,
+      Map<String, Long> durations) {
+
+    long known = 0L;
+    int nknown = 0;
+    for (String test : tests) {
+      Long ms = durations.get(test);
+      if (ms != null) {
+        known += ms.longValue();
+        nknown++;
+      }
+    }
+    long fallback = (nknown > 0) ? Math.max(1L, known / nknown) : 1L;
+
+    final Map<String, Long> weights = new HashMap<String, Long>();
+    for (String test : tests) {
+      Long ms = durations.get(test);
+      weights.put(test, (ms != null) ? ms : Long.valueOf(fallback));
+    }
+
+    List<String> sorted = new ArrayList<String>(tests);
+    Collections.sort(sorted, new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+          int cmp = weights.get(b).compareTo(weights.get(a));
+          return (cmp != 0) ? cmp : a.compareTo(b);
+        }
+      });
+
+    long loads[] = new long[mCount];
+    Map<String, Integer> ret = new HashMap<String, Integer>();
+    for (String test : sorted) {
+      int lightest = 0;
+      for (int i = 1; i < mCount; i++) {
+        if (loads[i] < loads[lightest]) {
+          lightest = i;
+        }
+      }
+      loads[lightest] += weights.get(test).longValue();
+      ret.put(test, Integer.valueOf(lightest));
+    }
+    return ret;
+  }
+
+  private Shard(int index, int count) {
+    mIndex = index;
+    mCount = count;
+  }
+
+  private final int mIndex;
+  private final int mCount;
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.asn1.sec.SECObjectIdentifiers;
+import org.bouncycastle.asn1.x9.ECNamedCurveTable;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyPacket;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.generators.Ed25519KeyPairGenerator;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.generators.X25519KeyPairGenerator;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECNamedDomainParameters;
+import org.bouncycastle.crypto.params.Ed25519KeyGenerationParameters;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.crypto.params.X25519KeyGenerationParameters;
+import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPKeyPair;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Date;
+
+/**
+ * <p>A keyring and messages generated in-process, for warming up and
+ * benchmarking the driver without any testcase files.</p>
+ *
+ * <p>Each keyring has a primary key for certification and signing,
+ * and a subkey for encryption, of the chosen {@link KeyType}. The
+ * secret keys are protected with {@link #PASSPHRASE} and a cheap
+ * S2K. Two messages are encrypted to the subkey, one plain and one
+ * compressed and signed by the primary key, along with a detached
+ * signature over the same plaintext.</p>
+ */
+final class SyntheticCorpus {
+
+  /**
+   * Supported pairings of signing and encryption key types.
+   */
+  enum KeyType {
+    RSA_1024("rsa1024"),
+    RSA_2048("rsa2048"),
+    RSA_4096("rsa4096"),
+    /** ECDSA and ECDH over NIST P-256. */
+    P256("p256"),
+    /** EdDSA and ECDH over Curve25519, as used by GnuPG. */
+    ED25519_LEGACY("ed25519-legacy"),
+    /** The RFC 9580 Ed25519 and X25519 algorithms. */
+    ED25519("ed25519");
+
+    private KeyType(String name) {
+      mName = name;
+    }
+
+    String getName() {
+      return mName;
+    }
+
+    static final KeyType forName(String name) {
+      for (KeyType type : values()) {
+        if (type.mName.equals(name)) {
+          return type;
+        }
+      }
+      throw new IllegalArgumentException("Unknown key type " + name);
+    }
+
+    private final String mName;
+  };
+
+  static final SyntheticCorpus create(KeyType type)
+      throws IOException, PGPException {
+    return new SyntheticCorpus(type);
+  }
+
+  KeyType getKeyType() {
+    return mKeyType;
+  }
+  byte[] getPublicRing() {
+    return mPublicRing;
+  }
+  byte[] getSecretRing() {
+    return mSecretRing;
+  }
+  byte[] getMessage() {
+    return mMessage;
+  }
+  byte[] getSignedMessage() {
+    return mSignedMessage;
+  }
+  byte[] getDetachedSignature() {
+    return mDetachedSignature;
+  }
+  byte[] getPlainText() {
+    return PLAINTEXT.clone();
+  }
+
+  private SyntheticCorpus(KeyType type) throws IOException, PGPException {
+    mKeyType = type;
+    Date now = new Date();
+    PGPKeyPair sign;
+    PGPKeyPair encrypt;
+    switch (type) {
+      case RSA_1024:
+      case RSA_2048:
+      case RSA_4096:
+        int bits = (type == KeyType.RSA_1024) ? 1024
+            : ((type == KeyType.RSA_2048) ? 2048 : 4096);
+        RSAKeyPairGenerator rsa = new RSAKeyPairGenerator();
+        rsa.init(new RSAKeyGenerationParameters(
+                BigInteger.valueOf(0x10001), sRandom, bits, 12));
+        sign = keyPair(PublicKeyAlgorithmTags.RSA_GENERAL,
+            rsa.generateKeyPair(), now);
+        encrypt = keyPair(PublicKeyAlgorithmTags.RSA_GENERAL,
+            rsa.generateKeyPair(), now);
+        break;
+
+      case P256:
+        ECKeyPairGenerator ec = new ECKeyPairGenerator();
+        ec.init(new ECKeyGenerationParameters(new ECNamedDomainParameters(
+                    SECObjectIdentifiers.secp256r1,
+                    ECNamedCurveTable.getByOID(SECObjectIdentifiers.secp256r1)),
+                sRandom));
+        sign = keyPair(PublicKeyAlgorithmTags.ECDSA, ec.generateKeyPair(), now);
+        encrypt = keyPair(PublicKeyAlgorithmTags.ECDH, ec.generateKeyPair(),
+            now);
+        break;
+
+      default:
+        Ed25519KeyPairGenerator ed = new Ed25519KeyPairGenerator();
+        ed.init(new Ed25519KeyGenerationParameters(sRandom));
+        X25519KeyPairGenerator x = new X25519KeyPairGenerator();
+        x.init(new X25519KeyGenerationParameters(sRandom));
+        boolean legacy = (type == KeyType.ED25519_LEGACY);
+        sign = keyPair(legacy ? PublicKeyAlgorithmTags.EDDSA_LEGACY
+            : PublicKeyAlgorithmTags.Ed25519, ed.generateKeyPair(), now);
+        encrypt = keyPair(legacy ? PublicKeyAlgorithmTags.ECDH
+            : PublicKeyAlgorithmTags.X25519, x.generateKeyPair(), now);
+        break;
+    }
+
+    PGPSignatureSubpacketGenerator signFlags =
+        new PGPSignatureSubpacketGenerator();
+    signFlags.setKeyFlags(false, KeyFlags.SIGN_DATA | KeyFlags.CERTIFY_OTHER);
+    PGPSignatureSubpacketGenerator encryptFlags =
+        new PGPSignatureSubpacketGenerator();
+    encryptFlags.setKeyFlags(false,
+        KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE);
+
+    BcPGPDigestCalculatorProvider digests =
+        new BcPGPDigestCalculatorProvider();
+    PGPDigestCalculator sha1 = digests.get(HashAlgorithmTags.SHA1);
+    PGPKeyRingGenerator gen = new PGPKeyRingGenerator(
+        PGPSignature.POSITIVE_CERTIFICATION, sign,
+        "Synthetic <" + type.getName() + "@example.com>", sha1,
+        signFlags.generate(), null, signerBuilder(sign),
+        new BcPBESecretKeyEncryptorBuilder(
+            SymmetricKeyAlgorithmTags.AES_128,
+            digests.get(HashAlgorithmTags.SHA256), 0x10)
+        .build(PASSPHRASE.toCharArray()));
+    gen.addSubKey(encrypt, encryptFlags.generate(), null);
+    mPublicRing = gen.generatePublicKeyRing().getEncoded();
+    mSecretRing = gen.generateSecretKeyRing().getEncoded();
+
+    mMessage = createMessage(null, encrypt.getPublicKey());
+    mSignedMessage = createMessage(sign, encrypt.getPublicKey());
+
+    PGPSignatureGenerator detached =
+        new PGPSignatureGenerator(signerBuilder(sign), sign.getPublicKey());
+    detached.init(PGPSignature.BINARY_DOCUMENT, sign.getPrivateKey());
+    detached.update(PLAINTEXT);
+    mDetachedSignature = detached.generate().getEncoded();
+  }
+
+  private static final PGPKeyPair keyPair(int algorithm,
+      AsymmetricCipherKeyPair kp, Date time) throws PGPException {
+    return new BcPGPKeyPair(PublicKeyPacket.VERSION_4, algorithm, kp, time);
+  }
+
+  private static final BcPGPContentSignerBuilder signerBuilder(
+      PGPKeyPair signer) {
+    return new BcPGPContentSignerBuilder(
+        signer.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256);
+  }
+
+  // Encrypts the plaintext to the recipient. With a signer, the
+  // literal data is also signed and compressed.
+  private static final byte[] createMessage(PGPKeyPair signer,
+      PGPPublicKey recipient) throws IOException, PGPException {
+    PGPEncryptedDataGenerator encryptor = new PGPEncryptedDataGenerator(
+        new BcPGPDataEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_128)
+        .setWithIntegrityPacket(true));
+    encryptor.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(recipient));
+
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    OutputStream eout = encryptor.open(bout, new byte[4096]);
+    if (signer == null) {
+      writeLiteral(eout);
+      eout.close();
+      return bout.toByteArray();
+    }
+
+    PGPSignatureGenerator sigGen =
+        new PGPSignatureGenerator(signerBuilder(signer), signer.getPublicKey());
+    sigGen.init(PGPSignature.BINARY_DOCUMENT, signer.getPrivateKey());
+    PGPCompressedDataGenerator compressor =
+        new PGPCompressedDataGenerator(CompressionAlgorithmTags.ZIP);
+    OutputStream cout = compressor.open(eout);
+    sigGen.generateOnePassVersion(false).encode(cout);
+    writeLiteral(cout);
+    sigGen.update(PLAINTEXT);
+    sigGen.generate().encode(cout);
+    cout.close();
+    eout.close();
+    return bout.toByteArray();
+  }
+
+  private static final void writeLiteral(OutputStream out)
+      throws IOException {
+    OutputStream lout = new PGPLiteralDataGenerator().open(out,
+        PGPLiteralData.BINARY, "synthetic.txt", PLAINTEXT.length,
+        new Date());
+    lout.write(PLAINTEXT);
+    lout.close();
+  }
+
+  private final KeyType mKeyType;
+  private final byte[] mPublicRing;
+  private final byte[] mSecretRing;
+  private final byte[] mMessage;
+  private final byte[] mSignedMessage;
+  private final byte[] mDetachedSignature;
+
+  static final String PASSPHRASE = "synthetic";
+  private static final byte[] PLAINTEXT = new byte[1024];
+  private static final SecureRandom sRandom = new SecureRandom();
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A testcase manifest along with the contents of every file it
+ * refers to, read ahead of time so tests can run without waiting on
+ * the filesystem.</p>
+ *
+ * <p>Read errors are held back and rethrown when the test asks for
+ * the affected file, so they're reported against that test.</p>
+ */
+final class TestInput {
+
+  /**
+   * Reads the manifest at <tt>path</tt> (relative to <tt>root</tt>),
+   * the <tt>.asc</tt> file sharing its base name, and any keyrings
+   * it references.
+   */
+  static final TestInput load(File root, String path) {
+    return load(root, path, null);
+  }
+
+  /**
+   * As {@link #load(File, String)}, but with the manifest already
+   * parsed into <tt>config</tt>, unless it is null.
+   */
+  static final TestInput load(File root, String path, JsonObject config) {
+    File base = new File(root, path);
+    TestInput ret = new TestInput(path, base);
+    if (config != null) {
+      ret.mConfig = config;
+    } else {
+      try {
+        byte[] json = Files.readAllBytes(base.toPath());
+        ret.mBytes += json.length;
+        ret.mConfig = new JsonParser().parse(new InputStreamReader(
+            new ByteArrayInputStream(json), "utf-8")).getAsJsonObject();
+      } catch (IOException ioe) {
+        ret.mError = ioe;
+        return ret;
+      } catch (JsonParseException jpe) {
+        ret.mError = new IOException("Unable to parse " + base, jpe);
+        return ret;
+      } catch (IllegalStateException ise) {
+        ret.mError = new IOException("Unable to parse " + base, ise);
+        return ret;
+      }
+    }
+
+    for (String name : getFileNames(ret.getBaseName(), ret.mConfig)) {
+      ret.readFile(name);
+    }
+    return ret;
+  }
+
+  /**
+   * @return the number of bytes {@link #load(File, String, JsonObject)}
+   * would read for the test, as far as the filesystem says now.
+   */
+  static final long estimateSize(File root, String path,
+      JsonObject config) {
+    File base = new File(root, path);
+    if (config == null) {
+      // Only the manifest is known.
+      return base.length();
+    }
+    String name = base.getName();
+    long ret = 0L;
+    for (String file : getFileNames(
+            name.substring(0, name.length() - ".json".length()), config)) {
+      ret += new File(base.getParentFile(), file).length();
+    }
+    return ret;
+  }
+
+  /**
+   * @return the path of the manifest, relative to the testcase root.
+   */
+  String getPath() {
+    return mPath;
+  }
+
+  File getFile() {
+    return mBase;
+  }
+
+  String getBaseName() {
+    String name = mBase.getName();
+    return name.substring(0, name.length() - ".json".length());
+  }
+
+  JsonObject getConfig() throws IOException {
+    if (mError != null) {
+      throw mError;
+    }
+    return mConfig;
+  }
+
+  /**
+   * @param name a file name, relative to the directory holding the
+   * manifest.
+   * @return a stream over the prefetched contents of the file.
+   */
+  InputStream open(String name) throws IOException {
+    return new ByteArrayInputStream(getBytes(name));
+  }
+
+  /**
+   * @param name a file name, relative to the directory holding the
+   * manifest.
+   * @return the prefetched contents of the file, which must not be
+   * modified.
+   */
+  byte[] getBytes(String name) throws IOException {
+    byte[] data = mFiles.get(name);
+    if (data != null) {
+      return data;
+    }
+    IOException error = mFileErrors.get(name);
+    if (error != null) {
+      throw error;
+    }
+    throw new FileNotFoundException(name + " was not prefetched for "
+        + mBase);
+  }
+
+  /**
+   * @return the number of bytes held by this input.
+   */
+  long getSize() {
+    return mBytes;
+  }
+
+  // The .asc file sharing the manifest's base name, and the keyrings
+  // it references, without duplicates.
+  private static final List<String> getFileNames(String baseName,
+      JsonObject config) {
+    List<String> ret = new ArrayList<String>();
+    ret.add(baseName + ".asc");
+    for (String key : FILE_KEYS) {
+      JsonElement name = config.get(key);
+      if ((name != null) && name.isJsonPrimitive()) {
+        addFileName(ret, name.getAsString());
+      } else if ((name != null) && name.isJsonArray()) {
+        for (JsonElement el : name.getAsJsonArray()) {
+          if (el.isJsonPrimitive()) {
+            addFileName(ret, el.getAsString());
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
+  private static final void addFileName(List<String> names, String name) {
+    if (!names.contains(name)) {
+      names.add(name);
+    }
+  }
+
+  private final void readFile(String name) {
+    if (mFiles.containsKey(name) || mFileErrors.containsKey(name)) {
+      return;
+    }
+    try {
+      byte[] data = Files.readAllBytes(
+          new File(mBase.getParentFile(), name).toPath());
+      mFiles.put(name, data);
+      mBytes += data.length;
+    } catch (IOException ioe) {
+      mFileErrors.put(name, ioe);
+    }
+  }
+
+  private TestInput(String path, File base) {
+    mPath = path;
+    mBase = base;
+  }
+
+  private final String mPath;
+  private final File mBase;
+  private final Map<String, byte[]> mFiles = new HashMap<String, byte[]>();
+  private final Map<String, IOException> mFileErrors =
+      new HashMap<String, IOException>();
+  private JsonObject mConfig = null;
+  private IOException mError = null;
+  private long mBytes = 0L;
+
+  // Manifest properties that name keyring files, or lists of them.
+  private static final String FILE_KEYS[] = {
+    "decryptKey", "verifyKey", "verifyKeys", "keys"
+  };
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Outcome of running some or all of the testcases, as written by
+ * one shard and combined again by the <tt>merge</tt> command.</p>
+ *
+ * <p>The on-disk form is a json object:
+ * <pre>
+ * {"shards": ["0/4"], "failures": 1, "limits": 0,
+ *  "tests": [{"path": "a/b.json", "status": "FAILED", "millis": 12}, ...]}
+ * </pre>
+ * </p>
+ */
+final class TestResults {
+
+  /**
+   * The possible outcomes of a testcase. <tt>LIMIT</tt> means the
+   * test was stopped because it exceeded one of the {@link Limits}.
+   */
+  enum Status { OK, FAILED, LIMIT };
+
+  /**
+   * The result of a single testcase.
+   */
+  static final class Entry {
+    String getPath() {
+      return mPath;
+    }
+    Status getStatus() {
+      return mStatus;
+    }
+    long getMillis() {
+      return mMillis;
+    }
+    private Entry(String path, Status status, long millis) {
+      mPath = path;
+      mStatus = status;
+      mMillis = millis;
+    }
+    private final String mPath;
+    private final Status mStatus;
+    private final long mMillis;
+  }
+
+  TestResults() {
+    mShards = new ArrayList<String>();
+    mEntries = new ArrayList<Entry>();
+  }
+
+  TestResults(Shard shard) {
+    this();
+    mShards.add(shard.toString());
+  }
+
+  void add(String path, Status status, long millis) {
+    mEntries.add(new Entry(path, status, millis));
+  }
+
+  /**
+   * Appends all shards and entries from another set of results.
+   */
+  void addAll(TestResults other) {
+    mShards.addAll(other.mShards);
+    mEntries.addAll(other.mEntries);
+  }
+
+  List<String> getShards() {
+    return mShards;
+  }
+
+  List<Entry> getEntries() {
+    return mEntries;
+  }
+
+  int getFailureCount() {
+    return count(Status.FAILED);
+  }
+
+  int getLimitCount() {
+    return count(Status.LIMIT);
+  }
+
+  private final int count(Status status) {
+    int count = 0;
+    for (Entry entry : mEntries) {
+      if (entry.getStatus() == status) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the recorded duration of each test in milliseconds,
+   * keyed by path.
+   */
+  Map<String, Long> getDurations() {
+    Map<String, Long> ret = new HashMap<String, Long>();
+    for (Entry entry : mEntries) {
+      ret.put(entry.getPath(), Long.valueOf(entry.getMillis()));
+    }
+    return ret;
+  }
+
+  void write(File path) throws IOException {
+    JsonArray shards = new JsonArray();
+    for (String shard : mShards) {
+      shards.add(new JsonPrimitive(shard));
+    }
+    JsonArray tests = new JsonArray();
+    for (Entry entry : mEntries) {
+      JsonObject test = new JsonObject();
+      test.addProperty("path", entry.getPath());
+      test.addProperty("status", entry.getStatus().name());
+      test.addProperty("millis", Long.valueOf(entry.getMillis()));
+      tests.add(test);
+    }
+    JsonObject root = new JsonObject();
+    root.add("shards", shards);
+    root.addProperty("failures", Integer.valueOf(getFailureCount()));
+    root.addProperty("limits", Integer.valueOf(getLimitCount()));
+    root.add("tests", tests);
+
+    Writer out = null;
+    try {
+      out = new OutputStreamWriter(new FileOutputStream(path), "utf-8");
+      out.write(root.toString());
+      out.write("\n");
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  static final TestResults read(File path) throws IOException {
+    BufferedReader br = new BufferedReader(new FileReader(path));
+    try {
+      JsonObject root = new JsonParser().parse(br).getAsJsonObject();
+      TestResults ret = new TestResults();
+      for (JsonElement shard : root.get("shards").getAsJsonArray()) {
+        ret.mShards.add(shard.getAsString());
+      }
+      for (JsonElement el : root.get("tests").getAsJsonArray()) {
+        JsonObject test = el.getAsJsonObject();
+        ret.add(test.get("path").getAsString(),
+            Status.valueOf(test.get("status").getAsString()),
+            test.get("millis").getAsLong());
+      }
+      return ret;
+    } finally {
+      br.close();
+    }
+  }
+
+  private final List<String> mShards;
+  private final List<Entry> mEntries;
+}
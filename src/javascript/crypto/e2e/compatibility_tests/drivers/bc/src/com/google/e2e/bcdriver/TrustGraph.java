@@ -0,0 +1,388 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Answers whether a userid is certified, directly or through a
+ * chain of other keys, by one of a set of trusted keys.</p>
+ *
+ * <p>Keys are added as a {@link LazyKeyRing} along with their
+ * validated {@link KeyChecker.PKR}. A key certifies a userid on
+ * another key if its most recent current certification of that
+ * userid verifies and isn't a revocation. Certifications are only
+ * verified when a path search reaches them, several at a time on a
+ * shared thread pool, and each result is kept along with its
+ * validity period, which every search checks against the current
+ * time. Adding, replacing or revoking a key only discards the
+ * results for certifications on that key, so later searches mostly
+ * reuse earlier work.</p>
+ *
+ * <p>A path runs from a trusted key to the target key, through keys
+ * that certify some valid userid of the next key; the last step must
+ * certify the requested userid. Keys that are revoked or failed
+ * validation are never part of a path. Trust signature levels and
+ * amounts are not interpreted; every certification is a full
+ * one.</p>
+ */
+final class TrustGraph {
+
+  /**
+   * Adds a key, or replaces an earlier version of it.
+   */
+  synchronized void add(LazyKeyRing ring, KeyChecker.PKR pkr)
+      throws IOException {
+    Node old = mNodes.get(Long.valueOf(ring.getKeyID()));
+    if (old != null) {
+      forget(old);
+    }
+    Node node = new Node(ring, pkr);
+    mNodes.put(Long.valueOf(node.mKeyID), node);
+  }
+
+  /**
+   * Marks a key as revoked, so it no longer takes part in any path.
+   * The revocation holds for the key itself, so adding a new version
+   * of it later does not lift it.
+   */
+  synchronized void revoke(long keyID) {
+    mRevoked.add(Long.valueOf(keyID));
+  }
+
+  synchronized void addTrustRoot(long keyID) {
+    mRoots.add(Long.valueOf(keyID));
+  }
+
+  /**
+   * @return the key IDs on the shortest path from a trusted key to
+   * the target key, starting with the trusted key and ending with the
+   * target; or null if there is no path with at most
+   * <tt>maxDepth</tt> certifications.
+   */
+  List<Long> findPath(long keyID, String uid, int maxDepth)
+      throws IOException, PGPException, InterruptedException {
+    Map<Long, Node> nodes;
+    Set<Long> roots;
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      nodes = new HashMap<Long, Node>(mNodes);
+      roots = new HashSet<Long>(mRoots);
+      for (Long revoked : mRevoked) {
+        nodes.remove(revoked);
+      }
+    }
+
+    Node target = nodes.get(Long.valueOf(keyID));
+    if ((target == null) || !target.isValid(uid)) {
+      return null;
+    }
+    // Each key reached maps to the next key on its path to the
+    // target.
+    Map<Long, Long> next = new LinkedHashMap<Long, Long>();
+    next.put(Long.valueOf(keyID), null);
+    if (roots.contains(Long.valueOf(keyID))) {
+      return pathFrom(Long.valueOf(keyID), next);
+    }
+
+    List<Node> frontier = Collections.singletonList(target);
+    for (int depth = 1; (depth <= maxDepth) && !frontier.isEmpty();
+         depth++) {
+      // Find every unvisited certifier of the frontier, verify them
+      // all together, then take the next level from those that pass.
+      List<Edge> edges = new ArrayList<Edge>();
+      for (Node node : frontier) {
+        for (Map.Entry<Long, List<LazyKeyRing.Certification>> entry
+                 : node.mCertifications.entrySet()) {
+          Node certifier = nodes.get(entry.getKey());
+          if ((certifier != null) && certifier.isUsable()
+              && !next.containsKey(entry.getKey())) {
+            edges.add(new Edge(certifier, node,
+                    (node == target) ? uid : null, entry.getValue()));
+          }
+        }
+      }
+      verify(edges);
+
+      List<Node> reached = new ArrayList<Node>();
+      for (Edge edge : edges) {
+        Long certifier = Long.valueOf(edge.mCertifier.mKeyID);
+        if (!next.containsKey(certifier) && edge.isCertified(now)) {
+          next.put(certifier, Long.valueOf(edge.mTarget.mKeyID));
+          if (roots.contains(certifier)) {
+            return pathFrom(certifier, next);
+          }
+          reached.add(edge.mCertifier);
+        }
+      }
+      frontier = reached;
+    }
+    return null;
+  }
+
+  /**
+   * @return the number of certifications verified so far, and the
+   * number of checks answered from earlier results.
+   */
+  long getVerifiedCount() {
+    return mVerified.get();
+  }
+  long getReusedCount() {
+    return mReused.get();
+  }
+
+  private static final List<Long> pathFrom(Long start, Map<Long, Long> next) {
+    List<Long> ret = new ArrayList<Long>();
+    for (Long key = start; key != null; key = next.get(key)) {
+      ret.add(key);
+    }
+    return ret;
+  }
+
+  private final synchronized void forget(Node node) {
+    for (List<LazyKeyRing.Certification> certs
+             : node.mCertifications.values()) {
+      for (LazyKeyRing.Certification cert : certs) {
+        mResults.remove(cert);
+      }
+    }
+  }
+
+  // Verifies every certification on the edges that hasn't been
+  // checked before.
+  private final void verify(List<Edge> edges)
+      throws IOException, PGPException, InterruptedException {
+    List<Future<?>> pending = new ArrayList<Future<?>>();
+    for (Edge edge : edges) {
+      for (final Check check : edge.mChecks) {
+        if (mResults.containsKey(check.mCert)) {
+          mReused.incrementAndGet();
+          continue;
+        }
+        pending.add(EXECUTOR.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException, PGPException {
+              mResults.put(check.mCert, check.run());
+              mVerified.incrementAndGet();
+              return null;
+            }
+          }));
+      }
+    }
+    boolean done = false;
+    try {
+      for (Future<?> future : pending) {
+        try {
+          future.get();
+        } catch (ExecutionException ee) {
+          Throwable cause = ee.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          if (cause instanceof PGPException) {
+            throw (PGPException) cause;
+          }
+          throw new IllegalStateException(cause);
+        }
+      }
+      done = true;
+    } finally {
+      // The pool is shared, so don't leave it working for a search
+      // that has already failed.
+      if (!done) {
+        for (Future<?> future : pending) {
+          future.cancel(true);
+        }
+      }
+    }
+  }
+
+  // A validated key, with its third-party certifications grouped by
+  // issuer.
+  private static final class Node {
+    private Node(LazyKeyRing ring, KeyChecker.PKR pkr) throws IOException {
+      mKeyID = ring.getKeyID();
+      mPkr = pkr;
+      mCertifications =
+          new HashMap<Long, List<LazyKeyRing.Certification>>();
+      for (LazyKeyRing.Certification cert : ring.getCertifications()) {
+        // User attributes can't be checked without their contents.
+        if (cert.getUserID() == null) {
+          continue;
+        }
+        Long issuer = Long.valueOf(cert.getIssuerKeyID());
+        List<LazyKeyRing.Certification> certs = mCertifications.get(issuer);
+        if (certs == null) {
+          certs = new ArrayList<LazyKeyRing.Certification>();
+          mCertifications.put(issuer, certs);
+        }
+        certs.add(cert);
+      }
+      mUserIDs = new HashSet<String>();
+      for (KeyChecker.UserID uid : pkr.getUserIDs()) {
+        mUserIDs.add(uid.getName());
+      }
+    }
+    private boolean isUsable() {
+      return mPkr.getStatus() == KeyChecker.PKR.Status.OK;
+    }
+    private boolean isValid(String uid) {
+      return isUsable() && mUserIDs.contains(uid);
+    }
+    private PGPPublicKey getPublicKey() {
+      return mPkr.getOriginal().getPublicKey();
+    }
+    private final long mKeyID;
+    private final KeyChecker.PKR mPkr;
+    private final Map<Long, List<LazyKeyRing.Certification>> mCertifications;
+    private final Set<String> mUserIDs;
+  }
+
+  // The outcome of checking one certification signature. Whether it
+  // is current depends on when it is asked, so only its validity
+  // period is kept.
+  private static final class Result {
+    private Result(boolean valid, long created, long validFrom,
+        long validUntil, boolean revocation) {
+      mValid = valid;
+      mCreated = created;
+      mValidFrom = validFrom;
+      mValidUntil = validUntil;
+      mRevocation = revocation;
+    }
+    private boolean isCurrent(long now) {
+      return mValid && (now >= mValidFrom) && (now <= mValidUntil);
+    }
+    private final boolean mValid;
+    private final long mCreated;
+    private final long mValidFrom;
+    private final long mValidUntil;
+    private final boolean mRevocation;
+  }
+
+  private static final class Check {
+    private Check(Node certifier, Node target,
+        LazyKeyRing.Certification cert) {
+      mCertifier = certifier;
+      mTarget = target;
+      mCert = cert;
+    }
+    private Result run() throws IOException, PGPException {
+      PGPSignature sig = mCert.getSignature();
+      boolean revocation =
+          (sig.getSignatureType() == PGPSignature.CERTIFICATION_REVOCATION);
+      if (!revocation && !sig.isCertification()) {
+        return INVALID;
+      }
+      boolean valid = KeyChecker.isGoodCertification(sig,
+          mCertifier.getPublicKey(), mTarget.getPublicKey(),
+          mCert.getUserID());
+      return new Result(valid, sig.getCreationTime().getTime(),
+          KeyChecker.getValidFrom(sig), KeyChecker.getValidUntil(sig),
+          revocation);
+    }
+    private final Node mCertifier;
+    private final Node mTarget;
+    private final LazyKeyRing.Certification mCert;
+  }
+
+  // The certifications by one key of the valid userids on another,
+  // or of just one userid if given.
+  private final class Edge {
+    private Edge(Node certifier, Node target, String uid,
+        List<LazyKeyRing.Certification> certs) {
+      mCertifier = certifier;
+      mTarget = target;
+      mChecks = new ArrayList<Check>();
+      for (LazyKeyRing.Certification cert : certs) {
+        String certified = cert.getUserID();
+        if ((uid == null) ? target.mUserIDs.contains(certified)
+            : uid.equals(certified)) {
+          mChecks.add(new Check(certifier, target, cert));
+        }
+      }
+    }
+    // True if, for some userid, the most recent certification by the
+    // certifier that is valid at <tt>now</tt> is not a revocation.
+    private boolean isCertified(long now) {
+      Map<String, Result> latest = new HashMap<String, Result>();
+      for (Check check : mChecks) {
+        Result result = mResults.get(check.mCert);
+        if ((result == null) || !result.isCurrent(now)) {
+          continue;
+        }
+        String uid = check.mCert.getUserID();
+        Result prev = latest.get(uid);
+        if ((prev == null) || (result.mCreated > prev.mCreated)) {
+          latest.put(uid, result);
+        }
+      }
+      for (Result result : latest.values()) {
+        if (!result.mRevocation) {
+          return true;
+        }
+      }
+      return false;
+    }
+    private final Node mCertifier;
+    private final Node mTarget;
+    private final List<Check> mChecks;
+  }
+
+  private static final Result INVALID =
+      new Result(false, 0L, Long.MAX_VALUE, Long.MIN_VALUE, false);
+
+  // Shared by every graph, as each search only briefly needs it.
+  private static final ExecutorService EXECUTOR =
+      Executors.newFixedThreadPool(
+          Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "bcdriver-trust");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+
+  private final Map<Long, Node> mNodes = new HashMap<Long, Node>();
+  private final Set<Long> mRoots = new HashSet<Long>();
+  private final Set<Long> mRevoked = new HashSet<Long>();
+  // Verification results, keyed by the (undecoded) certification.
+  private final Map<LazyKeyRing.Certification, Result> mResults =
+      new ConcurrentHashMap<LazyKeyRing.Certification, Result>();
+  private final AtomicLong mVerified = new AtomicLong();
+  private final AtomicLong mReused = new AtomicLong();
+}
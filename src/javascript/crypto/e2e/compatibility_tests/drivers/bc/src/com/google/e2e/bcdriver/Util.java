@@ -28,9 +28,13 @@ import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
 import java.util.Iterator;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 final class Util {
 
@@ -58,9 +62,8 @@ final class Util {
       throws IOException, PGPException {
     InputStream in = null;
     try {
-      in = PGPUtil.getDecoderStream(new BufferedInputStream(
-          new FileInputStream(path)));
-      return new PGPPublicKeyRing(in, new BcKeyFingerprintCalculator());
+      in = new BufferedInputStream(new FileInputStream(path));
+      return readPublicKeyRing(in);
     } finally {
       if (in != null) {
         try {
@@ -72,13 +75,29 @@ final class Util {
     }
   }
 
- static final PGPSecretKeyRing readSecretKeyRing(File path)
+  static final PGPPublicKeyRing readPublicKeyRing(InputStream in)
+      throws IOException, PGPException {
+    Events.KeyringParse event = new Events.KeyringParse();
+    event.begin();
+    CountingInputStream cin = new CountingInputStream(in);
+    PGPPublicKeyRing ret = new PGPPublicKeyRing(PGPUtil.getDecoderStream(cin),
+        new BcKeyFingerprintCalculator());
+    if (event.shouldCommit()) {
+      event.keyID = ret.getPublicKey().getKeyID();
+      event.secret = false;
+      event.keyCount = count(ret.getPublicKeys());
+      event.size = cin.getCount();
+      event.commit();
+    }
+    return ret;
+  }
+
+  static final PGPSecretKeyRing readSecretKeyRing(File path)
       throws IOException, PGPException {
     InputStream in = null;
     try {
-      in = PGPUtil.getDecoderStream(new BufferedInputStream(
-          new FileInputStream(path)));
-      return new PGPSecretKeyRing(in, new BcKeyFingerprintCalculator());
+      in = new BufferedInputStream(new FileInputStream(path));
+      return readSecretKeyRing(in);
     } finally {
       if (in != null) {
         try {
@@ -89,4 +108,102 @@ final class Util {
       }
     }
   }
+
+  static final PGPSecretKeyRing readSecretKeyRing(InputStream in)
+      throws IOException, PGPException {
+    Events.KeyringParse event = new Events.KeyringParse();
+    event.begin();
+    CountingInputStream cin = new CountingInputStream(in);
+    PGPSecretKeyRing ret = new PGPSecretKeyRing(PGPUtil.getDecoderStream(cin),
+        new BcKeyFingerprintCalculator());
+    if (event.shouldCommit()) {
+      event.keyID = ret.getPublicKey().getKeyID();
+      event.secret = true;
+      event.keyCount = count(ret.getPublicKeys());
+      event.size = cin.getCount();
+      event.commit();
+    }
+    return ret;
+  }
+
+  /**
+   * @return the version of the Bouncy Castle jars in use, or
+   * "unknown".
+   */
+  static final String getBouncyCastleVersion() {
+    Package pkg = PGPPublicKeyRing.class.getPackage();
+    if ((pkg != null) && (pkg.getImplementationVersion() != null)) {
+      return pkg.getImplementationVersion();
+    }
+    // Newer jars only carry the OSGi bundle version.
+    try {
+      URL jar = PGPPublicKeyRing.class.getProtectionDomain()
+          .getCodeSource().getLocation();
+      JarFile jf = new JarFile(new File(jar.toURI()));
+      try {
+        Manifest manifest = jf.getManifest();
+        if (manifest != null) {
+          String version =
+              manifest.getMainAttributes().getValue("Bundle-Version");
+          if (version != null) {
+            return version;
+          }
+        }
+      } finally {
+        jf.close();
+      }
+    } catch (Exception ignore) {
+      ; // fall through
+    }
+    return "unknown";
+  }
+
+  private static final int count(Iterator<?> it) {
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    return count;
+  }
+
+  // Tracks the number of bytes read through it, for reporting.
+  static final class CountingInputStream extends FilterInputStream {
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        mCount++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+      int nread = super.read(buf, off, len);
+      if (nread > 0) {
+        mCount += nread;
+      }
+      return nread;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long nskipped = super.skip(n);
+      if (nskipped > 0) {
+        mCount += nskipped;
+      }
+      return nskipped;
+    }
+
+    long getCount() {
+      return mCount;
+    }
+
+    private long mCount = 0L;
+  }
 }
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A compact on-disk store of keyrings that have already been
+ * through {@link KeyChecker#validate}, so a process can start with
+ * thousands of trusted keys without verifying their signatures
+ * again.</p>
+ *
+ * <p>Each entry holds the raw keyring packets, which userids and
+ * subkeys were accepted along with the selected signature for each,
+ * the resulting status and diagnostics, and the time until which the
+ * selection remains valid. Entries are found either by the primary
+ * key id, or by a digest of the source file they were read from.
+ * Once an entry's validity window has passed, it is validated again
+ * when requested.</p>
+ *
+ * <p>Selected signatures are recorded by their position within the
+ * parsed keyring, so a store is only used with the same Bouncy
+ * Castle and store format version that wrote it. The file is memory
+ * mapped, and only the index is read when it is opened. A new store
+ * is written beside the old one and renamed over it, so a reader
+ * never sees a partly written file; one that is malformed anyway is
+ * treated as absent.</p>
+ *
+ * <p>Layout, all integers big-endian:
+ * <pre>
+ * header:  magic(4) format(4) bc-version(2 + utf8) count(4)
+ * index:   count * [keyid(8) source-sha256(32) offset(4) length(4)]
+ * record:  status(1) validated-at(8) valid-until(8)
+ *          nuids(4) nuids * [uid-ordinal(4) sig-ordinal(4)]
+ *          nsubkeys(4) nsubkeys * [key-ordinal(4) sig-ordinal(4)]
+ *          errors(4 + utf8) keyring(4 + packets)
+ * </pre></p>
+ */
+final class ValidatedKeyStore {
+
+  /**
+   * @return a hex digest identifying the contents of a keyring
+   * source file.
+   */
+  static final String digest(byte[] source) {
+    SHA256Digest digest = new SHA256Digest();
+    digest.update(source, 0, source.length);
+    byte[] out = new byte[digest.getDigestSize()];
+    digest.doFinal(out, 0);
+    return Hex.toHexString(out);
+  }
+
+  /**
+   * Opens a store previously written by {@link #write}.
+   *
+   * @return the store, or null if it doesn't exist, is malformed, or
+   * was written by a different version of Bouncy Castle or of this
+   * class.
+   */
+  static final ValidatedKeyStore open(File path) throws IOException {
+    if (!path.isFile()) {
+      return null;
+    }
+    MappedByteBuffer buf;
+    RandomAccessFile raf = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      raf.close();
+    }
+
+    try {
+      if ((buf.remaining() < 8) || (buf.getInt() != MAGIC)
+          || (buf.getInt() != FORMAT_VERSION)) {
+        return null;
+      }
+      byte[] version = new byte[buf.getShort() & 0xffff];
+      buf.get(version);
+      if (!new String(version, "utf-8").equals(BC_VERSION)) {
+        return null;
+      }
+      ValidatedKeyStore ret = new ValidatedKeyStore(buf);
+      return ret.isWellFormed() ? ret : null;
+    } catch (BufferUnderflowException bue) {
+      // Truncated, perhaps by an older driver that wrote in place.
+      return null;
+    }
+  }
+
+  /**
+   * Writes a new store containing the provided keys, along with any
+   * entries from <tt>previous</tt> whose source digest isn't among
+   * them.
+   *
+   * @param path the file to (over)write. It is replaced atomically
+   * once the new store has been written and synced.
+   * @param previous an existing store to carry entries over from, or
+   * null.
+   * @param pkrs validated keys, keyed by {@link #digest} of their
+   * source.
+   */
+  static final void write(File path, ValidatedKeyStore previous,
+      Map<String, KeyChecker.PKR> pkrs)
+      throws IOException, PGPException {
+
+    List<byte[]> digests = new ArrayList<byte[]>();
+    List<Long> keyids = new ArrayList<Long>();
+    List<byte[]> records = new ArrayList<byte[]>();
+
+    for (Map.Entry<String, KeyChecker.PKR> entry : pkrs.entrySet()) {
+      byte[] record = encode(entry.getValue());
+      if (record == null) {
+        continue;
+      }
+      digests.add(Hex.decode(entry.getKey()));
+      keyids.add(Long.valueOf(
+          entry.getValue().getOriginal().getPublicKey().getKeyID()));
+      records.add(record);
+    }
+    if (previous != null) {
+      for (int i = 0; i < previous.mKeyIDs.length; i++) {
+        if (!pkrs.containsKey(previous.mDigests[i])) {
+          digests.add(Hex.decode(previous.mDigests[i]));
+          keyids.add(Long.valueOf(previous.mKeyIDs[i]));
+          records.add(previous.getRecord(i));
+        }
+      }
+    }
+
+    byte[] version = BC_VERSION.getBytes("utf-8");
+    int offset = 4 + 4 + 2 + version.length + 4
+        + records.size() * INDEX_ENTRY_SIZE;
+
+    File dir = path.getAbsoluteFile().getParentFile();
+    File tmp = File.createTempFile(path.getName(), ".tmp", dir);
+    boolean written = false;
+    FileOutputStream fout = new FileOutputStream(tmp);
+    try {
+      DataOutputStream out = new DataOutputStream(fout);
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeShort(version.length);
+      out.write(version);
+      out.writeInt(records.size());
+      for (int i = 0; i < records.size(); i++) {
+        out.writeLong(keyids.get(i).longValue());
+        out.write(digests.get(i));
+        out.writeInt(offset);
+        out.writeInt(records.get(i).length);
+        offset += records.get(i).length;
+      }
+      for (byte[] record : records) {
+        out.write(record);
+      }
+      out.flush();
+      fout.getFD().sync();
+      written = true;
+    } finally {
+      fout.close();
+      if (!written) {
+        tmp.delete();
+      }
+    }
+    try {
+      Files.move(tmp.toPath(), path.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ioe) {
+      tmp.delete();
+      throw ioe;
+    }
+  }
+
+  int size() {
+    return mKeyIDs.length;
+  }
+
+  /**
+   * @param digest the {@link #digest} of a keyring source file.
+   * @return the validated key from that source, or null if it isn't
+   * in the store. If its validity window has passed, the key is
+   * validated again.
+   */
+  KeyChecker.PKR findBySource(String digest, Limits limits)
+      throws IOException, PGPException, SignatureException {
+    Integer idx = mBySource.get(digest);
+    return (idx == null) ? null : get(idx.intValue(), limits);
+  }
+
+  /**
+   * @return the validated key with this primary key id, or null if
+   * it isn't in the store. If its validity window has passed, the key
+   * is validated again.
+   */
+  KeyChecker.PKR findByKeyID(long keyid, Limits limits)
+      throws IOException, PGPException, SignatureException {
+    Integer idx = mByKeyID.get(Long.valueOf(keyid));
+    return (idx == null) ? null : get(idx.intValue(), limits);
+  }
+
+  // A record that doesn't decode is treated as absent, so the
+  // keyring is validated from its source instead.
+  private final KeyChecker.PKR get(int idx, Limits limits)
+      throws IOException, PGPException, SignatureException {
+    ByteBuffer rec = mBuf.duplicate();
+    rec.position(mOffsets[idx]);
+    rec.limit(mOffsets[idx] + mLengths[idx]);
+
+    KeyChecker.PKR.Status status;
+    long validUntil;
+    int[] uidSelections;
+    int[] subkeySelections;
+    String errors;
+    byte[] encoded;
+    try {
+      int ordinal = rec.get();
+      if ((ordinal < 0)
+          || (ordinal >= KeyChecker.PKR.Status.values().length)) {
+        return null;
+      }
+      status = KeyChecker.PKR.Status.values()[ordinal];
+      rec.getLong(); // validated-at
+      validUntil = rec.getLong();
+      uidSelections = readSelections(rec);
+      subkeySelections = readSelections(rec);
+      errors = new String(readBytes(rec), "utf-8");
+      encoded = readBytes(rec);
+    } catch (BufferUnderflowException bue) {
+      return null;
+    }
+    PGPPublicKeyRing ring =
+        Util.readPublicKeyRing(new ByteArrayInputStream(encoded));
+
+    if (System.currentTimeMillis() > validUntil) {
+      return KeyChecker.validate(ring, limits);
+    }
+    return restore(status, ring, uidSelections, subkeySelections, errors);
+  }
+
+  /**
+   * Rebuilds a PKR from the positions returned by
+   * {@link #getSelections}, without checking any signatures.
+   */
+  static final KeyChecker.PKR restore(KeyChecker.PKR.Status status,
+      PGPPublicKeyRing ring, int[] uidSelections, int[] subkeySelections,
+      String errors) throws IOException {
+    PGPPublicKey masterpk = ring.getPublicKey();
+    List<String> uids = new ArrayList<String>();
+    List<PGPSignature> uidSigs = new ArrayList<PGPSignature>();
+    for (int i = 0; i < uidSelections.length; i += 2) {
+      String uid = nth(Util.getTypedIterator(masterpk.getUserIDs(),
+              String.class), uidSelections[i]);
+      uids.add(uid);
+      uidSigs.add(nth(Util.getTypedIterator(masterpk.getSignaturesForID(uid),
+              PGPSignature.class), uidSelections[i + 1]));
+    }
+    List<PGPPublicKey> subkeys = new ArrayList<PGPPublicKey>();
+    List<PGPSignature> subkeySigs = new ArrayList<PGPSignature>();
+    for (int i = 0; i < subkeySelections.length; i += 2) {
+      PGPPublicKey subkey = nth(ring.getPublicKeys(), subkeySelections[i]);
+      subkeys.add(subkey);
+      subkeySigs.add(nth(Util.getTypedIterator(subkey.getSignatures(),
+              PGPSignature.class), subkeySelections[i + 1]));
+    }
+    return KeyChecker.restore(status, ring, uids, uidSigs, subkeys,
+        subkeySigs, errors);
+  }
+
+  private final byte[] getRecord(int idx) {
+    ByteBuffer rec = mBuf.duplicate();
+    rec.position(mOffsets[idx]);
+    byte[] ret = new byte[mLengths[idx]];
+    rec.get(ret);
+    return ret;
+  }
+
+  // Returns null if the selections can't be located in the keyring,
+  // which should not happen for a PKR produced by validate.
+  private static final byte[] encode(KeyChecker.PKR pkr)
+      throws IOException {
+    int[][] selections = getSelections(pkr);
+    if (selections == null) {
+      return null;
+    }
+
+    ByteArrayOutputStream baout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baout);
+    out.writeByte(pkr.getStatus().ordinal());
+    out.writeLong(System.currentTimeMillis());
+    out.writeLong(KeyChecker.getValidUntil(pkr));
+    for (int[] selection : selections) {
+      out.writeInt(selection.length / 2);
+      for (int ordinal : selection) {
+        out.writeInt(ordinal);
+      }
+    }
+
+    byte[] errors = pkr.getErrors().getBytes("utf-8");
+    out.writeInt(errors.length);
+    out.write(errors);
+    byte[] encoded = pkr.getOriginal().getEncoded();
+    out.writeInt(encoded.length);
+    out.write(encoded);
+    out.flush();
+    return baout.toByteArray();
+  }
+
+  /**
+   * @return the positions of the userids and subkeys selected in
+   * this PKR within its keyring, as two arrays of
+   * [uid-ordinal sig-ordinal] and [key-ordinal sig-ordinal] pairs;
+   * or null if they can't be located in the keyring, which should not
+   * happen for a PKR produced by validate.
+   */
+  static final int[][] getSelections(KeyChecker.PKR pkr) {
+    PGPPublicKeyRing ring = pkr.getOriginal();
+    PGPPublicKey masterpk = ring.getPublicKey();
+
+    int[] uidSelections = new int[2 * pkr.getUserIDs().size()];
+    int n = 0;
+    for (KeyChecker.UserID uid : pkr.getUserIDs()) {
+      int uidOrdinal = indexOf(Util.getTypedIterator(masterpk.getUserIDs(),
+              String.class), uid.getName(), false);
+      int sigOrdinal = -1;
+      Iterator<PGPSignature> sigit = Util.getTypedIterator(
+          masterpk.getSignaturesForID(uid.getName()), PGPSignature.class);
+      for (int i = 0; (sigit != null) && sigit.hasNext(); i++) {
+        if (uid.isSelected(sigit.next())) {
+          sigOrdinal = i;
+          break;
+        }
+      }
+      if ((uidOrdinal < 0) || (sigOrdinal < 0)) {
+        return null;
+      }
+      uidSelections[n++] = uidOrdinal;
+      uidSelections[n++] = sigOrdinal;
+    }
+
+    int[] subkeySelections = new int[2 * pkr.getSubkeys().size()];
+    n = 0;
+    for (KeyChecker.Subkey subkey : pkr.getSubkeys()) {
+      int keyOrdinal =
+          indexOf(ring.getPublicKeys(), subkey.getPublicKey(), true);
+      int sigOrdinal = -1;
+      Iterator<PGPSignature> sigit = Util.getTypedIterator(
+          subkey.getPublicKey().getSignatures(), PGPSignature.class);
+      for (int i = 0; sigit.hasNext(); i++) {
+        if (subkey.isSelected(sigit.next())) {
+          sigOrdinal = i;
+          break;
+        }
+      }
+      if ((keyOrdinal < 0) || (sigOrdinal < 0)) {
+        return null;
+      }
+      subkeySelections[n++] = keyOrdinal;
+      subkeySelections[n++] = sigOrdinal;
+    }
+    return new int[][] { uidSelections, subkeySelections };
+  }
+
+  private static final <T> int indexOf(Iterator<T> it, T target,
+      boolean identity) {
+    if (it == null) {
+      return -1;
+    }
+    for (int i = 0; it.hasNext(); i++) {
+      T next = it.next();
+      if (identity ? (next == target) : next.equals(target)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static final <T> T nth(Iterator<T> it, int n) throws IOException {
+    for (int i = 0; (it != null) && it.hasNext(); i++) {
+      T next = it.next();
+      if (i == n) {
+        return next;
+      }
+    }
+    throw new IOException("Key store does not match keyring");
+  }
+
+  // Counts and lengths are checked against what remains, so a
+  // corrupt record underflows rather than allocating wildly.
+  private static final int[] readSelections(ByteBuffer rec) {
+    int count = rec.getInt();
+    if ((count < 0) || (count > rec.remaining() / 8)) {
+      throw new BufferUnderflowException();
+    }
+    int[] ret = new int[2 * count];
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = rec.getInt();
+    }
+    return ret;
+  }
+
+  private static final byte[] readBytes(ByteBuffer rec) {
+    int length = rec.getInt();
+    if ((length < 0) || (length > rec.remaining())) {
+      throw new BufferUnderflowException();
+    }
+    byte[] ret = new byte[length];
+    rec.get(ret);
+    return ret;
+  }
+
+  // Every record must lie within the file.
+  private final boolean isWellFormed() {
+    for (int i = 0; i < mOffsets.length; i++) {
+      if ((mOffsets[i] < 0) || (mLengths[i] < 0)
+          || ((long) mOffsets[i] + mLengths[i] > mBuf.capacity())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private ValidatedKeyStore(MappedByteBuffer buf) {
+    mBuf = buf;
+    int count = buf.getInt();
+    if ((count < 0) || (count > buf.remaining() / INDEX_ENTRY_SIZE)) {
+      throw new BufferUnderflowException();
+    }
+    mKeyIDs = new long[count];
+    mDigests = new String[count];
+    mOffsets = new int[count];
+    mLengths = new int[count];
+    byte[] digest = new byte[32];
+    for (int i = 0; i < count; i++) {
+      mKeyIDs[i] = buf.getLong();
+      buf.get(digest);
+      mDigests[i] = Hex.toHexString(digest);
+      mOffsets[i] = buf.getInt();
+      mLengths[i] = buf.getInt();
+      mByKeyID.put(Long.valueOf(mKeyIDs[i]), Integer.valueOf(i));
+      mBySource.put(mDigests[i], Integer.valueOf(i));
+    }
+  }
+
+  private final ByteBuffer mBuf;
+  private final long[] mKeyIDs;
+  private final String[] mDigests;
+  private final int[] mOffsets;
+  private final int[] mLengths;
+  private final Map<Long, Integer> mByKeyID = new HashMap<Long, Integer>();
+  private final Map<String, Integer> mBySource =
+      new HashMap<String, Integer>();
+
+  private static final int MAGIC = 0x45324b53; // "E2KS"
+  private static final int FORMAT_VERSION = 1;
+  private static final int INDEX_ENTRY_SIZE = 8 + 32 + 4 + 4;
+  private static final String BC_VERSION =
+      Util.getBouncyCastleVersion();
+}
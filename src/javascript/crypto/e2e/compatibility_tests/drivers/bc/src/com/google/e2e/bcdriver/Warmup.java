@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.e2e.bcdriver;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.SignatureException;
+import java.util.Arrays;
+
+/**
+ * <p>Runs a small generated corpus through the same code paths as
+ * the testcases, so that classes are loaded and hot methods compiled
+ * before any timed work starts.</p>
+ *
+ * <p>The corpus is a {@link SyntheticCorpus} with small RSA keys, as
+ * only the code paths matter.</p>
+ */
+final class Warmup {
+
+  /**
+   * Validates the keyring, unlocks the secret key and decrypts and
+   * verifies the signed message <tt>iterations</tt> times.
+   */
+  static final void run(int iterations)
+      throws IOException, PGPException, SignatureException {
+    SyntheticCorpus corpus =
+        SyntheticCorpus.create(SyntheticCorpus.KeyType.RSA_1024);
+    byte[] expected = corpus.getPlainText();
+    for (int i = 0; i < iterations; i++) {
+      KeyChecker.PKR verify = KeyChecker.validate(LazyKeyRing.read(
+              new ByteArrayInputStream(corpus.getPublicRing()))
+          .getSelfSigned(), Limits.DEFAULT);
+      if (verify.getStatus() != KeyChecker.PKR.Status.OK) {
+        throw new IllegalStateException(
+            "Warm-up key failed to validate: " + verify.getErrors());
+      }
+      PGPPrivateKey key = Decryptor.extractDecryptionKey(
+          Util.readSecretKeyRing(
+              new ByteArrayInputStream(corpus.getSecretRing())),
+          SyntheticCorpus.PASSPHRASE, Limits.DEFAULT);
+      Decryptor.Result result = Decryptor.decrypt(
+          new ByteArrayInputStream(corpus.getSignedMessage()), key, verify,
+          Limits.DEFAULT);
+      if ((result == null)
+          || !Arrays.equals(result.getPlainText(), expected)) {
+        throw new IllegalStateException("Warm-up message did not decrypt");
+      }
+    }
+  }
+
+  private Warmup() {}
+}